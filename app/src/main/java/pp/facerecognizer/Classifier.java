@@ -16,6 +16,7 @@ limitations under the License.
 package pp.facerecognizer;
 
 import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -23,19 +24,39 @@ import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 
-import java.io.FileDescriptor;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import androidx.core.util.Pair;
+import pp.facerecognizer.env.EmbeddingCache;
 import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.ImageUtils;
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.wrapper.CentroidClassifier;
+import pp.facerecognizer.wrapper.CompressedGallery;
+import pp.facerecognizer.wrapper.FaceClassifier;
 import pp.facerecognizer.wrapper.FaceNet;
+import pp.facerecognizer.wrapper.FaceQuality;
+import pp.facerecognizer.wrapper.HnswClassifier;
 import pp.facerecognizer.wrapper.LibSVM;
+import pp.facerecognizer.wrapper.MergedGraph;
 import pp.facerecognizer.wrapper.MTCNN;
+import pp.facerecognizer.wrapper.ProjectedClassifier;
+import pp.facerecognizer.wrapper.SessionConfig;
+import pp.facerecognizer.wrapper.SessionTuner;
 
 /**
  * Generic interface for interacting with different recognition engines.
@@ -64,12 +85,17 @@ public class Classifier {
         /** Optional location within the source image for the location of the recognized object. */
         private RectF location;
 
+        /** Timestamp of the preview frame the location was detected in. */
+        private final long timestamp;
+
         Recognition(
-                final String id, final String title, final Float confidence, final RectF location) {
+                final String id, final String title, final Float confidence, final RectF location,
+                final long timestamp) {
             this.id = id;
             this.title = title;
             this.confidence = confidence;
             this.location = location;
+            this.timestamp = timestamp;
         }
 
         public String getId() {
@@ -92,6 +118,10 @@ public class Classifier {
             this.location = location;
         }
 
+        public long getTimestamp() {
+            return timestamp;
+        }
+
         @Override
         public String toString() {
             String resultString = "";
@@ -115,33 +145,262 @@ public class Classifier {
         }
     }
 
+    private static final Logger LOGGER = new Logger();
+
     public static final int EMBEDDING_SIZE = 512;
+    // Enrollment photos are decoded with the shorter side subsampled to at least this size.
+    private static final int IMPORT_SIZE = 640;
+    private static final int IMPORT_THREADS = 3;
+    private static final int IMPORT_QUEUE_SIZE = 6;
+    // Keys of the tuned session configs in FileUtils.SESSION_FILE.
+    private static final String MTCNN_SESSION = "mtcnn";
+    private static final String FACENET_SESSION = "facenet";
+    private static final String MERGED_GRAPH_SESSION = "merged";
     private static Classifier classifier;
 
-    private MTCNN mtcnn;
-    private FaceNet faceNet;
-    private LibSVM svm;
+    // Written by the loader threads, read by the inference thread.
+    private volatile MTCNN mtcnn;
+    private volatile FaceNet faceNet;
+    // Replaces FaceNet when tools/merge_graphs.py output is bundled as merged.pb.
+    private volatile MergedGraph mergedGraph;
+    private volatile FaceClassifier faceClassifier;
+    private volatile EmbeddingCache embeddingCache;
 
-    private ArrayList<String> classNames;
+    private volatile ArrayList<String> classNames;
+    // Label of each class name, so lookups do not scan classNames.
+    private final HashMap<String, Integer> classIndex = new HashMap<>();
+
+    private final StringBuilder startupStats = new StringBuilder();
+
+    // Faces failing these checks are not embedded, see FACE_QUALITY_GATE in build.gradle.
+    private final FaceQuality faceQuality = new FaceQuality();
+    private final float[] landmarks = new float[MTCNN.LANDMARK_SIZE];
+
+    /**
+     * Callback invoked as soon as face detection is usable, while FaceNet and the SVM
+     * may still be loading. Until then recognizeImage() returns untitled detections.
+     */
+    interface OnDetectorReadyListener {
+        void onDetectorReady(Classifier classifier);
+    }
 
     private Classifier() {}
 
     static Classifier getInstance (AssetManager assetManager,
                                    int inputHeight,
                                    int inputWidth) throws Exception {
-        if (classifier != null) return classifier;
-
-        classifier = new Classifier();
+        return getInstance(assetManager, inputHeight, inputWidth, null);
+    }
 
-        classifier.mtcnn = MTCNN.create(assetManager);
-        classifier.faceNet = FaceNet.create(assetManager, inputHeight, inputWidth);
-        classifier.svm = LibSVM.getInstance();
+    static synchronized Classifier getInstance (AssetManager assetManager,
+                                                int inputHeight,
+                                                int inputWidth,
+                                                OnDetectorReadyListener listener) throws Exception {
+        if (classifier != null) {
+            if (listener != null) listener.onDetectorReady(classifier);
+            return classifier;
+        }
 
-        classifier.classNames = FileUtils.readLabel(FileUtils.LABEL_FILE);
+        final Classifier c = new Classifier();
+        final long startTime = SystemClock.uptimeMillis();
+
+        // Thread settings are benchmarked once per device, in the background after the first
+        // startup, which uses the default settings. Later launches use the stored ones.
+        final boolean useMergedGraph = MergedGraph.isAvailable(assetManager);
+        SessionConfig storedMtcnnConfig = SessionTuner.getStored(MTCNN_SESSION);
+        SessionConfig storedFaceNetConfig = SessionTuner.getStored(
+                useMergedGraph ? MERGED_GRAPH_SESSION : FACENET_SESSION);
+        final boolean tuneSessions = storedMtcnnConfig == null || storedFaceNetConfig == null;
+        SessionConfig mtcnnConfig =
+                storedMtcnnConfig != null ? storedMtcnnConfig : SessionConfig.DEFAULT;
+        SessionConfig faceNetConfig =
+                storedFaceNetConfig != null ? storedFaceNetConfig : SessionConfig.DEFAULT;
+        c.recordPhase("session config", startTime);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> faceNetFuture = executor.submit(() -> {
+                long phaseTime = SystemClock.uptimeMillis();
+                if (useMergedGraph) {
+                    MergedGraph mergedGraph = MergedGraph.create(assetManager, faceNetConfig);
+                    c.recordPhase("merged graph load", phaseTime);
+
+                    phaseTime = SystemClock.uptimeMillis();
+                    mergedGraph.warmUp();
+                    c.recordPhase("merged graph warm-up", phaseTime);
+                    c.mergedGraph = mergedGraph;
+                } else {
+                    FaceNet faceNet =
+                            FaceNet.create(assetManager, inputHeight, inputWidth, faceNetConfig);
+                    c.recordPhase("facenet load", phaseTime);
+
+                    phaseTime = SystemClock.uptimeMillis();
+                    faceNet.warmUp();
+                    c.recordPhase("facenet warm-up", phaseTime);
+                    c.faceNet = faceNet;
+                }
+                return null;
+            });
+
+            Future<ArrayList<String>> labelFuture = executor.submit(() -> {
+                long phaseTime = SystemClock.uptimeMillis();
+                c.faceClassifier = createFaceClassifier();
+                c.embeddingCache = EmbeddingCache.load(FileUtils.EMBEDDING_CACHE_FILE,
+                        getModelVersion(assetManager, useMergedGraph, inputHeight, inputWidth),
+                        EMBEDDING_SIZE);
+                ArrayList<String> classNames = FileUtils.readLabel(FileUtils.LABEL_FILE);
+                c.recordPhase("classifier and labels", phaseTime);
+                return classNames;
+            });
+
+            long phaseTime = SystemClock.uptimeMillis();
+            MTCNN mtcnn = MTCNN.create(assetManager, mtcnnConfig);
+            c.recordPhase("mtcnn load", phaseTime);
+
+            phaseTime = SystemClock.uptimeMillis();
+            mtcnn.warmUp();
+            c.recordPhase("mtcnn warm-up", phaseTime);
+
+            c.mtcnn = mtcnn;
+            if (listener != null) listener.onDetectorReady(c);
+
+            ArrayList<String> classNames = labelFuture.get();
+            for (int i = 0; i < classNames.size(); i++) {
+                if (!c.classIndex.containsKey(classNames.get(i))) c.classIndex.put(classNames.get(i), i);
+            }
+            c.classNames = classNames;
+            faceNetFuture.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            executor.shutdown();
+        }
 
+        c.recordPhase("total", startTime);
+        classifier = c;
+        if (tuneSessions) {
+            tuneSessionsInBackground(assetManager, useMergedGraph, inputHeight, inputWidth);
+        }
         return classifier;
     }
 
+    /**
+     * Benchmarks the thread settings of the models that have none stored for this device,
+     * at background priority so detection keeps most of the CPU. The results are only
+     * used from the next launch on.
+     */
+    private static void tuneSessionsInBackground(final AssetManager assetManager,
+                                                 final boolean useMergedGraph,
+                                                 final int inputHeight,
+                                                 final int inputWidth) {
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                if (SessionTuner.getStored(MTCNN_SESSION) == null) {
+                    SessionTuner.tuneAndStore(MTCNN_SESSION,
+                            config -> MTCNN.create(assetManager, config));
+                }
+                if (useMergedGraph) {
+                    if (SessionTuner.getStored(MERGED_GRAPH_SESSION) == null) {
+                        SessionTuner.tuneAndStore(MERGED_GRAPH_SESSION,
+                                config -> MergedGraph.create(assetManager, config));
+                    }
+                } else if (SessionTuner.getStored(FACENET_SESSION) == null) {
+                    SessionTuner.tuneAndStore(FACENET_SESSION, config -> FaceNet.create(
+                            assetManager, inputHeight, inputWidth, config));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.e(e, "Failed to tune session configs");
+            }
+        }).start();
+    }
+
+    private void recordPhase(String phase, long startTime) {
+        long elapsed = SystemClock.uptimeMillis() - startTime;
+        LOGGER.i("Startup %s: %dms", phase, elapsed);
+        synchronized (startupStats) {
+            startupStats.append(phase).append(": ").append(elapsed).append("ms\n");
+        }
+    }
+
+    /**
+     * Picks the embedding classifier configured for this build, see FACE_CLASSIFIER
+     * and PCA_COMPONENTS in build.gradle.
+     */
+    private static FaceClassifier createFaceClassifier() {
+        if (BuildConfig.PCA_COMPONENTS <= 0) {
+            return createFaceClassifier(FileUtils.DATA_FILE, FileUtils.MODEL_FILE, EMBEDDING_SIZE);
+        }
+
+        return ProjectedClassifier.load(FileUtils.PCA_FILE, FileUtils.DATA_FILE,
+                FileUtils.PCA_DATA_FILE, EMBEDDING_SIZE, BuildConfig.PCA_COMPONENTS,
+                components -> createFaceClassifier(
+                        FileUtils.PCA_DATA_FILE, FileUtils.PCA_MODEL_FILE, components));
+    }
+
+    private static FaceClassifier createFaceClassifier(
+            String dataFile, String modelFile, int dimensions) {
+        switch (BuildConfig.FACE_CLASSIFIER) {
+            case "centroid":
+                return CentroidClassifier.load(dataFile, dimensions);
+            case "hnsw":
+                return HnswClassifier.load(dataFile, FileUtils.INDEX_FILE, dimensions);
+            case "gallery":
+                return CompressedGallery.load(FileUtils.GALLERY_FILE, dataFile,
+                        BuildConfig.GALLERY_CODEC, dimensions);
+            case "svm":
+                LibSVM svm = dimensions == EMBEDDING_SIZE
+                        ? LibSVM.getInstance()
+                        : LibSVM.create(dataFile, modelFile, dimensions);
+                if (svm.isModelStale()) svm.train();
+                return svm;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown face classifier '" + BuildConfig.FACE_CLASSIFIER + "'");
+        }
+    }
+
+    /**
+     * Returns true once FaceNet (or the merged graph), the classifier and the labels are loaded.
+     */
+    boolean isRecognitionReady() {
+        return (faceNet != null || mergedGraph != null)
+                && faceClassifier != null && classNames != null;
+    }
+
+    /**
+     * Detects faces, using the merged graph when available so the embeddings are computed
+     * in the same session call.
+     */
+    private Pair[] detect(Bitmap bitmap) {
+        return mergedGraph != null ? mergedGraph.detectAndEmbed(bitmap) : mtcnn.detect(bitmap);
+    }
+
+    /**
+     * Returns the embedding of the given face from the last detect() call.
+     */
+    private FloatBuffer getEmbeddings(Bitmap bitmap, Pair[] faces, int faceIndex) {
+        if (mergedGraph != null) {
+            return mergedGraph.getEmbeddings(faceIndex);
+        }
+
+        Rect rect = new Rect();
+        ((RectF) faces[faceIndex].first).round(rect);
+        return faceNet.getEmbeddings(bitmap, rect);
+    }
+
+    /**
+     * Copies the landmarks of the given face from the last detect() call into landmarks.
+     */
+    private void getLandmarks(int faceIndex) {
+        if (mergedGraph != null) {
+            mergedGraph.getLandmarks(faceIndex, landmarks);
+        } else {
+            mtcnn.getLandmarks(faceIndex, landmarks);
+        }
+    }
+
     CharSequence[] getClassNames() {
         CharSequence[] cs = new CharSequence[classNames.size() + 1];
         int idx = 1;
@@ -154,32 +413,61 @@ public class Classifier {
         return cs;
     }
 
-    List<Recognition> recognizeImage(Bitmap bitmap, Matrix matrix) {
+    /**
+     * Detects and identifies the faces in the bitmap. Locations are mapped through matrix
+     * and tagged with the timestamp of the preview frame the bitmap was taken from, whose
+     * luminance is used by the face quality gate.
+     */
+    List<Recognition> recognizeImage(Bitmap bitmap, Matrix matrix, long timestamp,
+                                     FaceQuality.LuminanceFrame luminance) {
         synchronized (this) {
-            Pair faces[] = mtcnn.detect(bitmap);
+            if (!isRecognitionReady()) {
+                Pair faces[] = mtcnn.detect(bitmap);
+                final List<Recognition> mappedRecognitions = new LinkedList<>();
 
-            final List<Recognition> mappedRecognitions = new LinkedList<>();
+                // Detection-only results while the recognition models are still loading.
+                for (Pair face : faces) {
+                    RectF rectF = (RectF) face.first;
+                    matrix.mapRect(rectF);
+                    mappedRecognitions.add(
+                            new Recognition(null, null, (Float) face.second, rectF, timestamp));
+                }
+                return mappedRecognitions;
+            }
+
+            Pair faces[] = detect(bitmap);
 
-            for (Pair face : faces) {
-                RectF rectF = (RectF) face.first;
+            final List<Recognition> mappedRecognitions = new LinkedList<>();
 
-                Rect rect = new Rect();
-                rectF.round(rect);
+            for (int i = 0; i < faces.length; i++) {
+                RectF rectF = (RectF) faces[i].first;
+
+                if (BuildConfig.FACE_QUALITY_GATE) {
+                    getLandmarks(i);
+                    if (faceQuality.check(rectF, landmarks, luminance, matrix)
+                            != FaceQuality.ACCEPTED) {
+                        // Still tracked and drawn, just not identified.
+                        matrix.mapRect(rectF);
+                        mappedRecognitions.add(
+                                new Recognition(null, null, (Float) faces[i].second, rectF, timestamp));
+                        continue;
+                    }
+                }
 
-                FloatBuffer buffer = faceNet.getEmbeddings(bitmap, rect);
-                Pair<Integer, Float> pair = svm.predict(buffer);
+                FloatBuffer buffer = getEmbeddings(bitmap, faces, i);
+                Pair<Integer, Float> pair = faceClassifier.predict(buffer);
 
                 matrix.mapRect(rectF);
                 Float prob = pair.second;
 
                 String name;
-                if (prob > 0.5)
+                if (prob > faceClassifier.getMinConfidence())
                     name = classNames.get(pair.first);
                 else
                     name = "Unknown";
 
                 Recognition result =
-                        new Recognition("" + pair.first, name, prob, rectF);
+                        new Recognition("" + pair.first, name, prob, rectF, timestamp);
                 mappedRecognitions.add(result);
             }
             return mappedRecognitions;
@@ -187,66 +475,218 @@ public class Classifier {
 
     }
 
-    void updateData(int label, ContentResolver contentResolver, ArrayList<Uri> uris) throws Exception {
-        synchronized (this) {
-            ArrayList<float[]> list = new ArrayList<>();
+    /**
+     * A picked photo after the decode stage: either a cache hit, or a bitmap to embed.
+     */
+    private static final class DecodedPhoto {
+        final byte[] hash;
+        final EmbeddingCache.Entry entry;
+        final Bitmap bitmap;
+        // Original width over decoded width, to store boxes in original coordinates.
+        final float scale;
+
+        DecodedPhoto(byte[] hash, EmbeddingCache.Entry entry, Bitmap bitmap, float scale) {
+            this.hash = hash;
+            this.entry = entry;
+            this.bitmap = bitmap;
+            this.scale = scale;
+        }
+    }
 
-            for (Uri uri : uris) {
-                Bitmap bitmap = getBitmapFromUri(contentResolver, uri);
-                Pair faces[] = mtcnn.detect(bitmap);
+    /**
+     * Enrolls the most confident face of each photo. Returns false if no photo had a face,
+     * in which case nothing is stored or retrained. If replace is set, the embeddings
+     * enrolled under the label before are forgotten.
+     */
+    boolean updateData(int label, ContentResolver contentResolver, ArrayList<Uri> uris,
+                       boolean replace) throws Exception {
+        ArrayList<float[]> list = new ArrayList<>();
+
+        // Photos are read, hashed and decoded on a small pool while this thread runs
+        // detection and embedding on whichever photo is ready first. At most
+        // IMPORT_QUEUE_SIZE photos are in flight, which bounds peak memory.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(IMPORT_THREADS, uris.size())));
+        CompletionService<DecodedPhoto> decoded = new ExecutorCompletionService<>(executor);
+        try {
+            int submitted = 0;
+            for (; submitted < uris.size() && submitted < IMPORT_QUEUE_SIZE; submitted++) {
+                submitDecode(decoded, contentResolver, uris.get(submitted));
+            }
 
-                float max = 0f;
-                Rect rect = new Rect();
+            for (int completed = 0; completed < uris.size(); completed++) {
+                DecodedPhoto photo = decoded.take().get();
+                if (submitted < uris.size()) {
+                    submitDecode(decoded, contentResolver, uris.get(submitted++));
+                }
 
-                for (Pair face : faces) {
-                    Float prob = (Float) face.second;
-                    if (prob > max) {
-                        max = prob;
+                EmbeddingCache.Entry entry = photo.entry;
+                if (entry == null) {
+                    if (photo.bitmap == null) continue;
 
-                        RectF rectF = (RectF) face.first;
-                        rectF.round(rect);
+                    synchronized (this) {
+                        entry = embedBestFace(photo.bitmap);
+                    }
+                    photo.bitmap.recycle();
+                    if (entry.box != null) {
+                        entry.box.left *= photo.scale;
+                        entry.box.top *= photo.scale;
+                        entry.box.right *= photo.scale;
+                        entry.box.bottom *= photo.scale;
                     }
+                    embeddingCache.put(photo.hash, entry);
                 }
 
-                float[] emb_array = new float[EMBEDDING_SIZE];
-                faceNet.getEmbeddings(bitmap, rect).get(emb_array);
-                list.add(emb_array);
+                if (entry.embedding != null) {
+                    list.add(entry.embedding);
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return train(label, list, replace);
+    }
+
+    /**
+     * Enrolls embeddings computed elsewhere, e.g. from live camera frames. Returns false
+     * and leaves the data files alone if there are none, as LibSVM cannot read an empty
+     * row. If replace is set, the embeddings enrolled under the label before are forgotten,
+     * but only once there are new ones.
+     */
+    boolean train(int label, ArrayList<float[]> embeddings, boolean replace) {
+        if (embeddings.isEmpty()) {
+            LOGGER.w("No face found, nothing to enroll for label %d", label);
+            return false;
+        }
+        synchronized (this) {
+            if (replace) faceClassifier.remove(label);
+            faceClassifier.train(label, embeddings);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the embedding of the most confident face in the bitmap, or null if there
+     * is no face.
+     */
+    float[] getBestFaceEmbedding(Bitmap bitmap) {
+        synchronized (this) {
+            return embedBestFace(bitmap).embedding;
+        }
+    }
+
+    /**
+     * Reads the photo once, hashes it and, unless the embedding is cached, decodes it
+     * subsampled to the resolution detection needs.
+     */
+    private void submitDecode(CompletionService<DecodedPhoto> decoded,
+                              ContentResolver contentResolver, Uri uri) {
+        decoded.submit(() -> {
+            byte[] data = FileUtils.readBytes(contentResolver.openInputStream(uri));
+            byte[] hash = EmbeddingCache.hash(data);
+            EmbeddingCache.Entry entry = embeddingCache.get(hash);
+            if (entry != null) {
+                return new DecodedPhoto(hash, entry, null, 1f);
+            }
+
+            // Read the bounds first so the full resolution image is never allocated.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            int width = options.outWidth;
+
+            options.inSampleSize = ImageUtils.getInSampleSize(
+                    options.outWidth, options.outHeight, IMPORT_SIZE, IMPORT_SIZE);
+            options.inJustDecodeBounds = false;
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (bitmap == null) {
+                LOGGER.w("Cannot decode %s", uri);
+                return new DecodedPhoto(hash, null, null, 1f);
+            }
+            return new DecodedPhoto(hash, null, bitmap, width / (float) bitmap.getWidth());
+        });
+    }
+
+    /**
+     * Returns the box and embedding of the most confident face, or an empty entry if
+     * there is none.
+     */
+    private EmbeddingCache.Entry embedBestFace(Bitmap bitmap) {
+        Pair faces[] = detect(bitmap);
+
+        float max = 0f;
+        int best = -1;
+
+        for (int i = 0; i < faces.length; i++) {
+            Float prob = (Float) faces[i].second;
+            if (prob > max) {
+                max = prob;
+                best = i;
             }
+        }
+        if (best < 0) {
+            return new EmbeddingCache.Entry(null, null);
+        }
+
+        float[] emb_array = new float[EMBEDDING_SIZE];
+        getEmbeddings(bitmap, faces, best).get(emb_array);
+        return new EmbeddingCache.Entry((RectF) faces[best].first, emb_array);
+    }
 
-            svm.train(label, list);
+    /**
+     * Identifies the models and input size that produce the embeddings, so cached
+     * embeddings are dropped when any of them changes.
+     */
+    private static int getModelVersion(AssetManager assetManager, boolean useMergedGraph,
+                                       int inputHeight, int inputWidth) {
+        int version = 31 * (31 * inputHeight + inputWidth) + IMPORT_SIZE;
+        String[] assets = useMergedGraph
+                ? new String[] {"merged.pb"}
+                : new String[] {"mtcnn.pb", "facenet.pb"};
+        for (String asset : assets) {
+            version = 31 * version + asset.hashCode();
+            try (AssetFileDescriptor fd = assetManager.openFd(asset)) {
+                version = 31 * version + (int) fd.getLength();
+            } catch (IOException e) {
+                LOGGER.w("Cannot stat %s for the embedding cache version", asset);
+            }
         }
+        return version;
     }
 
     int getIndex(String name) {
-        return classNames.indexOf(name);
+        Integer index = classIndex.get(name);
+        return index != null ? index : -1;
     }
 
     int addPerson(String name) {
         FileUtils.appendText(name, FileUtils.LABEL_FILE);
+        if (!classIndex.containsKey(name)) classIndex.put(name, classNames.size());
         classNames.add(name);
 
         return classNames.size();
     }
 
-    private Bitmap getBitmapFromUri(ContentResolver contentResolver, Uri uri) throws Exception {
-        ParcelFileDescriptor parcelFileDescriptor =
-                contentResolver.openFileDescriptor(uri, "r");
-        FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-        parcelFileDescriptor.close();
-
-        return bitmap;
-    }
-
     void enableStatLogging(final boolean debug){
     }
 
     String getStatString() {
-        return faceNet.getStatString();
+        String stats;
+        synchronized (startupStats) {
+            stats = startupStats.toString();
+        }
+        if (BuildConfig.FACE_QUALITY_GATE) stats += faceQuality.getStatString();
+        if (mergedGraph != null) return stats + mergedGraph.getStatString();
+        return faceNet != null ? stats + faceNet.getStatString() : stats;
     }
 
     void close() {
-        mtcnn.close();
-        faceNet.close();
+        if (mtcnn != null) mtcnn.close();
+        if (faceNet != null) faceNet.close();
+        if (mergedGraph != null) mergedGraph.close();
     }
 }
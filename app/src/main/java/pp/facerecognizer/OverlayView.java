@@ -20,14 +20,14 @@ import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.View;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A simple View providing a render callback to other classes.
  */
 public class OverlayView extends View {
-    private final List<DrawCallback> callbacks = new LinkedList<DrawCallback>();
+    private final List<DrawCallback> callbacks = new ArrayList<DrawCallback>();
 
     public OverlayView(final Context context, final AttributeSet attrs) {
         super(context, attrs);
@@ -47,8 +47,8 @@ public class OverlayView extends View {
     @Override
     public synchronized void draw(final Canvas canvas) {
         super.draw(canvas);
-        for (final DrawCallback callback : callbacks) {
-            callback.drawCallback(canvas);
+        for (int i = 0; i < callbacks.size(); ++i) {
+            callbacks.get(i).drawCallback(canvas);
         }
     }
 }
@@ -39,6 +39,7 @@ import androidx.appcompat.app.AlertDialog;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -47,7 +48,12 @@ import pp.facerecognizer.env.BorderedText;
 import pp.facerecognizer.env.FileUtils;
 import pp.facerecognizer.env.ImageUtils;
 import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.tracking.DetectionGovernor;
 import pp.facerecognizer.tracking.MultiBoxTracker;
+import pp.facerecognizer.tracking.TrackingThread;
+import pp.facerecognizer.wrapper.FaceClassifierBenchmark;
+import pp.facerecognizer.wrapper.FaceQuality;
+import pp.facerecognizer.wrapper.QuantizationComparison;
 
 /**
 * An activity that uses a TensorFlowMultiBoxDetector and ObjectTracker to detect and then track
@@ -62,7 +68,16 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
     private static final Size DESIRED_PREVIEW_SIZE = new Size(720, 480);
 
     private static final boolean SAVE_PREVIEW_BITMAP = false;
+    // Compares the float and quantized models on the first detection frame, see
+    // QuantizationComparison.
+    private static final boolean COMPARE_QUANTIZED = false;
+    // Compares the SVM and centroid classifiers on the data file at startup, see FaceClassifierBenchmark.
+    private static final boolean BENCHMARK_CLASSIFIERS = false;
+    // Lowers the detection rate while the scene is static, see DetectionGovernor.
+    private static final boolean ADAPTIVE_DETECTION = true;
     private static final float TEXT_SIZE_DIP = 10;
+    // The debug overlay's text is rebuilt this often rather than every frame.
+    private static final long STATS_UPDATE_INTERVAL_MS = 500;
 
     private Integer sensorOrientation;
 
@@ -81,17 +96,28 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
     private Matrix cropToFrameTransform;
 
     private MultiBoxTracker tracker;
+    private TrackingThread trackingThread;
+    private final DetectionGovernor governor = new DetectionGovernor();
 
     private byte[] luminanceCopy;
+    private FaceQuality.LuminanceFrame luminanceFrame;
 
     private BorderedText borderedText;
 
+    // Debug overlay state, only used on the UI thread.
+    private final Vector<String> statLines = new Vector<String>();
+    private long lastStatsUpdateMs;
+    private final Matrix debugMatrix = new Matrix();
+    private final Paint debugPaint = new Paint();
+
     private Snackbar initSnackbar;
     private Snackbar trainSnackbar;
     private FloatingActionButton button;
 
-    private boolean initialized = false;
+    private volatile boolean detectorReady = false;
+    private volatile boolean initialized = false;
     private boolean training = false;
+    private boolean quantizedCompared = false;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
@@ -113,6 +139,17 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
                 .create();
     }
 
+    @Override
+    public synchronized void onDestroy() {
+        if (trackingThread != null) {
+            trackingThread.quit();
+        }
+        if (tracker != null) {
+            tracker.release();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
         if (!initialized)
@@ -125,6 +162,12 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
         borderedText.setTypeface(Typeface.MONOSPACE);
 
         // passing dialog
+        if (trackingThread != null) {
+            trackingThread.quit();
+        }
+        if (tracker != null) {
+            tracker.release();
+        }
         tracker = new MultiBoxTracker(this);
 
         previewWidth = size.getWidth();
@@ -133,6 +176,9 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
         sensorOrientation = rotation - getScreenOrientation();
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
+        trackingThread = new TrackingThread(
+                tracker, previewWidth, previewHeight, sensorOrientation, this::onFrameTracked);
+
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
         rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
         croppedBitmap = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
@@ -168,31 +214,38 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
                     final int backgroundColor = Color.argb(100, 0, 0, 0);
                     canvas.drawColor(backgroundColor);
 
-                    final Matrix matrix = new Matrix();
                     final float scaleFactor = 2;
-                    matrix.postScale(scaleFactor, scaleFactor);
-                    matrix.postTranslate(
+                    debugMatrix.setScale(scaleFactor, scaleFactor);
+                    debugMatrix.postTranslate(
                             canvas.getWidth() - copy.getWidth() * scaleFactor,
                             canvas.getHeight() - copy.getHeight() * scaleFactor);
-                    canvas.drawBitmap(copy, matrix, new Paint());
+                    canvas.drawBitmap(copy, debugMatrix, debugPaint);
 
-                    final Vector<String> lines = new Vector<String>();
-                    if (classifier != null) {
-                        final String statString = classifier.getStatString();
-                        final String[] statLines = statString.split("\n");
-                        Collections.addAll(lines, statLines);
+                    final long now = SystemClock.uptimeMillis();
+                    if (now - lastStatsUpdateMs >= STATS_UPDATE_INTERVAL_MS) {
+                        lastStatsUpdateMs = now;
+                        updateStatLines(canvas, copy);
                     }
-                    lines.add("");
-                    lines.add("Frame: " + previewWidth + "x" + previewHeight);
-                    lines.add("Crop: " + copy.getWidth() + "x" + copy.getHeight());
-                    lines.add("View: " + canvas.getWidth() + "x" + canvas.getHeight());
-                    lines.add("Rotation: " + sensorOrientation);
-                    lines.add("Inference time: " + lastProcessingTimeMs + "ms");
-
-                    borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
+                    borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, statLines);
                 });
     }
 
+    private void updateStatLines(final Canvas canvas, final Bitmap copy) {
+        statLines.clear();
+        if (classifier != null) {
+            final String statString = classifier.getStatString();
+            Collections.addAll(statLines, statString.split("\n"));
+        }
+        statLines.add("");
+        statLines.add("Frame: " + previewWidth + "x" + previewHeight);
+        statLines.add("Crop: " + copy.getWidth() + "x" + copy.getHeight());
+        statLines.add("View: " + canvas.getWidth() + "x" + canvas.getHeight());
+        statLines.add("Rotation: " + sensorOrientation);
+        statLines.add("Inference time: " + lastProcessingTimeMs + "ms");
+        statLines.add("Dropped tracking frames: " + trackingThread.getDroppedFrames());
+        if (ADAPTIVE_DETECTION) statLines.add(governor.getStatString());
+    }
+
     OverlayView trackingOverlay;
 
     void init() {
@@ -200,6 +253,7 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
         File dir = new File(FileUtils.ROOT);
 
         if (!dir.isDirectory()) {
+            final long startTime = SystemClock.uptimeMillis();
             if (dir.exists()) dir.delete();
             dir.mkdirs();
 
@@ -207,10 +261,27 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
             FileUtils.copyAsset(mgr, FileUtils.DATA_FILE);
             FileUtils.copyAsset(mgr, FileUtils.MODEL_FILE);
             FileUtils.copyAsset(mgr, FileUtils.LABEL_FILE);
+            LOGGER.i("Startup asset copy: %dms", SystemClock.uptimeMillis() - startTime);
+        }
+
+        if (BENCHMARK_CLASSIFIERS) {
+            try {
+                FaceClassifierBenchmark.run();
+                FaceClassifierBenchmark.runCodecs();
+                FaceClassifierBenchmark.runPca(64, 128);
+                FaceClassifierBenchmark.runIndex(100000, 10000, 10, 100);
+            } catch (IOException e) {
+                LOGGER.e(e, "Face classifier benchmark failed");
+            }
         }
 
         try {
-            classifier = Classifier.getInstance(getAssets(), FACE_SIZE, FACE_SIZE);
+            // Tracking with untitled boxes starts as soon as the detector is ready.
+            classifier = Classifier.getInstance(getAssets(), FACE_SIZE, FACE_SIZE,
+                    c -> {
+                        classifier = c;
+                        detectorReady = true;
+                    });
         } catch (Exception e) {
             LOGGER.e("Exception initializing classifier!", e);
             finish();
@@ -225,27 +296,25 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
         ++timestamp;
         final long currTimestamp = timestamp;
         byte[] originalLuminance = getLuminance();
-        tracker.onFrame(
-                previewWidth,
-                previewHeight,
-                getLuminanceStride(),
-                sensorOrientation,
-                originalLuminance,
-                timestamp);
-        trackingOverlay.postInvalidate();
+        trackingThread.offer(originalLuminance, getLuminanceStride(), timestamp);
+        final long frameTime = SystemClock.uptimeMillis();
 
         // No mutex needed as this method is not reentrant.
-        if (computingDetection || !initialized || training) {
+        if (computingDetection || !detectorReady || training
+                || (ADAPTIVE_DETECTION && !governor.shouldDetect(frameTime))) {
             readyForNextImage();
             return;
         }
         computingDetection = true;
+        governor.onDetectionStarted(frameTime);
         LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
         rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
 
         if (luminanceCopy == null) {
             luminanceCopy = new byte[originalLuminance.length];
+            luminanceFrame = new FaceQuality.LuminanceFrame(
+                    luminanceCopy, previewWidth, previewHeight, getLuminanceStride());
         }
         System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
         readyForNextImage();
@@ -256,6 +325,11 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
         if (SAVE_PREVIEW_BITMAP) {
             ImageUtils.saveBitmap(croppedBitmap);
         }
+        if (COMPARE_QUANTIZED && !quantizedCompared) {
+            quantizedCompared = true;
+            final Bitmap copy = Bitmap.createBitmap(croppedBitmap);
+            new Thread(() -> QuantizationComparison.compare(getAssets(), copy, FACE_SIZE)).start();
+        }
 
         runInBackground(
                 () -> {
@@ -264,18 +338,28 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
 
                     cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
                     List<Classifier.Recognition> mappedRecognitions =
-                            classifier.recognizeImage(croppedBitmap,cropToFrameTransform);
+                            classifier.recognizeImage(croppedBitmap, cropToFrameTransform,
+                                    currTimestamp, luminanceFrame);
 
                     lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
                     // passing dialog
-                    tracker.trackResults(mappedRecognitions, luminanceCopy, currTimestamp);
+                    tracker.trackResults(mappedRecognitions, luminanceCopy);
                     trackingOverlay.postInvalidate();
 
                     requestRender();
+                    governor.onDetectionFinished(SystemClock.uptimeMillis());
                     computingDetection = false;
                 });
     }
 
+    /**
+     * Called on the tracking thread once a preview frame has been tracked.
+     */
+    private void onFrameTracked(final long frameTimestamp) {
+        trackingOverlay.postInvalidate();
+        governor.onFrame(SystemClock.uptimeMillis(), tracker.getFrameMotion());
+    }
+
     @Override
     protected int getLayoutId() {
         return R.layout.camera_connection_fragment_tracking;
@@ -312,16 +396,24 @@ public class RecognitionActivity extends CameraActivity implements OnImageAvaila
             }
 
             new Thread(() -> {
+                boolean noFace = false;
                 try {
-                    classifier.updateData(requestCode, getContentResolver(), uris);
+                    noFace = !classifier.updateData(requestCode, getContentResolver(), uris, false);
                 } catch (Exception e) {
                     LOGGER.e(e, "Exception!");
                 } finally {
                     training = false;
                 }
+                final boolean showNoFace = noFace;
                 runOnUiThread(() -> {
                     trainSnackbar.dismiss();
                     button.setEnabled(true);
+                    if (showNoFace) {
+                        Snackbar.make(
+                                getWindow().getDecorView().findViewById(R.id.container),
+                                "No face found in the selected photos", Snackbar.LENGTH_LONG)
+                                .show();
+                    }
                 });
             }).start();
 
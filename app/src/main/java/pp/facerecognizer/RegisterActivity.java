@@ -19,6 +19,7 @@ package pp.facerecognizer;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.net.Uri;
@@ -28,6 +29,7 @@ import android.os.Environment;
 import android.util.Size;
 import android.view.View;
 import android.widget.FrameLayout;
+import android.widget.Toast;
 
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
@@ -63,11 +65,17 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
 
     private static final Size DESIRED_PREVIEW_SIZE = new Size(720, 480);
 
+    // Embeds live frames at capture time instead of saving PNGs for Classifier.updateData().
+    private static final boolean STREAMING_CAPTURE = true;
+    // A frame whose embedding is at least this similar to a kept one is a near-duplicate.
+    private static final float DUPLICATE_SIMILARITY = 0.9f;
+
     private Integer sensorOrientation;
 
     private Classifier classifier;
 
     private Bitmap rgbFrameBitmap = null;
+    private Bitmap croppedBitmap = null;
 
     private boolean savingFile = false;
 
@@ -76,6 +84,11 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
 
 
     private ArrayList<Uri> trainPhotoUris;
+    // Best-face embeddings of the frames kept in streaming capture mode.
+    private final ArrayList<float[]> trainEmbeddings = new ArrayList<>();
+    // Set by the capture button; frames are embedded until enough diverse ones are kept.
+    private volatile boolean capturing = false;
+    private volatile boolean embeddingFrame = false;
 
     private Snackbar initSnackbar;
     private Snackbar trainSnackbar;
@@ -88,6 +101,8 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
     private boolean training = false;
 
     private int classifyLabel = 0;
+    // Registering a name that is already enrolled replaces its embeddings.
+    private boolean replaceLabel = false;
     private int minTrainSize = REGISTER_TRAIN_SIZE;
 
     @Override
@@ -120,6 +135,13 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
 
         captureButton = findViewById(R.id.add_button);
         captureButton.setOnClickListener(view -> {
+            if (STREAMING_CAPTURE) {
+                capturing = true;
+                saveSnackbar.setText("Capturing... move your head slightly");
+                saveSnackbar.show();
+                return;
+            }
+
             savingFile = true;
 
             runInBackground(
@@ -178,6 +200,7 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
         rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        croppedBitmap = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
 
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
@@ -213,11 +236,13 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
 
         String labelName = getIntent().getStringExtra(INTENT_LABEL);
         classifyLabel = classifier.getIndex(labelName);
-        if (classifyLabel < 0) {
+        boolean known = classifyLabel >= 0;
+        if (!known) {
             LOGGER.w(labelName + " label not found!");
-            classifyLabel = classifier.addPerson(labelName);
+            classifyLabel = classifier.addPerson(labelName) - 1;
         }
         if (getIntent().getIntExtra(INTENT_MODE, REGISTER_MODE) == REGISTER_MODE) {
+            replaceLabel = known;
             minTrainSize = REGISTER_TRAIN_SIZE;
         }else {
             minTrainSize = ADD_MORE_TRAIN_SIZE;
@@ -235,6 +260,27 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
             return;
         }
 
+        if (STREAMING_CAPTURE) {
+            if (!capturing || embeddingFrame) {
+                readyForNextImage();
+                return;
+            }
+            embeddingFrame = true;
+
+            // The crop transform also rotates the frame upright, so no RotateBitmap here.
+            rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+            readyForNextImage();
+            final Canvas canvas = new Canvas(croppedBitmap);
+            canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+
+            runInBackground(
+                    () -> {
+                        captureEmbedding();
+                        embeddingFrame = false;
+                    });
+            return;
+        }
+
         readyForNextImage();
         runInBackground(
                 () -> {
@@ -242,6 +288,47 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
                 });
     }
 
+    /**
+     * Embeds the current crop and keeps the embedding unless it has no face or nearly
+     * duplicates one already kept, so a burst yields varied poses.
+     */
+    private void captureEmbedding() {
+        float[] embedding = classifier.getBestFaceEmbedding(croppedBitmap);
+        if (embedding == null) return;
+
+        final int remainingSize;
+        synchronized (trainEmbeddings) {
+            for (float[] kept : trainEmbeddings) {
+                if (cosineSimilarity(kept, embedding) >= DUPLICATE_SIMILARITY) return;
+            }
+            trainEmbeddings.add(embedding);
+            remainingSize = minTrainSize - trainEmbeddings.size();
+        }
+
+        if (remainingSize <= 0) capturing = false;
+        runOnUiThread(() -> {
+            if (remainingSize > 0) {
+                saveSnackbar.setText("Captured! " + remainingSize + " more to go, keep moving slightly");
+                saveSnackbar.show();
+            } else if (remainingSize == 0) {
+                saveSnackbar.setText("Ready to complete anytime");
+                saveSnackbar.setDuration(BaseTransientBottomBar.LENGTH_LONG);
+                saveSnackbar.show();
+                completeButton.setVisibility(View.VISIBLE);
+            }
+        });
+    }
+
+    private static float cosineSimilarity(float[] a, float[] b) {
+        float dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / (float) Math.max(Math.sqrt(normA * normB), 1e-12);
+    }
+
     private File createImageFile() throws IOException {
         // Create an image file name
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
@@ -276,9 +363,26 @@ public class RegisterActivity extends CameraActivity implements OnImageAvailable
         captureButton.setEnabled(false);
         training = true;
 
+        capturing = false;
         new Thread(() -> {
             try {
-                classifier.updateData(index, getContentResolver(), trainPhotoUris);
+                boolean enrolled;
+                if (STREAMING_CAPTURE) {
+                    ArrayList<float[]> embeddings;
+                    synchronized (trainEmbeddings) {
+                        embeddings = new ArrayList<>(trainEmbeddings);
+                        trainEmbeddings.clear();
+                    }
+                    enrolled = classifier.train(index, embeddings, replaceLabel);
+                } else {
+                    enrolled = classifier.updateData(
+                            index, getContentResolver(), trainPhotoUris, replaceLabel);
+                }
+                if (!enrolled) {
+                    // A Toast, as the activity finishes right away.
+                    runOnUiThread(() -> Toast.makeText(getApplicationContext(),
+                            "No face found, nothing was enrolled", Toast.LENGTH_LONG).show());
+                }
             } catch (Exception e) {
                 LOGGER.e(e, "Exception!");
             } finally {
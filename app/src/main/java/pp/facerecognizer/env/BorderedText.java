@@ -82,10 +82,11 @@ public class BorderedText {
     }
 
     public void drawLines(Canvas canvas, final float posX, final float posY, Vector<String> lines) {
-        int lineNum = 0;
-        for (final String line : lines) {
-            drawText(canvas, posX, posY - getTextSize() * (lines.size() - lineNum - 1), line);
-            ++lineNum;
+        // Indexed, so that drawing allocates no iterator.
+        final int numLines = lines.size();
+        for (int lineNum = 0; lineNum < numLines; ++lineNum) {
+            drawText(canvas, posX, posY - getTextSize() * (numLines - lineNum - 1),
+                    lines.get(lineNum));
         }
     }
 
@@ -0,0 +1,179 @@
+package pp.facerecognizer.env;
+
+import android.graphics.RectF;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Maps the content hash of an enrollment photo to its best face box and embedding, so a
+ * photo only ever goes through MTCNN and FaceNet once per model version.
+ * Photos without a face are cached too. Records are appended to a binary file whose
+ * header holds the model version; a different version discards the file.
+ */
+public class EmbeddingCache {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int MAGIC = 0x454d4243; // "EMBC"
+    private static final int HEADER_SIZE = 12;
+    private static final int HASH_SIZE = 20; // SHA-1
+
+    public static final class Entry {
+        // Null when the photo has no face.
+        public final RectF box;
+        public final float[] embedding;
+
+        public Entry(RectF box, float[] embedding) {
+            this.box = box;
+            this.embedding = embedding;
+        }
+    }
+
+    private final File file;
+    private final int modelVersion;
+    private final int dimensions;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Reads the cache file, dropping it if it was written for another model version and
+     * cutting off a record left incomplete by a crash.
+     */
+    public static EmbeddingCache load(String filename, int modelVersion, int dimensions) {
+        EmbeddingCache cache = new EmbeddingCache(
+                new File(FileUtils.ROOT + File.separator + filename), modelVersion, dimensions);
+        try {
+            cache.read();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to read embedding cache, starting over");
+            cache.entries.clear();
+            cache.file.delete();
+        }
+        LOGGER.i("Embedding cache has %d entries", cache.entries.size());
+        return cache;
+    }
+
+    private EmbeddingCache(File file, int modelVersion, int dimensions) {
+        this.file = file;
+        this.modelVersion = modelVersion;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Returns the SHA-1 of the data.
+     */
+    public static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime provides SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized Entry get(byte[] hash) {
+        return entries.get(key(hash));
+    }
+
+    public synchronized void put(byte[] hash, Entry entry) {
+        entries.put(key(hash), entry);
+
+        boolean writeHeader = !file.exists();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (writeHeader) {
+                out.writeInt(MAGIC);
+                out.writeInt(modelVersion);
+                out.writeInt(dimensions);
+            }
+
+            out.write(hash);
+            out.writeBoolean(entry.box != null);
+            if (entry.box != null) {
+                out.writeFloat(entry.box.left);
+                out.writeFloat(entry.box.top);
+                out.writeFloat(entry.box.right);
+                out.writeFloat(entry.box.bottom);
+                for (float v : entry.embedding) {
+                    out.writeFloat(v);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to append to embedding cache");
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void read() throws IOException {
+        if (!file.exists()) return;
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != modelVersion
+                    || in.readInt() != dimensions) {
+                LOGGER.i("Embedding cache is for another model, discarding it");
+                file.delete();
+                return;
+            }
+            validLength = HEADER_SIZE;
+
+            byte[] hash = new byte[HASH_SIZE];
+            while (true) {
+                try {
+                    in.readFully(hash);
+                    RectF box = null;
+                    float[] embedding = null;
+                    if (in.readBoolean()) {
+                        box = new RectF(in.readFloat(), in.readFloat(),
+                                in.readFloat(), in.readFloat());
+                        embedding = new float[dimensions];
+                        for (int i = 0; i < dimensions; i++) {
+                            embedding[i] = in.readFloat();
+                        }
+                    }
+                    entries.put(key(hash), new Entry(box, embedding));
+                    validLength += HASH_SIZE + 1 + (box != null ? (4 + dimensions) * 4 : 0);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated header.
+            validLength = 0;
+        }
+
+        if (validLength < file.length()) {
+            LOGGER.w("Truncating incomplete embedding cache record");
+            if (validLength == 0) {
+                file.delete();
+                return;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private static String key(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -1,19 +1,28 @@
 package pp.facerecognizer.env;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.os.Environment;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
 
 public class FileUtils {
@@ -24,6 +33,13 @@ public class FileUtils {
     public static final String DATA_FILE = "data";
     public static final String MODEL_FILE = "model";
     public static final String LABEL_FILE = "label";
+    public static final String SESSION_FILE = "session";
+    public static final String INDEX_FILE = "index";
+    public static final String GALLERY_FILE = "gallery";
+    public static final String PCA_FILE = "pca";
+    public static final String PCA_DATA_FILE = "data_pca";
+    public static final String PCA_MODEL_FILE = "model_pca";
+    public static final String EMBEDDING_CACHE_FILE = "embeddings";
 
     /**
      * Saves a Bitmap object to disk for analysis.
@@ -54,40 +70,62 @@ public class FileUtils {
     }
 
     public static void copyAsset(AssetManager mgr, String filename) {
-        InputStream in = null;
-        OutputStream out = null;
+        File file = new File(ROOT + File.separator + filename);
 
+        // Uncompressed assets can be copied by the kernel without passing through the heap.
+        AssetFileDescriptor afd = null;
         try {
-            File file = new File(ROOT + File.separator + filename);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
+            afd = mgr.openFd(filename);
+        } catch (FileNotFoundException e) {
+            LOGGER.w("Asset %s is compressed, falling back to a stream copy", filename);
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+            return;
+        }
 
-            in = mgr.open(filename);
-            out = new FileOutputStream(file);
+        if (afd != null) {
+            try (AssetFileDescriptor asset = afd;
+                 FileInputStream in = new FileInputStream(asset.getFileDescriptor());
+                 FileOutputStream out = new FileOutputStream(file)) {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
 
-            byte[] buffer = new byte[1024];
-            int read;
-            while((read = in.read(buffer)) != -1){
-                out.write(buffer, 0, read);
-            }
-        } catch (Exception e) {
-            LOGGER.e(e, "Excetion!");
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    LOGGER.e(e, "IOExcetion!");
+                long position = asset.getStartOffset();
+                long remaining = asset.getLength();
+                while (remaining > 0) {
+                    long transferred = src.transferTo(position, remaining, dst);
+                    if (transferred <= 0) break;
+                    position += transferred;
+                    remaining -= transferred;
                 }
+            } catch (IOException e) {
+                LOGGER.e(e, "IOException!");
             }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    LOGGER.e(e, "IOExcetion!");
-                }
+            return;
+        }
+
+        try (InputStream in = mgr.open(filename);
+             OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[16384];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
             }
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+        }
+    }
+
+    /**
+     * Memory-maps an uncompressed asset. Throws FileNotFoundException if the asset is
+     * compressed inside the APK, see aaptOptions.noCompress in build.gradle.
+     */
+    public static MappedByteBuffer mapAsset(AssetManager mgr, String filename) throws IOException {
+        try (AssetFileDescriptor afd = mgr.openFd(filename);
+             FileInputStream in = new FileInputStream(afd.getFileDescriptor())) {
+            // The mapping stays valid after the channel is closed.
+            return in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
         }
     }
 
@@ -101,6 +139,154 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Receives the rows of an embedding data file.
+     */
+    public interface EmbeddingConsumer {
+        void accept(int label, float[] embedding);
+    }
+
+    /**
+     * Appends embeddings in LibSVM's sparse text format ("label 0:x0 1:x1 ...").
+     */
+    public static void appendEmbeddings(int label, List<float[]> list, String filename) {
+        appendEmbeddings(Collections.nCopies(list.size(), label), list, filename);
+    }
+
+    /**
+     * Appends each embedding with the label at the same position, in a single write.
+     */
+    public static void appendEmbeddings(List<Integer> labels, List<float[]> list,
+                                        String filename) {
+        // An empty list would append a blank line, which LibSVM rejects.
+        if (list.isEmpty()) return;
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < list.size(); i++) {
+            float[] array = list.get(i);
+            builder.append(labels.get(i));
+            for (int j = 0; j < array.length; j++) {
+                builder.append(" ").append(j).append(":").append(array[j]);
+            }
+            if (i < list.size() - 1) builder.append(System.lineSeparator());
+        }
+        appendText(builder.toString(), filename);
+    }
+
+    /**
+     * Drops blank lines from a data file, which earlier versions appended when enrolling
+     * photos without a face. The file is only rewritten if it has any.
+     */
+    public static void removeBlankLines(String filename) {
+        File file = new File(ROOT + File.separator + filename);
+        if (!file.exists()) return;
+
+        List<String> lines = new ArrayList<>();
+        boolean blank = false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    blank = true;
+                } else {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+            return;
+        }
+        if (!blank) return;
+
+        LOGGER.w("Removing blank lines from %s", filename);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+        }
+    }
+
+    /**
+     * Drops the rows of the label from a file written by appendEmbeddings() and returns
+     * how many there were. The file is only rewritten if it has any.
+     */
+    public static int removeEmbeddings(int label, String filename) {
+        File file = new File(ROOT + File.separator + filename);
+        if (!file.exists()) return 0;
+
+        List<String> lines = new ArrayList<>();
+        int removed = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                int end = trimmed.indexOf(' ');
+                if (end > 0 && (int) Double.parseDouble(trimmed.substring(0, end)) == label) {
+                    removed++;
+                } else {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+            return 0;
+        }
+        if (removed == 0) return 0;
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "IOException!");
+        }
+        return removed;
+    }
+
+    /**
+     * Reads a file written by appendEmbeddings(). Rows are passed to the consumer in order.
+     */
+    public static void readEmbeddings(String filename, int dimensions, EmbeddingConsumer consumer)
+            throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(ROOT + File.separator + filename))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split(" ");
+                if (tokens.length < 2) continue;
+
+                int label = (int) Double.parseDouble(tokens[0]);
+                float[] embedding = new float[dimensions];
+                for (int i = 1; i < tokens.length; i++) {
+                    int separator = tokens[i].indexOf(':');
+                    int index = Integer.parseInt(tokens[i].substring(0, separator));
+                    if (index < dimensions) {
+                        embedding[index] = Float.parseFloat(tokens[i].substring(separator + 1));
+                    }
+                }
+                consumer.accept(label, embedding);
+            }
+        }
+    }
+
+    /**
+     * Reads the stream to the end and closes it.
+     */
+    public static byte[] readBytes(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 16 * 1024));
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
     public static ArrayList<String> readLabel(String filename) throws FileNotFoundException{
         Scanner s = new Scanner(new File(ROOT + File.separator + filename));
         ArrayList<String> list = new ArrayList<>();
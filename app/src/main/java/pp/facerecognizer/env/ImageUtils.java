@@ -57,6 +57,19 @@ public class ImageUtils {
         FileUtils.saveBitmap(bitmap, "preview.png");
     }
 
+    /**
+     * Returns the largest BitmapFactory.Options.inSampleSize (a power of two) that keeps
+     * a width x height image at least minWidth x minHeight.
+     */
+    public static int getInSampleSize(
+            final int width, final int height, final int minWidth, final int minHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= minWidth && height / (sampleSize * 2) >= minHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
     // are normalized to eight bits.
     static final int kMaxChannelValue = 262143;
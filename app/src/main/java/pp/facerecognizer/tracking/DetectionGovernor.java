@@ -0,0 +1,97 @@
+package pp.facerecognizer.tracking;
+
+/**
+ * Decides per preview frame whether to start a detection, so a static scene is only
+ * re-detected every idleIntervalMs while any motion brings detection back to full rate
+ * on the next frame.
+ * Motion is the tracker's mean keypoint displacement, see MultiBoxTracker#getFrameMotion().
+ * Independently of motion, the detection thread is kept busy for at most cpuBudget of the
+ * wall time, using the measured detection latency.
+ */
+public class DetectionGovernor {
+    public static final float DEFAULT_MOTION_THRESHOLD = 0.75f;
+    public static final long DEFAULT_IDLE_INTERVAL_MS = 1000;
+    public static final float DEFAULT_CPU_BUDGET = 0.8f;
+
+    // Detection stays at full rate this long after the last motion, to catch faces that
+    // only become detectable once the person stops.
+    private static final long MOTION_HOLD_MS = 1500;
+    // Weight of the newest sample in the latency moving average.
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    private final float motionThreshold;
+    private final long idleIntervalMs;
+    private final float cpuBudget;
+
+    private long lastMotionTime = Long.MIN_VALUE / 2;
+    private long lastDetectionStart = Long.MIN_VALUE / 2;
+    private long lastDetectionEnd = Long.MIN_VALUE / 2;
+    private float averageLatencyMs;
+
+    private long detections;
+    private long skippedFrames;
+
+    public DetectionGovernor() {
+        this(DEFAULT_MOTION_THRESHOLD, DEFAULT_IDLE_INTERVAL_MS, DEFAULT_CPU_BUDGET);
+    }
+
+    /**
+     * @param motionThreshold mean keypoint displacement in pixels above which a frame moves.
+     * @param idleIntervalMs time between detections while nothing moves.
+     * @param cpuBudget largest fraction of time spent detecting, in (0, 1].
+     */
+    public DetectionGovernor(float motionThreshold, long idleIntervalMs, float cpuBudget) {
+        this.motionThreshold = motionThreshold;
+        this.idleIntervalMs = idleIntervalMs;
+        this.cpuBudget = cpuBudget;
+    }
+
+    /**
+     * Records the motion of a new frame. Negative motion means it is unknown, which counts
+     * as motion.
+     */
+    public synchronized void onFrame(long timeMs, float motion) {
+        if (motion < 0 || motion > motionThreshold) {
+            lastMotionTime = timeMs;
+        }
+    }
+
+    /**
+     * Returns true if a detection should start now, given that none is running.
+     */
+    public synchronized boolean shouldDetect(long timeMs) {
+        // Pause long enough after the last detection to stay within the CPU budget.
+        long budgetGap = (long) (averageLatencyMs * (1 - cpuBudget) / cpuBudget);
+        if (timeMs - lastDetectionEnd < budgetGap) {
+            skippedFrames++;
+            return false;
+        }
+
+        // Motion after the last detected frame, or recently enough, means things changed.
+        boolean moving = lastMotionTime >= lastDetectionStart
+                || timeMs - lastMotionTime < MOTION_HOLD_MS;
+        if (!moving && timeMs - lastDetectionStart < idleIntervalMs) {
+            skippedFrames++;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void onDetectionStarted(long timeMs) {
+        lastDetectionStart = timeMs;
+        detections++;
+    }
+
+    public synchronized void onDetectionFinished(long timeMs) {
+        lastDetectionEnd = timeMs;
+        float latency = timeMs - lastDetectionStart;
+        averageLatencyMs = detections == 1
+                ? latency
+                : averageLatencyMs + LATENCY_SMOOTHING * (latency - averageLatencyMs);
+    }
+
+    public synchronized String getStatString() {
+        return String.format("Detections: %d, skipped frames: %d, latency: %.0fms",
+                detections, skippedFrames, averageLatencyMs);
+    }
+}
@@ -0,0 +1,323 @@
+package pp.facerecognizer.tracking;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tracker for devices without the native tracking library. It never looks at the image:
+ * boxes move on at the velocity estimated from their detections, and a detection that
+ * overlaps a tracked box enough continues that box's track, keeping its id and motion.
+ *
+ * Positions and velocities follow an alpha-beta filter, the steady-state form of a
+ * constant-velocity Kalman filter. Velocities are per timestamp unit. As nothing confirms a
+ * prediction between detections, the correlation decays every frame, so MultiBoxTracker
+ * drops boxes that are not detected again, and immediately once they leave the frame.
+ *
+ * nextFrame() allocates nothing.
+ */
+public class JavaObjectTracker implements Tracker {
+    // A detection overlapping a track by at least this IoU continues that track. Low, since a
+    // new track has no velocity yet and a moving face may be well off by its next detection.
+    // MultiBoxTracker replaces the continued track's box by its id, whatever the overlap.
+    private static final float ASSOCIATION_IOU = 0.1f;
+
+    // Weights of the detection error in the position and the velocity update.
+    private static final float POSITION_GAIN = 0.85f;
+    private static final float VELOCITY_GAIN = 0.5f;
+
+    // Correlation factor per frame without detection. Goes below MultiBoxTracker's
+    // MIN_CORRELATION after about 60 frames.
+    private static final float CORRELATION_DECAY = 0.98f;
+
+    // Frames of motion drawn as debug output.
+    private static final float DEBUG_MOTION_FRAMES = 10.0f;
+
+    private final int frameWidth;
+    private final int frameHeight;
+
+    private final List<Track> tracks = new ArrayList<Track>();
+    private int nextId;
+
+    private long lastTimestamp;
+    private boolean released;
+
+    // Scratch state, guarded by this.
+    private final RectF trackRect = new RectF();
+    private final RectF intersection = new RectF();
+
+    public JavaObjectTracker(final int frameWidth, final int frameHeight) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+    }
+
+    @Override
+    public synchronized void nextFrame(
+            final byte[] frameData, final byte[] uvData,
+            final long timestamp, final float[] transformationMatrix,
+            final boolean updateDebugInfo) {
+        if (released) {
+            return;
+        }
+
+        final long elapsed = lastTimestamp > 0 ? timestamp - lastTimestamp : 0;
+        lastTimestamp = timestamp;
+
+        for (int i = 0; i < tracks.size(); ++i) {
+            final Track track = tracks.get(i);
+            track.centerX += track.velocityX * elapsed;
+            track.centerY += track.velocityY * elapsed;
+            if (track.centerX < 0 || track.centerX > frameWidth
+                    || track.centerY < 0 || track.centerY > frameHeight) {
+                track.correlation = 0.0f;
+            } else {
+                track.correlation *= CORRELATION_DECAY;
+            }
+        }
+    }
+
+    /**
+     * Starts a track at the detected box. If the box continues an existing track, that track
+     * is corrected towards the detection and the new one starts from its state and id, so
+     * whichever of the two MultiBoxTracker keeps carries on the same object.
+     */
+    @Override
+    public synchronized Track trackObject(
+            final RectF position, final long timestamp, final byte[] frameData) {
+        final long detectionTime = Math.min(timestamp, lastTimestamp);
+        final Track match = findTrack(position, detectionTime);
+
+        final Track track = new Track();
+        if (match != null) {
+            match.correct(position, detectionTime);
+            track.set(match);
+        } else {
+            track.id = nextId++;
+            track.centerX = position.centerX();
+            track.centerY = position.centerY();
+            track.width = position.width();
+            track.height = position.height();
+            track.lastDetectionTime = detectionTime;
+        }
+        track.correlation = 1.0f;
+        tracks.add(track);
+        return track;
+    }
+
+    @Override
+    public synchronized RectF getCurrentPosition(final long timestamp, final RectF oldPosition) {
+        final RectF newPosition = new RectF(oldPosition);
+        if (timestamp <= 0 || timestamp > lastTimestamp) {
+            return newPosition;
+        }
+
+        final Track match = findTrack(oldPosition, timestamp);
+        if (match != null) {
+            final long elapsed = lastTimestamp - timestamp;
+            newPosition.offset(match.velocityX * elapsed, match.velocityY * elapsed);
+        }
+        return newPosition;
+    }
+
+    /**
+     * Unknown, as no keypoints are followed. Negative motion keeps detection at full rate,
+     * which this tracker depends on.
+     */
+    @Override
+    public float getFrameMotion() {
+        return -1.0f;
+    }
+
+    @Override
+    public DebugState createDebugState() {
+        return new MotionDebugState();
+    }
+
+    /**
+     * Copies each track's predicted motion over the next few frames.
+     */
+    @Override
+    public synchronized void copyDebugState(final DebugState state) {
+        final MotionDebugState copy = (MotionDebugState) state;
+        copy.setLineCount(tracks.size());
+        for (int i = 0; i < tracks.size(); ++i) {
+            final Track track = tracks.get(i);
+            copy.lines[4 * i] = track.centerX;
+            copy.lines[4 * i + 1] = track.centerY;
+            copy.lines[4 * i + 2] = track.centerX + track.velocityX * DEBUG_MOTION_FRAMES;
+            copy.lines[4 * i + 3] = track.centerY + track.velocityY * DEBUG_MOTION_FRAMES;
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        tracks.clear();
+        released = true;
+    }
+
+    /**
+     * Returns the track that overlaps the given box most at the given time, if by at least
+     * ASSOCIATION_IOU.
+     */
+    private Track findTrack(final RectF position, final long timestamp) {
+        Track bestTrack = null;
+        float bestIou = ASSOCIATION_IOU;
+        for (int i = 0; i < tracks.size(); ++i) {
+            final Track track = tracks.get(i);
+            track.getPosition(timestamp, trackRect);
+            final float iou = getIntersectionOverUnion(position, trackRect);
+            if (iou >= bestIou) {
+                bestIou = iou;
+                bestTrack = track;
+            }
+        }
+        return bestTrack;
+    }
+
+    private float getIntersectionOverUnion(final RectF a, final RectF b) {
+        if (!intersection.setIntersect(a, b)) {
+            return 0.0f;
+        }
+        final float intersectArea = intersection.width() * intersection.height();
+        final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
+        return totalArea > 0 ? intersectArea / totalArea : 0.0f;
+    }
+
+    /**
+     * Motion lines in the preview frame, copied by copyDebugState(). Grows with the number of
+     * tracks and allocates nothing otherwise.
+     */
+    private static class MotionDebugState implements DebugState {
+        // x1, y1, x2, y2 per line.
+        private float[] lines = new float[0];
+        private float[] mappedLines = new float[0];
+        private int numLines;
+
+        private final Paint paint = new Paint();
+
+        MotionDebugState() {
+            paint.setColor(Color.CYAN);
+            paint.setStrokeWidth(4.0f);
+        }
+
+        void setLineCount(final int count) {
+            if (4 * count > lines.length) {
+                lines = new float[4 * count];
+            }
+            numLines = count;
+        }
+
+        @Override
+        public void draw(final Canvas canvas, final Matrix frameToCanvas) {
+            if (mappedLines.length < lines.length) {
+                mappedLines = new float[lines.length];
+            }
+            frameToCanvas.mapPoints(mappedLines, 0, lines, 0, 2 * numLines);
+            canvas.drawLines(mappedLines, 0, 4 * numLines, paint);
+        }
+    }
+
+    /**
+     * A predicted box, centered at centerX, centerY as of the last frame.
+     */
+    public class Track implements TrackedBox {
+        // Shared by all tracks of one object.
+        private int id;
+
+        private float centerX;
+        private float centerY;
+        private float width;
+        private float height;
+        private float velocityX;
+        private float velocityY;
+
+        private long lastDetectionTime;
+        private float correlation;
+
+        private void set(final Track other) {
+            id = other.id;
+            centerX = other.centerX;
+            centerY = other.centerY;
+            width = other.width;
+            height = other.height;
+            velocityX = other.velocityX;
+            velocityY = other.velocityY;
+            lastDetectionTime = other.lastDetectionTime;
+        }
+
+        /**
+         * Applies a detection from the given time to the position and velocity.
+         */
+        private void correct(final RectF detection, final long timestamp) {
+            // Error of the prediction at the time of the detection.
+            final long age = lastTimestamp - timestamp;
+            final float errorX = detection.centerX() - (centerX - velocityX * age);
+            final float errorY = detection.centerY() - (centerY - velocityY * age);
+
+            final long interval = timestamp - lastDetectionTime;
+            if (interval > 0) {
+                velocityX += VELOCITY_GAIN * errorX / interval;
+                velocityY += VELOCITY_GAIN * errorY / interval;
+                lastDetectionTime = timestamp;
+            }
+
+            // The corrected position at the detection time, moved on to the last frame.
+            centerX = detection.centerX() - (1.0f - POSITION_GAIN) * errorX + velocityX * age;
+            centerY = detection.centerY() - (1.0f - POSITION_GAIN) * errorY + velocityY * age;
+            width += POSITION_GAIN * (detection.width() - width);
+            height += POSITION_GAIN * (detection.height() - height);
+        }
+
+        /**
+         * Writes where the box was, or is predicted to have been, at the given time.
+         */
+        private void getPosition(final long timestamp, final RectF position) {
+            final long age = lastTimestamp - timestamp;
+            final float x = centerX - velocityX * age;
+            final float y = centerY - velocityY * age;
+            position.set(x - width / 2, y - height / 2, x + width / 2, y + height / 2);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public float getCurrentCorrelation() {
+            synchronized (JavaObjectTracker.this) {
+                return correlation;
+            }
+        }
+
+        @Override
+        public RectF getTrackedPositionInPreviewFrame() {
+            final RectF position = new RectF();
+            getTrackedPositionInPreviewFrame(position);
+            return position;
+        }
+
+        @Override
+        public void getTrackedPositionInPreviewFrame(final RectF position) {
+            synchronized (JavaObjectTracker.this) {
+                getPosition(lastTimestamp, position);
+            }
+        }
+
+        @Override
+        public void stopTracking() {
+            synchronized (JavaObjectTracker.this) {
+                tracks.remove(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Track " + id;
+        }
+    }
+}
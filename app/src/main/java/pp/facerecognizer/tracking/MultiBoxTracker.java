@@ -30,12 +30,13 @@ import android.graphics.RectF;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.util.TypedValue;
-import android.widget.Toast;
 
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pp.facerecognizer.BuildConfig;
 import pp.facerecognizer.Classifier.Recognition;
 import pp.facerecognizer.env.BorderedText;
 import pp.facerecognizer.env.ImageUtils;
@@ -43,12 +44,16 @@ import pp.facerecognizer.env.Logger;
 
 /**
  * A tracker wrapping ObjectTracker that also handles non-max suppression and matching existing
- * objects to new detections.
+ * objects to new detections. Without the native tracking library, JavaObjectTracker stands in
+ * for ObjectTracker.
  */
 public class MultiBoxTracker {
 
   private final Logger logger = new Logger();
 
+  // Tracks with JavaObjectTracker even where the native tracker is available.
+  private static final boolean USE_JAVA_TRACKER = false;
+
   private static final float TEXT_SIZE_DIP = 18;
 
   // Maximum percentage of a box that can be overlapped by another box at detection time. Otherwise
@@ -73,27 +78,104 @@ public class MultiBoxTracker {
 
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
 
-  private ObjectTracker objectTracker;
+  private Tracker objectTracker;
 
-  private final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  // Boxes of the last detection in the preview frame, with their confidence labels.
+  private final List<Pair<String, RectF>> detectionRects = new LinkedList<Pair<String, RectF>>();
 
   private static class TrackedRecognition {
 
-    ObjectTracker.TrackedObject trackedObject;
+    Tracker.TrackedBox trackedObject;
     RectF location;
     float detectionConfidence;
     int color;
     String title;
+    // Drawn next to the box, built once since title and confidence do not change.
+    String label;
   }
 
   private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
 
+  /**
+   * What draw() and drawDebug() show, copied from the tracking state whenever it changes.
+   * Snapshots go through a triple buffer: one is filled under the tracker lock, one is drawn
+   * on the UI thread and the third is handed between them, so drawing never takes the lock.
+   */
+  private static class RenderSnapshot {
+    int frameWidth;
+    int frameHeight;
+    int sensorOrientation;
+
+    // False until the tracker starts and once it is released.
+    boolean tracking;
+    // The tracker's debug output, created by the first tracker that fills this snapshot.
+    Tracker.DebugState debugState;
+
+    // Tracked objects, at most one per color.
+    int numObjects;
+    final RectF[] locations = new RectF[COLORS.length];
+    final String[] titles = new String[COLORS.length];
+    final String[] labels = new String[COLORS.length];
+    final int[] colors = new int[COLORS.length];
+    final float[] correlations = new float[COLORS.length];
+
+    // Boxes of the last detection, in the preview frame.
+    int numDetections;
+    RectF[] detectionRects = new RectF[0];
+    String[] detectionLabels = new String[0];
+
+    RenderSnapshot() {
+      for (int i = 0; i < locations.length; ++i) {
+        locations[i] = new RectF();
+      }
+    }
+
+    void setDetectionCount(final int count) {
+      if (count > detectionRects.length) {
+        final RectF[] rects = new RectF[count];
+        System.arraycopy(detectionRects, 0, rects, 0, detectionRects.length);
+        for (int i = detectionRects.length; i < count; ++i) {
+          rects[i] = new RectF();
+        }
+        detectionRects = rects;
+        detectionLabels = new String[count];
+      }
+      numDetections = count;
+    }
+  }
+
+  // Set on the index in publishedSnapshot until the UI thread takes that snapshot.
+  private static final int SNAPSHOT_FRESH = 4;
+
+  private final RenderSnapshot[] snapshots = {
+      new RenderSnapshot(), new RenderSnapshot(), new RenderSnapshot()
+  };
+  private final AtomicInteger publishedSnapshot = new AtomicInteger(2);
+  // Guarded by this.
+  private int writeSnapshot = 0;
+  // Only used on the UI thread.
+  private int readSnapshot = 1;
+  private final RectF canvasRect = new RectF();
+
   private final Paint boxPaint = new Paint();
+  private final Paint debugTextPaint = new Paint();
+  private final Paint debugBoxPaint = new Paint();
+
+  // Debug correlation labels per snapshot slot, rebuilt when the rounded value changes.
+  // Only used on the UI thread.
+  private final String[] correlationLabels = new String[COLORS.length];
+  private final int[] correlationLabelValues = new int[COLORS.length];
 
   private final float textSizePx;
   private final BorderedText borderedText;
 
+  // Only used on the UI thread, rebuilt when the canvas or frame geometry changes.
   private Matrix frameToCanvasMatrix;
+  private int matrixCanvasWidth;
+  private int matrixCanvasHeight;
+  private int matrixFrameWidth;
+  private int matrixFrameHeight;
+  private int matrixSensorOrientation;
 
   private int frameWidth;
   private int frameHeight;
@@ -116,6 +198,17 @@ public class MultiBoxTracker {
     boxPaint.setStrokeJoin(Join.ROUND);
     boxPaint.setStrokeMiter(100);
 
+    debugTextPaint.setColor(Color.WHITE);
+    debugTextPaint.setTextSize(60.0f);
+
+    debugBoxPaint.setColor(Color.RED);
+    debugBoxPaint.setAlpha(200);
+    debugBoxPaint.setStyle(Style.STROKE);
+
+    for (int i = 0; i < correlationLabelValues.length; ++i) {
+      correlationLabelValues[i] = Integer.MIN_VALUE;
+    }
+
     textSizePx =
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
@@ -126,86 +219,102 @@ public class MultiBoxTracker {
     return frameToCanvasMatrix;
   }
 
-  public synchronized void drawDebug(final Canvas canvas) {
-    final Paint textPaint = new Paint();
-    textPaint.setColor(Color.WHITE);
-    textPaint.setTextSize(60.0f);
-
-    final Paint boxPaint = new Paint();
-    boxPaint.setColor(Color.RED);
-    boxPaint.setAlpha(200);
-    boxPaint.setStyle(Style.STROKE);
-
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
-      canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+  public void drawDebug(final Canvas canvas) {
+    final Matrix frameToCanvas = getFrameToCanvasMatrix();
+    if (frameToCanvas == null) {
+      return;
+    }
+    final RenderSnapshot snapshot = acquireSnapshot();
+
+    for (int i = 0; i < snapshot.numDetections; ++i) {
+      final RectF rect = canvasRect;
+      frameToCanvas.mapRect(rect, snapshot.detectionRects[i]);
+      final String label = snapshot.detectionLabels[i];
+      canvas.drawRect(rect, debugBoxPaint);
+      canvas.drawText(label, rect.left, rect.top, debugTextPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), label);
     }
 
-    if (objectTracker == null) {
+    if (!snapshot.tracking) {
       return;
     }
 
     // Draw correlations.
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final ObjectTracker.TrackedObject trackedObject = recognition.trackedObject;
-
-      final RectF trackedPos = trackedObject.getTrackedPositionInPreviewFrame();
-
-      if (getFrameToCanvasMatrix().mapRect(trackedPos)) {
-        final String labelString = String.format("%.2f", trackedObject.getCurrentCorrelation());
-        borderedText.drawText(canvas, trackedPos.right, trackedPos.bottom, labelString);
+    for (int i = 0; i < snapshot.numObjects; ++i) {
+      final RectF trackedPos = canvasRect;
+      if (frameToCanvas.mapRect(trackedPos, snapshot.locations[i])) {
+        final int roundedCorrelation = Math.round(snapshot.correlations[i] * 100.0f);
+        if (correlationLabelValues[i] != roundedCorrelation) {
+          correlationLabelValues[i] = roundedCorrelation;
+          correlationLabels[i] = String.format("%.2f", roundedCorrelation / 100.0f);
+        }
+        borderedText.drawText(canvas, trackedPos.right, trackedPos.bottom, correlationLabels[i]);
       }
     }
 
-    final Matrix matrix = getFrameToCanvasMatrix();
-    objectTracker.drawDebug(canvas, matrix);
+    snapshot.debugState.draw(canvas, frameToCanvas);
   }
 
-  public synchronized void trackResults(
-      final List<Recognition> results, final byte[] frame, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(timestamp, results, frame);
+  /**
+   * Tracks the recognitions of one detection. frame is the luminance of the preview frame
+   * they were detected in, see Recognition#getTimestamp(); the boxes are moved to the latest
+   * frame through the optical flow recorded since, so they do not lag by the inference time.
+   */
+  public synchronized void trackResults(final List<Recognition> results, final byte[] frame) {
+    logger.i("Processing %d results", results.size());
+    processResults(results, frame);
+    publishSnapshot();
   }
 
-  public synchronized void draw(final Canvas canvas) {
+  public void draw(final Canvas canvas) {
     if (confirmDialogShowing) {
       return;
     }
 
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier =
-        Math.min(canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
-        ImageUtils.getTransformationMatrix(
-            frameWidth,
-            frameHeight,
-            (int) (multiplier * (rotated ? frameHeight : frameWidth)),
-            (int) (multiplier * (rotated ? frameWidth : frameHeight)),
-            sensorOrientation,
-            false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos =
-          (objectTracker != null)
-              ? recognition.trackedObject.getTrackedPositionInPreviewFrame()
-              : new RectF(recognition.location);
+    final RenderSnapshot snapshot = acquireSnapshot();
+    final int frameWidth = snapshot.frameWidth;
+    final int frameHeight = snapshot.frameHeight;
+    final int sensorOrientation = snapshot.sensorOrientation;
+    if (frameWidth == 0 || frameHeight == 0) {
+      return;
+    }
 
-      getFrameToCanvasMatrix().mapRect(trackedPos);
-      boxPaint.setColor(recognition.color);
+    if (frameToCanvasMatrix == null
+        || matrixCanvasWidth != canvas.getWidth()
+        || matrixCanvasHeight != canvas.getHeight()
+        || matrixFrameWidth != frameWidth
+        || matrixFrameHeight != frameHeight
+        || matrixSensorOrientation != sensorOrientation) {
+      final boolean rotated = sensorOrientation % 180 == 90;
+      final float multiplier =
+          Math.min(canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
+              canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
+      frameToCanvasMatrix =
+          ImageUtils.getTransformationMatrix(
+              frameWidth,
+              frameHeight,
+              (int) (multiplier * (rotated ? frameHeight : frameWidth)),
+              (int) (multiplier * (rotated ? frameWidth : frameHeight)),
+              sensorOrientation,
+              false);
+      matrixCanvasWidth = canvas.getWidth();
+      matrixCanvasHeight = canvas.getHeight();
+      matrixFrameWidth = frameWidth;
+      matrixFrameHeight = frameHeight;
+      matrixSensorOrientation = sensorOrientation;
+    }
+    for (int index = 0; index < snapshot.numObjects; ++index) {
+      final RectF trackedPos = canvasRect;
+      getFrameToCanvasMatrix().mapRect(trackedPos, snapshot.locations[index]);
+      boxPaint.setColor(snapshot.colors[index]);
 
       final float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
-      final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format("%s %.2f", recognition.title, recognition.detectionConfidence)
-              : String.format("%.2f", recognition.detectionConfidence);
-
-      if (!TextUtils.isEmpty(recognition.title)) {
+      final String title = snapshot.titles[index];
+      if (!TextUtils.isEmpty(title)) {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
-        builder.setTitle("Confirm it's you!").setMessage("Are you " + recognition.title + "?")
+        builder.setTitle("Confirm it's you!").setMessage("Are you " + title + "?")
             .setPositiveButton(
                 android.R.string.ok,
                 (dialogInterface, i) -> {
@@ -226,12 +335,96 @@ public class MultiBoxTracker {
         return;
       }
 
-      borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.bottom, labelString);
+      borderedText.drawText(
+          canvas, trackedPos.left + cornerSize, trackedPos.bottom, snapshot.labels[index]);
     }
   }
 
+  private static String getLabel(final String title, final float detectionConfidence) {
+    return !TextUtils.isEmpty(title)
+        ? String.format("%s %.2f", title, detectionConfidence)
+        : String.format("%.2f", detectionConfidence);
+  }
+
+  /**
+   * Copies what is to be drawn into the free snapshot and publishes it for the UI thread.
+   */
+  private void publishSnapshot() {
+    final RenderSnapshot snapshot = snapshots[writeSnapshot];
+    snapshot.frameWidth = frameWidth;
+    snapshot.frameHeight = frameHeight;
+    snapshot.sensorOrientation = sensorOrientation;
+    snapshot.tracking = objectTracker != null;
+    if (objectTracker != null) {
+      if (snapshot.debugState == null) {
+        snapshot.debugState = objectTracker.createDebugState();
+      }
+      objectTracker.copyDebugState(snapshot.debugState);
+    }
+
+    snapshot.numObjects = 0;
+    for (final TrackedRecognition recognition : trackedObjects) {
+      if (snapshot.numObjects == COLORS.length) {
+        break;
+      }
+      final int i = snapshot.numObjects++;
+      if (objectTracker != null) {
+        recognition.trackedObject.getTrackedPositionInPreviewFrame(snapshot.locations[i]);
+        snapshot.correlations[i] = recognition.trackedObject.getCurrentCorrelation();
+      } else {
+        snapshot.locations[i].set(recognition.location);
+        snapshot.correlations[i] = 0.0f;
+      }
+      snapshot.titles[i] = recognition.title;
+      snapshot.labels[i] = recognition.label;
+      snapshot.colors[i] = recognition.color;
+    }
+
+    snapshot.setDetectionCount(detectionRects.size());
+    int i = 0;
+    for (final Pair<String, RectF> detection : detectionRects) {
+      snapshot.detectionRects[i].set(detection.second);
+      snapshot.detectionLabels[i] = detection.first;
+      ++i;
+    }
+
+    writeSnapshot = publishedSnapshot.getAndSet(writeSnapshot | SNAPSHOT_FRESH) & ~SNAPSHOT_FRESH;
+  }
+
+  /**
+   * Returns the newest published snapshot. Called on the UI thread only.
+   */
+  private RenderSnapshot acquireSnapshot() {
+    if ((publishedSnapshot.get() & SNAPSHOT_FRESH) != 0) {
+      readSnapshot = publishedSnapshot.getAndSet(readSnapshot) & ~SNAPSHOT_FRESH;
+    }
+    return snapshots[readSnapshot];
+  }
+
+  /**
+   * Returns the mean keypoint motion of the last frame in preview frame pixels, or -1 when
+   * it is unknown, as with JavaObjectTracker.
+   */
+  public synchronized float getFrameMotion() {
+    return objectTracker != null ? objectTracker.getFrameMotion() : -1f;
+  }
+
   private boolean initialized = false;
 
+  /**
+   * Frees the native tracker and drops all tracked objects. Later frames are ignored.
+   */
+  public synchronized void release() {
+    trackedObjects.clear();
+    detectionRects.clear();
+    if (objectTracker != null) {
+      objectTracker.release();
+      objectTracker = null;
+    }
+    initialized = true;
+    publishSnapshot();
+  }
+
   public synchronized void onFrame(
       final int w,
       final int h,
@@ -240,25 +433,25 @@ public class MultiBoxTracker {
       final byte[] frame,
       final long timestamp) {
     if (objectTracker == null && !initialized) {
-      ObjectTracker.clearInstance();
-
       logger.i("Initializing ObjectTracker: %dx%d", w, h);
-      objectTracker = ObjectTracker.getInstance(w, h, rowStride, true);
+      final TrackerConfig config = new TrackerConfig()
+          .setNumThreads(BuildConfig.TRACKER_THREADS)
+          .setFrameBudgetMs(BuildConfig.TRACKER_FRAME_BUDGET_MS);
+      objectTracker =
+          USE_JAVA_TRACKER ? null : ObjectTracker.getInstance(w, h, rowStride, config);
       frameWidth = w;
       frameHeight = h;
       this.sensorOrientation = sensorOrienation;
       initialized = true;
 
       if (objectTracker == null) {
-        String message =
-            "Object tracking support not found. "
-                + "See tensorflow/examples/android/README.md for details.";
-        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-        logger.e(message);
+        logger.w("Tracking with JavaObjectTracker, as native tracking is unavailable.");
+        objectTracker = new JavaObjectTracker(w, h);
       }
     }
 
     if (objectTracker == null) {
+      publishSnapshot();
       return;
     }
 
@@ -268,7 +461,7 @@ public class MultiBoxTracker {
     final LinkedList<TrackedRecognition> copyList =
         new LinkedList<TrackedRecognition>(trackedObjects);
     for (final TrackedRecognition recognition : copyList) {
-      final ObjectTracker.TrackedObject trackedObject = recognition.trackedObject;
+      final Tracker.TrackedBox trackedObject = recognition.trackedObject;
       final float correlation = trackedObject.getCurrentCorrelation();
       if (correlation < MIN_CORRELATION) {
         logger.v("Removing tracked object %s because NCC is %.2f", trackedObject, correlation);
@@ -278,28 +471,27 @@ public class MultiBoxTracker {
         availableColors.add(recognition.color);
       }
     }
+    publishSnapshot();
   }
 
-  private void processResults(
-      final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
+  private void processResults(final List<Recognition> results, final byte[] originalFrame) {
     final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+    detectionRects.clear();
 
     for (final Recognition result : results) {
       if (result.getLocation() == null) {
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+      final RectF detectionFrameRect =
+          objectTracker != null
+              ? objectTracker.getCurrentPosition(result.getTimestamp(), result.getLocation())
+              : new RectF(result.getLocation());
 
       logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+          "Result! Frame: " + result.getLocation() + " tracked to: " + detectionFrameRect);
 
-      screenRects.add(new Pair<>(result.getConfidence(), detectionScreenRect));
+      detectionRects.add(new Pair<>("" + result.getConfidence(), detectionFrameRect));
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
         logger.w("Degenerate rectangle! " + detectionFrameRect);
@@ -322,6 +514,8 @@ public class MultiBoxTracker {
         trackedRecognition.location = new RectF(potential.second.getLocation());
         trackedRecognition.trackedObject = null;
         trackedRecognition.title = potential.second.getTitle();
+        trackedRecognition.label =
+            getLabel(trackedRecognition.title, trackedRecognition.detectionConfidence);
         trackedRecognition.color = COLORS[trackedObjects.size()];
         trackedObjects.add(trackedRecognition);
 
@@ -334,14 +528,17 @@ public class MultiBoxTracker {
 
     logger.i("%d rects to track", rectsToTrack.size());
     for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      handleDetection(originalFrame, timestamp, potential);
+      handleDetection(originalFrame, potential);
     }
   }
 
   private void handleDetection(
-      final byte[] frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
-    final ObjectTracker.TrackedObject potentialObject =
-        objectTracker.trackObject(potential.second.getLocation(), timestamp, frameCopy);
+      final byte[] frameCopy, final Pair<Float, Recognition> potential) {
+    // The appearance is registered in the source frame and the native tracker forwards the
+    // box from there to the current frame.
+    final Tracker.TrackedBox potentialObject =
+        objectTracker.trackObject(
+            potential.second.getLocation(), potential.second.getTimestamp(), frameCopy);
 
     final float potentialCorrelation = potentialObject.getCurrentCorrelation();
     logger.v(
@@ -362,9 +559,21 @@ public class MultiBoxTracker {
     // first one from the color queue.
     TrackedRecognition recogToReplace = null;
 
+    // JavaObjectTracker continues the track of an object detected again under the same id. Its
+    // recognition is carried on with the new box instead of being compared by overlap, which
+    // may be below MAX_OVERLAP after fast motion.
+    final int trackId = getTrackId(potentialObject);
+    TrackedRecognition continued = null;
+
     // Look for intersections that will be overridden by this object or an intersection that would
     // prevent this one from being placed.
     for (final TrackedRecognition trackedRecognition : trackedObjects) {
+      if (trackId >= 0 && getTrackId(trackedRecognition.trackedObject) == trackId) {
+        removeList.add(trackedRecognition);
+        continued = trackedRecognition;
+        continue;
+      }
+
       final RectF a = trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame();
       final RectF b = potentialObject.getTrackedPositionInPreviewFrame();
       final RectF intersection = new RectF();
@@ -397,6 +606,10 @@ public class MultiBoxTracker {
       }
     }
 
+    if (continued != null) {
+      recogToReplace = continued;
+    }
+
     // If we're already tracking the max object and no intersections were found to bump off,
     // pick the worst current tracked object to remove, if it's also worse than this candidate
     // object.
@@ -445,14 +658,30 @@ public class MultiBoxTracker {
         potential.second.getTitle(),
         potential.first,
         potential.second.getLocation());
-    final TrackedRecognition trackedRecognition = new TrackedRecognition();
+    final TrackedRecognition trackedRecognition =
+        continued != null ? continued : new TrackedRecognition();
     trackedRecognition.detectionConfidence = potential.first;
     trackedRecognition.trackedObject = potentialObject;
-    trackedRecognition.title = potential.second.getTitle();
+    // A continued object keeps its title through detections that could not name it.
+    if (continued == null || !TextUtils.isEmpty(potential.second.getTitle())) {
+      trackedRecognition.title = potential.second.getTitle();
+    }
+    trackedRecognition.label =
+        getLabel(trackedRecognition.title, trackedRecognition.detectionConfidence);
 
     // Use the color from a replaced object before taking one from the color queue.
     trackedRecognition.color =
         recogToReplace != null ? recogToReplace.color : availableColors.poll();
     trackedObjects.add(trackedRecognition);
   }
+
+  /**
+   * Returns the id JavaObjectTracker shares between all tracks of one object, or -1 for boxes
+   * of the native tracker.
+   */
+  private static int getTrackId(final Tracker.TrackedBox trackedBox) {
+    return trackedBox instanceof JavaObjectTracker.Track
+        ? ((JavaObjectTracker.Track) trackedBox).getId()
+        : -1;
+  }
 }
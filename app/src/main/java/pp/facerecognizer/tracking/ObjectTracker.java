@@ -19,15 +19,11 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PointF;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
 
 import javax.microedition.khronos.opengles.GL10;
@@ -40,9 +36,9 @@ import pp.facerecognizer.env.Size;
  * It provides a simplified Java interface to the analogous native object defined by
  * jni/client_vision/tracking/object_tracker.*.
  *
- * Currently, the ObjectTracker is a singleton due to native code restrictions, and so must
- * be allocated by ObjectTracker.getInstance(). In addition, release() should be called
- * as soon as the ObjectTracker is no longer needed, and before a new one is created.
+ * Each ObjectTracker returned by ObjectTracker.getInstance() owns an independent native
+ * tracker, so several may track separate streams, each from its own thread. release()
+ * should be called as soon as an ObjectTracker is no longer needed.
  *
  * nextFrame() should be called as new frames become available, preferably as often as possible.
  *
@@ -50,7 +46,7 @@ import pp.facerecognizer.env.Size;
  * are associated with the ObjectTracker that created them, and are only valid while that
  * ObjectTracker still exists.
  */
-public class ObjectTracker {
+public class ObjectTracker implements Tracker {
     private static final Logger LOGGER = new Logger();
 
     private static boolean libraryFound = false;
@@ -73,141 +69,278 @@ public class ObjectTracker {
 
     /**
      * How many frames of optical flow deltas to record.
-     * TODO(andrewharp): Push this down to the native level so it can be polled
-     * efficiently into a an array for upload, instead of keeping a duplicate
-     * copy in Java.
      */
     private static final int MAX_FRAME_HISTORY_SIZE = 200;
 
-    private static final int DOWNSAMPLE_FACTOR = 2;
+    /**
+     * Bytes per keypoint in getKeypointsPacked() output: x1, y1, x2, y2 as little-endian
+     * unsigned 11.5 fixed point.
+     */
+    private static final int PACKED_KEYPOINT_SIZE = 8;
+
+    /**
+     * Bytes reserved for each frame in the flow history ring.
+     */
+    private static final int FRAME_DELTAS_SIZE =
+            TrackerConfig.MAX_KEYPOINTS * PACKED_KEYPOINT_SIZE;
+
+    // Adaptive mode: weight of the newest frame time in the moving average.
+    private static final float FRAME_TIME_SMOOTHING = 0.1f;
+    // Frames the moving average settles for after the budget changed.
+    private static final int BUDGET_SETTLE_FRAMES = 15;
+    // Frame time below this fraction of the budget counts as headroom.
+    private static final float BUDGET_HEADROOM = 0.6f;
+    // Keypoints the adaptive mode keeps at least, enough for one object.
+    private static final int MIN_BUDGET_KEYPOINTS = 16;
+
+    /**
+     * Floats per object in the tracked state filled by nextFrameNative(): handle, left, top,
+     * right, bottom (downsampled frame), correlation, visibility (0 or 1) and match score.
+     */
+    private static final int TRACKED_STATE_SIZE = 8;
+
+    /**
+     * Objects the tracked state buffer holds before it needs to grow.
+     */
+    private static final int INITIAL_TRACKED_STATE_CAPACITY = 16;
 
     private final byte[] downsampledFrame;
 
-    protected static ObjectTracker instance;
+    private final List<TrackedObject> trackedObjects;
+
+    // Live objects indexed by native handle, for applying the tracked state.
+    private TrackedObject[] objectsByHandle = new TrackedObject[INITIAL_TRACKED_STATE_CAPACITY];
 
-    private final Map<String, TrackedObject> trackedObjects;
+    // Reused across frames, so reading back the tracked state allocates nothing.
+    private float[] trackedState = new float[INITIAL_TRACKED_STATE_CAPACITY * TRACKED_STATE_SIZE];
 
     private long lastTimestamp;
 
+    // Null until the first debug update, then always keypointChange.
     private FrameChange lastKeypoints;
+    private final FrameChange keypointChange = new FrameChange();
+
+    // Mean keypoint displacement of the last frame, in preview frame pixels.
+    private float frameMotion;
 
-    private final Vector<PointF> debugHistory;
+    // Ring of x, y offsets drawn as the red history line, oldest first from debugHistoryStart.
+    private final float[] debugHistory = new float[MAX_DEBUG_HISTORY_SIZE * 2];
+    private int debugHistoryStart;
+    private int debugHistorySize;
 
-    private final LinkedList<TimestampedDeltas> timestampedDeltas;
+    // Ring of packed keypoint deltas with one FRAME_DELTAS_SIZE slot per frame, filled in
+    // place by getKeypointsPacked(). Holds historySize frames, oldest at historyStart.
+    private final byte[] historyDeltas = new byte[MAX_FRAME_HISTORY_SIZE * FRAME_DELTAS_SIZE];
+    private final long[] historyTimestamps = new long[MAX_FRAME_HISTORY_SIZE];
+    private final int[] historyKeypoints = new int[MAX_FRAME_HISTORY_SIZE];
+    private int historyStart;
+    private int historySize;
+
+    // Scratch box for native position queries, guarded by the tracker lock.
+    private final float[] positionValues = new float[4];
 
     protected final int frameWidth;
     protected final int frameHeight;
     private final int rowStride;
-    protected final boolean alwaysTrack;
+    protected final TrackerConfig config;
+    private final int downsampleFactor;
 
-    private static class TimestampedDeltas {
-        final long timestamp;
-        final byte[] deltas;
+    // Adaptive mode state, see TrackerConfig.setFrameBudgetMs().
+    private int budgetKeypoints;
+    private int budgetFlowLevels;
+    private float averageFrameMs;
+    private int framesSinceBudgetChange;
 
-        public TimestampedDeltas(final long timestamp, final byte[] deltas) {
-            this.timestamp = timestamp;
-            this.deltas = deltas;
-        }
-    }
+    private boolean released;
 
     /**
-     * A simple class that records keypoint information, which includes
-     * local location, score and type. This will be used in calculating
-     * FrameChange.
+     * The keypoints of the last frame pair, refilled in place on every debug update.
      */
-    public static class Keypoint {
-        public final float x;
-        public final float y;
-        public final float score;
-        public final int type;
+    public static class FrameChange {
+        public static final int KEYPOINT_STEP = 7;
 
-        public Keypoint(final float x, final float y) {
-            this.x = x;
-            this.y = y;
-            this.score = 0;
-            this.type = -1;
-        }
+        // x1, y1, found, x2, y2, score and type per keypoint, in the downsampled frame.
+        private final float[] framePoints = new float[TrackerConfig.MAX_KEYPOINTS * KEYPOINT_STEP];
+        private int numKeypoints;
 
-        public Keypoint(final float x, final float y, final float score, final int type) {
-            this.x = x;
-            this.y = y;
-            this.score = score;
-            this.type = type;
+        private float minScore;
+        private float maxScore;
+
+        void update(final int numKeypoints) {
+            float minScore = 100.0f;
+            float maxScore = -100.0f;
+
+            for (int i = 0; i < numKeypoints * KEYPOINT_STEP; i += KEYPOINT_STEP) {
+                final float score = framePoints[i + 5];
+                minScore = Math.min(minScore, score);
+                maxScore = Math.max(maxScore, score);
+            }
+
+            this.numKeypoints = numKeypoints;
+            this.minScore = minScore;
+            this.maxScore = maxScore;
         }
 
-        Keypoint delta(final Keypoint other) {
-            return new Keypoint(this.x - other.x, this.y - other.y);
+        public int getNumKeypoints() {
+            return numKeypoints;
         }
     }
 
     /**
-     * A simple class that could calculate Keypoint delta.
-     * This class will be used in calculating frame translation delta
-     * for optical flow.
+     * Frames of packed keypoint deltas copied out of the flow history by
+     * pollAccumulatedFlowData(). Frame i is getLength(i) bytes of getData() from
+     * getOffset(i), in the layout of getKeypointsPacked(). The caller owns it and can reuse
+     * it for every poll, so polling allocates nothing once it has grown to fit.
      */
-    public static class PointChange {
-        public final Keypoint keypointA;
-        public final Keypoint keypointB;
-        Keypoint pointDelta;
-        private final boolean wasFound;
+    public static class FlowData {
+        private byte[] data = new byte[0];
+        private final long[] timestamps = new long[MAX_FRAME_HISTORY_SIZE];
+        private final int[] offsets = new int[MAX_FRAME_HISTORY_SIZE];
+        private final int[] lengths = new int[MAX_FRAME_HISTORY_SIZE];
+        private int size;
 
-        public PointChange(final float x1, final float y1,
-                           final float x2, final float y2,
-                           final float score, final int type,
-                           final boolean wasFound) {
-            this.wasFound = wasFound;
+        public int size() {
+            return size;
+        }
 
-            keypointA = new Keypoint(x1, y1, score, type);
-            keypointB = new Keypoint(x2, y2);
+        public long getTimestamp(final int i) {
+            checkIndex(i);
+            return timestamps[i];
         }
 
-        public Keypoint getDelta() {
-            if (pointDelta == null) {
-                pointDelta = keypointB.delta(keypointA);
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getOffset(final int i) {
+            checkIndex(i);
+            return offsets[i];
+        }
+
+        public int getLength(final int i) {
+            checkIndex(i);
+            return lengths[i];
+        }
+
+        private void checkIndex(final int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Frame " + i + " of " + size);
             }
-            return pointDelta;
         }
     }
 
-    /** A class that records a timestamped frame translation delta for optical flow. */
-    public static class FrameChange {
-        public static final int KEYPOINT_STEP = 7;
+    /**
+     * The keypoints and the history line of the last frame, copied by copyDebugState() and
+     * drawn on the UI thread.
+     */
+    private static class KeypointDebugState implements DebugState {
+        private final float[] framePoints =
+                new float[TrackerConfig.MAX_KEYPOINTS * FrameChange.KEYPOINT_STEP];
+        private int numKeypoints;
+        private float minScore;
+        private float maxScore;
 
-        public final Vector<PointChange> pointDeltas;
+        // x, y offsets of the history line, oldest first.
+        private final float[] history = new float[MAX_DEBUG_HISTORY_SIZE * 2];
+        private int historySize;
 
-        private final float minScore;
-        private final float maxScore;
+        private float centerX;
+        private float centerY;
+        private int downsampleFactor;
 
-        public FrameChange(final float[] framePoints) {
-            float minScore = 100.0f;
-            float maxScore = -100.0f;
+        private final Paint historyPaint = new Paint();
+        private final Paint keypointPaint = new Paint();
+
+        @Override
+        public void draw(final Canvas canvas, final Matrix frameToCanvas) {
+            canvas.save();
+            canvas.setMatrix(frameToCanvas);
+
+            drawHistory(canvas);
+            drawKeypoints(canvas);
+
+            canvas.restore();
+        }
+
+        private void drawHistory(final Canvas canvas) {
+            final Paint p = historyPaint;
+            p.setAntiAlias(false);
+            p.setTypeface(Typeface.SERIF);
 
-            pointDeltas = new Vector<PointChange>(framePoints.length / KEYPOINT_STEP);
+            p.setColor(Color.RED);
+            p.setStrokeWidth(2.0f);
 
-            for (int i = 0; i < framePoints.length; i += KEYPOINT_STEP) {
-                final float x1 = framePoints[i + 0] * DOWNSAMPLE_FACTOR;
-                final float y1 = framePoints[i + 1] * DOWNSAMPLE_FACTOR;
+            // Draw the center circle.
+            p.setColor(Color.GREEN);
+            canvas.drawCircle(centerX, centerY, 3.0f, p);
 
-                final boolean wasFound = framePoints[i + 2] > 0.0f;
+            p.setColor(Color.RED);
 
-                final float x2 = framePoints[i + 3] * DOWNSAMPLE_FACTOR;
-                final float y2 = framePoints[i + 4] * DOWNSAMPLE_FACTOR;
+            // Iterate through in backwards order.
+            float lastX = centerX;
+            float lastY = centerY;
+            for (int keypointNum = historySize - 1; keypointNum >= 0; --keypointNum) {
+                final float newX = lastX + history[2 * keypointNum];
+                final float newY = lastY + history[2 * keypointNum + 1];
+                canvas.drawLine(lastX, lastY, newX, newY, p);
+                lastX = newX;
+                lastY = newY;
+            }
+        }
+
+        private void drawKeypoints(final Canvas canvas) {
+            final Paint p = keypointPaint;
+            final int keypointSize = 3;
+
+            for (int i = 0; i < numKeypoints * FrameChange.KEYPOINT_STEP;
+                 i += FrameChange.KEYPOINT_STEP) {
+                final float x1 = framePoints[i + 0] * downsampleFactor;
+                final float y1 = framePoints[i + 1] * downsampleFactor;
                 final float score = framePoints[i + 5];
-                final int type = (int) framePoints[i + 6];
 
-                minScore = Math.min(minScore, score);
-                maxScore = Math.max(maxScore, score);
+                if (framePoints[i + 2] > 0.0f) {
+                    final float x2 = framePoints[i + 3] * downsampleFactor;
+                    final float y2 = framePoints[i + 4] * downsampleFactor;
 
-                pointDeltas.add(new PointChange(x1, y1, x2, y2, score, type, wasFound));
+                    final int r = floatToChar((score - minScore) / (maxScore - minScore));
+                    final int b = floatToChar(1.0f - (score - minScore) / (maxScore - minScore));
+
+                    final int color = 0xFF000000 | (r << 16) | b;
+                    p.setColor(color);
+
+                    canvas.drawRect(x2 - keypointSize, y2 - keypointSize,
+                            x2 + keypointSize, y2 + keypointSize, p);
+                    p.setColor(Color.CYAN);
+                    canvas.drawLine(x2, y2, x1, y1, p);
+
+                    if (DRAW_TEXT) {
+                        p.setColor(Color.WHITE);
+                        canvas.drawText((int) framePoints[i + 6] + ": " + score, x1, y1, p);
+                    }
+                } else {
+                    p.setColor(Color.YELLOW);
+                    canvas.drawCircle(x1, y1, 5.0f, p);
+                }
             }
+        }
 
-            this.minScore = minScore;
-            this.maxScore = maxScore;
+        private static int floatToChar(final float value) {
+            return Math.max(0, Math.min((int) (value * 255.999f), 255));
         }
     }
 
-    public static synchronized ObjectTracker getInstance(
+    public static ObjectTracker getInstance(
             final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
+        return getInstance(
+                frameWidth, frameHeight, rowStride, new TrackerConfig().setAlwaysTrack(alwaysTrack));
+    }
+
+    /**
+     * Returns a new tracker, or null if the native library is missing.
+     */
+    public static ObjectTracker getInstance(
+            final int frameWidth, final int frameHeight, final int rowStride,
+            final TrackerConfig config) {
         if (!libraryFound) {
             LOGGER.e(
                     "Native object tracking support not found. "
@@ -215,46 +348,39 @@ public class ObjectTracker {
             return null;
         }
 
-        if (instance == null) {
-            instance = new ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack);
-            instance.init();
-        } else {
-            throw new RuntimeException(
-                    "Tried to create a new objectracker before releasing the old one!");
-        }
-        return instance;
-    }
-
-    public static synchronized void clearInstance() {
-        if (instance != null) {
-            instance.release();
-        }
+        final ObjectTracker tracker =
+                new ObjectTracker(frameWidth, frameHeight, rowStride, config);
+        tracker.init();
+        return tracker;
     }
 
     protected ObjectTracker(
-            final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
+            final int frameWidth, final int frameHeight, final int rowStride,
+            final TrackerConfig config) {
         this.frameWidth = frameWidth;
         this.frameHeight = frameHeight;
         this.rowStride = rowStride;
-        this.alwaysTrack = alwaysTrack;
-        this.timestampedDeltas = new LinkedList<TimestampedDeltas>();
+        this.config = config;
+        this.downsampleFactor = config.getDownsampleFactor();
 
-        trackedObjects = new HashMap<String, TrackedObject>();
-
-        debugHistory = new Vector<PointF>(MAX_DEBUG_HISTORY_SIZE);
+        trackedObjects = new ArrayList<TrackedObject>();
 
         downsampledFrame =
                 new byte
-                        [(frameWidth + DOWNSAMPLE_FACTOR - 1)
-                        / DOWNSAMPLE_FACTOR
-                        * (frameWidth + DOWNSAMPLE_FACTOR - 1)
-                        / DOWNSAMPLE_FACTOR];
+                        [(frameWidth + downsampleFactor - 1)
+                        / downsampleFactor
+                        * (frameWidth + downsampleFactor - 1)
+                        / downsampleFactor];
     }
 
     protected void init() {
         // The native tracker never sees the full frame, so pre-scale dimensions
         // by the downsample factor.
-        initNative(frameWidth / DOWNSAMPLE_FACTOR, frameHeight / DOWNSAMPLE_FACTOR, alwaysTrack);
+        initNative(frameWidth / downsampleFactor, frameHeight / downsampleFactor,
+                config.getAlwaysTrack(), config.getNumThreads(),
+                config.getMaxKeypoints(), config.getFlowLevels(), config.getFlowIterations());
+        budgetKeypoints = config.getMaxKeypoints();
+        budgetFlowLevels = config.getFlowLevels();
     }
 
     private final float[] matrixValues = new float[9];
@@ -265,7 +391,7 @@ public class ObjectTracker {
     public synchronized void drawOverlay(final GL10 gl,
                                          final Size cameraViewSize, final Matrix matrix) {
         final Matrix tempMatrix = new Matrix(matrix);
-        tempMatrix.preScale(DOWNSAMPLE_FACTOR, DOWNSAMPLE_FACTOR);
+        tempMatrix.preScale(downsampleFactor, downsampleFactor);
         tempMatrix.getValues(matrixValues);
         drawNative(cameraViewSize.width, cameraViewSize.height, matrixValues);
     }
@@ -274,22 +400,46 @@ public class ObjectTracker {
             final byte[] frameData, final byte[] uvData,
             final long timestamp, final float[] transformationMatrix,
             final boolean updateDebugInfo) {
+        final long startNanos = System.nanoTime();
         if (downsampledTimestamp != timestamp) {
             ObjectTracker.downsampleImageNative(
-                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
+                    frameWidth, frameHeight, rowStride, frameData, downsampleFactor, downsampledFrame);
             downsampledTimestamp = timestamp;
         }
 
-        // Do Lucas Kanade using the fullframe initializer.
-        nextFrameNative(downsampledFrame, uvData, timestamp, transformationMatrix);
+        // Do Lucas Kanade using the fullframe initializer. The same call returns the
+        // new state of every tracked object.
+        int numObjects = nextFrameNative(
+                downsampledFrame, uvData, timestamp, transformationMatrix, trackedState);
+        if (numObjects * TRACKED_STATE_SIZE > trackedState.length) {
+            trackedState = new float[2 * numObjects * TRACKED_STATE_SIZE];
+            numObjects = getTrackedStateNative(trackedState);
+        }
+
+        // Drop the oldest frame when full, then pack this one into the next slot.
+        if (historySize == MAX_FRAME_HISTORY_SIZE) {
+            historyStart = (historyStart + 1) % MAX_FRAME_HISTORY_SIZE;
+            --historySize;
+        }
+        final int slot = (historyStart + historySize) % MAX_FRAME_HISTORY_SIZE;
+        final int numKeypoints = getKeypointsPacked(
+                downsampleFactor, historyDeltas, slot * FRAME_DELTAS_SIZE);
+        historyTimestamps[slot] = timestamp;
+        historyKeypoints[slot] = numKeypoints;
+        ++historySize;
+
+        frameMotion = getMeanDisplacement(historyDeltas, slot * FRAME_DELTAS_SIZE, numKeypoints);
 
-        timestampedDeltas.add(new TimestampedDeltas(timestamp, getKeypointsPacked(DOWNSAMPLE_FACTOR)));
-        while (timestampedDeltas.size() > MAX_FRAME_HISTORY_SIZE) {
-            timestampedDeltas.removeFirst();
+        for (int i = 0; i < numObjects; ++i) {
+            final int offset = i * TRACKED_STATE_SIZE;
+            final int handle = (int) trackedState[offset];
+            if (handle < objectsByHandle.length && objectsByHandle[handle] != null) {
+                objectsByHandle[handle].applyTrackedState(trackedState, offset);
+            }
         }
 
-        for (final TrackedObject trackedObject : trackedObjects.values()) {
-            trackedObject.updateTrackedPosition();
+        if (config.isAdaptive()) {
+            adaptTrackingBudget((System.nanoTime() - startNanos) / 1.0e6f);
         }
 
         if (updateDebugInfo) {
@@ -299,104 +449,117 @@ public class ObjectTracker {
         lastTimestamp = timestamp;
     }
 
-    public synchronized void release() {
-        releaseMemoryNative();
-        synchronized (ObjectTracker.class) {
-            instance = null;
+    /**
+     * Lowers the keypoint count, then the flow levels, while frames take longer than the
+     * budget, and raises them again in reverse order up to the configured values while
+     * there is headroom.
+     */
+    private void adaptTrackingBudget(final float frameMs) {
+        averageFrameMs = averageFrameMs == 0
+                ? frameMs
+                : averageFrameMs + FRAME_TIME_SMOOTHING * (frameMs - averageFrameMs);
+        if (++framesSinceBudgetChange < BUDGET_SETTLE_FRAMES) {
+            return;
+        }
+
+        int keypoints = budgetKeypoints;
+        int flowLevels = budgetFlowLevels;
+        final float budgetMs = config.getFrameBudgetMs();
+        if (averageFrameMs > budgetMs) {
+            if (keypoints > MIN_BUDGET_KEYPOINTS) {
+                keypoints = Math.max(MIN_BUDGET_KEYPOINTS, keypoints * 3 / 4);
+            } else if (flowLevels > 1) {
+                --flowLevels;
+            }
+        } else if (averageFrameMs < budgetMs * BUDGET_HEADROOM) {
+            if (flowLevels < config.getFlowLevels()) {
+                ++flowLevels;
+            } else if (keypoints < config.getMaxKeypoints()) {
+                keypoints = Math.min(config.getMaxKeypoints(), keypoints * 4 / 3 + 1);
+            }
+        }
+
+        if (keypoints != budgetKeypoints || flowLevels != budgetFlowLevels) {
+            LOGGER.d("Tracking budget %d keypoints, %d flow levels at %.1fms per frame",
+                    keypoints, flowLevels, averageFrameMs);
+            budgetKeypoints = keypoints;
+            budgetFlowLevels = flowLevels;
+            setTrackingBudgetNative(keypoints, flowLevels, config.getFlowIterations());
+            framesSinceBudgetChange = 0;
         }
     }
 
-    private void drawHistoryDebug(final Canvas canvas) {
-        drawHistoryPoint(
-                canvas, frameWidth * DOWNSAMPLE_FACTOR / 2, frameHeight * DOWNSAMPLE_FACTOR / 2);
+    /**
+     * Returns how far the keypoints found in both of the last two frames moved on average,
+     * in preview frame pixels. Close to zero for a static scene.
+     */
+    public synchronized float getFrameMotion() {
+        return frameMotion;
     }
 
-    private void drawHistoryPoint(final Canvas canvas, final float startX, final float startY) {
-        final Paint p = new Paint();
-        p.setAntiAlias(false);
-        p.setTypeface(Typeface.SERIF);
-
-        p.setColor(Color.RED);
-        p.setStrokeWidth(2.0f);
-
-        // Draw the center circle.
-        p.setColor(Color.GREEN);
-        canvas.drawCircle(startX, startY, 3.0f, p);
-
-        p.setColor(Color.RED);
-
-        // Iterate through in backwards order.
-        synchronized (debugHistory) {
-            final int numPoints = debugHistory.size();
-            float lastX = startX;
-            float lastY = startY;
-            for (int keypointNum = 0; keypointNum < numPoints; ++keypointNum) {
-                final PointF delta = debugHistory.get(numPoints - keypointNum - 1);
-                final float newX = lastX + delta.x;
-                final float newY = lastY + delta.y;
-                canvas.drawLine(lastX, lastY, newX, newY, p);
-                lastX = newX;
-                lastY = newY;
-            }
+    /**
+     * Averages the keypoint displacements of count keypoints of getKeypointsPacked() output.
+     */
+    private static float getMeanDisplacement(
+            final byte[] packed, final int offset, final int count) {
+        if (count == 0) {
+            return 0f;
+        }
+
+        float sum = 0f;
+        final int end = offset + count * PACKED_KEYPOINT_SIZE;
+        for (int i = offset; i < end; i += PACKED_KEYPOINT_SIZE) {
+            final float dx = readFixed115(packed, i + 4) - readFixed115(packed, i);
+            final float dy = readFixed115(packed, i + 6) - readFixed115(packed, i + 2);
+            sum += (float) Math.sqrt(dx * dx + dy * dy);
         }
+        return sum / count;
     }
 
-    private static int floatToChar(final float value) {
-        return Math.max(0, Math.min((int) (value * 255.999f), 255));
+    private static float readFixed115(final byte[] data, final int offset) {
+        return ((data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8) / 32.0f;
     }
 
-    private void drawKeypointsDebug(final Canvas canvas) {
-        final Paint p = new Paint();
-        if (lastKeypoints == null) {
-            return;
-        }
-        final int keypointSize = 3;
-
-        final float minScore = lastKeypoints.minScore;
-        final float maxScore = lastKeypoints.maxScore;
-
-        for (final PointChange keypoint : lastKeypoints.pointDeltas) {
-            if (keypoint.wasFound) {
-                final int r =
-                        floatToChar((keypoint.keypointA.score - minScore) / (maxScore - minScore));
-                final int b =
-                        floatToChar(1.0f - (keypoint.keypointA.score - minScore) / (maxScore - minScore));
-
-                final int color = 0xFF000000 | (r << 16) | b;
-                p.setColor(color);
-
-                final float[] screenPoints = {keypoint.keypointA.x, keypoint.keypointA.y,
-                        keypoint.keypointB.x, keypoint.keypointB.y};
-                canvas.drawRect(screenPoints[2] - keypointSize,
-                        screenPoints[3] - keypointSize,
-                        screenPoints[2] + keypointSize,
-                        screenPoints[3] + keypointSize, p);
-                p.setColor(Color.CYAN);
-                canvas.drawLine(screenPoints[2], screenPoints[3],
-                        screenPoints[0], screenPoints[1], p);
-
-                if (DRAW_TEXT) {
-                    p.setColor(Color.WHITE);
-                    canvas.drawText(keypoint.keypointA.type + ": " + keypoint.keypointA.score,
-                            keypoint.keypointA.x, keypoint.keypointA.y, p);
-                }
-            } else {
-                p.setColor(Color.YELLOW);
-                final float[] screenPoint = {keypoint.keypointA.x, keypoint.keypointA.y};
-                canvas.drawCircle(screenPoint[0], screenPoint[1], 5.0f, p);
-            }
+    public synchronized void release() {
+        if (!released) {
+            releaseMemoryNative();
+            released = true;
         }
     }
 
-    private synchronized PointF getAccumulatedDelta(final long timestamp, final float positionX,
-                                                    final float positionY, final float radius) {
-        final RectF currPosition = getCurrentPosition(timestamp,
-                new RectF(positionX - radius, positionY - radius, positionX + radius, positionY + radius));
-        return new PointF(currPosition.centerX() - positionX, currPosition.centerY() - positionY);
+    /**
+     * Appends how far a box around the given point moved since the given time to the
+     * debug history.
+     */
+    private void addDebugHistoryDelta(final long timestamp, final float positionX,
+                                      final float positionY, final float radius) {
+        final float x = positionX / downsampleFactor;
+        final float y = positionY / downsampleFactor;
+        final float r = radius / downsampleFactor;
+        getCurrentPositionNative(timestamp, x - r, y - r, x + r, y + r, positionValues);
+
+        if (debugHistorySize == MAX_DEBUG_HISTORY_SIZE) {
+            debugHistoryStart = (debugHistoryStart + 1) % MAX_DEBUG_HISTORY_SIZE;
+            --debugHistorySize;
+        }
+        final int index = 2 * ((debugHistoryStart + debugHistorySize) % MAX_DEBUG_HISTORY_SIZE);
+        debugHistory[index] =
+                (positionValues[0] + positionValues[2]) / 2 * downsampleFactor - positionX;
+        debugHistory[index + 1] =
+                (positionValues[1] + positionValues[3]) / 2 * downsampleFactor - positionY;
+        ++debugHistorySize;
     }
 
-    private synchronized RectF getCurrentPosition(final long timestamp, final RectF
+    /**
+     * Moves a box from the frame with the given timestamp to the latest frame through the
+     * recorded optical flow. Boxes from unknown frames are returned unchanged.
+     */
+    public synchronized RectF getCurrentPosition(final long timestamp, final RectF
             oldPosition) {
+        if (timestamp <= 0 || timestamp > lastTimestamp) {
+            return new RectF(oldPosition);
+        }
+
         final RectF downscaledFrameRect = downscaleRect(oldPosition);
 
         final float[] delta = new float[4];
@@ -409,76 +572,117 @@ public class ObjectTracker {
     }
 
     private void updateDebugHistory() {
-        lastKeypoints = new FrameChange(getKeypointsNative(false));
+        keypointChange.update(getKeypointsNative(false, keypointChange.framePoints));
+        lastKeypoints = keypointChange;
 
         if (lastTimestamp == 0) {
             return;
         }
 
-        final PointF delta =
-                getAccumulatedDelta(
-                        lastTimestamp, frameWidth / DOWNSAMPLE_FACTOR, frameHeight / DOWNSAMPLE_FACTOR, 100);
-
-        synchronized (debugHistory) {
-            debugHistory.add(delta);
+        addDebugHistoryDelta(
+                lastTimestamp, frameWidth / downsampleFactor, frameHeight / downsampleFactor, 100);
+    }
 
-            while (debugHistory.size() > MAX_DEBUG_HISTORY_SIZE) {
-                debugHistory.remove(0);
-            }
-        }
+    @Override
+    public DebugState createDebugState() {
+        return new KeypointDebugState();
     }
 
-    public synchronized void drawDebug(final Canvas canvas, final Matrix frameToCanvas) {
-        canvas.save();
-        canvas.setMatrix(frameToCanvas);
+    @Override
+    public synchronized void copyDebugState(final DebugState state) {
+        final KeypointDebugState copy = (KeypointDebugState) state;
+        copy.centerX = frameWidth * downsampleFactor / 2;
+        copy.centerY = frameHeight * downsampleFactor / 2;
+        copy.downsampleFactor = downsampleFactor;
 
-        drawHistoryDebug(canvas);
-        drawKeypointsDebug(canvas);
+        if (released || lastKeypoints == null) {
+            copy.numKeypoints = 0;
+            copy.historySize = 0;
+            return;
+        }
 
-        canvas.restore();
+        copy.numKeypoints = lastKeypoints.numKeypoints;
+        copy.minScore = lastKeypoints.minScore;
+        copy.maxScore = lastKeypoints.maxScore;
+        System.arraycopy(lastKeypoints.framePoints, 0, copy.framePoints, 0,
+                lastKeypoints.numKeypoints * FrameChange.KEYPOINT_STEP);
+
+        // Unrolled from the ring, so drawing needs no indices into it.
+        final int firstRun =
+                Math.min(debugHistorySize, MAX_DEBUG_HISTORY_SIZE - debugHistoryStart);
+        System.arraycopy(debugHistory, 2 * debugHistoryStart, copy.history, 0, 2 * firstRun);
+        System.arraycopy(debugHistory, 0, copy.history, 2 * firstRun,
+                2 * (debugHistorySize - firstRun));
+        copy.historySize = debugHistorySize;
     }
 
     public Vector<String> getDebugText() {
         final Vector<String> lines = new Vector<String>();
 
         if (lastKeypoints != null) {
-            lines.add("Num keypoints " + lastKeypoints.pointDeltas.size());
+            lines.add("Num keypoints " + lastKeypoints.getNumKeypoints());
             lines.add("Min score: " + lastKeypoints.minScore);
             lines.add("Max score: " + lastKeypoints.maxScore);
         }
 
+        if (config.isAdaptive()) {
+            lines.add("Budget: " + budgetKeypoints + " keypoints, "
+                    + budgetFlowLevels + " flow levels");
+        }
+
         return lines;
     }
 
-    public synchronized List<byte[]> pollAccumulatedFlowData(final long endFrameTime) {
-        final List<byte[]> frameDeltas = new ArrayList<byte[]>();
-        while (timestampedDeltas.size() > 0) {
-            final TimestampedDeltas currentDeltas = timestampedDeltas.peek();
-            if (currentDeltas.timestamp <= endFrameTime) {
-                frameDeltas.add(currentDeltas.deltas);
-                timestampedDeltas.removeFirst();
-            } else {
-                break;
-            }
-        }
-
-        return frameDeltas;
+    /**
+     * Removes the recorded frames up to endFrameTime from the flow history and copies them
+     * into out, replacing its contents. The ring slots are reused by the next nextFrame(),
+     * so the frames cannot be handed out in place.
+     */
+    public synchronized void pollAccumulatedFlowData(
+            final long endFrameTime, final FlowData out) {
+        int frames = 0;
+        int bytes = 0;
+        while (frames < historySize
+                && historyTimestamps[(historyStart + frames) % MAX_FRAME_HISTORY_SIZE]
+                        <= endFrameTime) {
+            bytes += historyKeypoints[(historyStart + frames) % MAX_FRAME_HISTORY_SIZE]
+                    * PACKED_KEYPOINT_SIZE;
+            ++frames;
+        }
+        if (out.data.length < bytes) {
+            out.data = new byte[bytes];
+        }
+
+        int offset = 0;
+        for (int i = 0; i < frames; ++i) {
+            final int length = historyKeypoints[historyStart] * PACKED_KEYPOINT_SIZE;
+            System.arraycopy(historyDeltas, historyStart * FRAME_DELTAS_SIZE,
+                    out.data, offset, length);
+            out.timestamps[i] = historyTimestamps[historyStart];
+            out.offsets[i] = offset;
+            out.lengths[i] = length;
+            offset += length;
+
+            historyStart = (historyStart + 1) % MAX_FRAME_HISTORY_SIZE;
+            --historySize;
+        }
+        out.size = frames;
     }
 
     private RectF downscaleRect(final RectF fullFrameRect) {
         return new RectF(
-                fullFrameRect.left / DOWNSAMPLE_FACTOR,
-                fullFrameRect.top / DOWNSAMPLE_FACTOR,
-                fullFrameRect.right / DOWNSAMPLE_FACTOR,
-                fullFrameRect.bottom / DOWNSAMPLE_FACTOR);
+                fullFrameRect.left / downsampleFactor,
+                fullFrameRect.top / downsampleFactor,
+                fullFrameRect.right / downsampleFactor,
+                fullFrameRect.bottom / downsampleFactor);
     }
 
     private RectF upscaleRect(final RectF downsampledFrameRect) {
         return new RectF(
-                downsampledFrameRect.left * DOWNSAMPLE_FACTOR,
-                downsampledFrameRect.top * DOWNSAMPLE_FACTOR,
-                downsampledFrameRect.right * DOWNSAMPLE_FACTOR,
-                downsampledFrameRect.bottom * DOWNSAMPLE_FACTOR);
+                downsampledFrameRect.left * downsampleFactor,
+                downsampledFrameRect.top * downsampleFactor,
+                downsampledFrameRect.right * downsampleFactor,
+                downsampledFrameRect.bottom * downsampleFactor);
     }
 
     /**
@@ -489,27 +693,28 @@ public class ObjectTracker {
      *
      * @author andrewharp@google.com (Andrew Harp)
      */
-    public class TrackedObject {
-        private final String id;
+    public class TrackedObject implements TrackedBox {
+        // Native slot of this object, reused by another object after stopTracking().
+        private int handle;
 
         private long lastExternalPositionTime;
 
-        private RectF lastTrackedPosition;
+        // Position in the downsampled frame, updated in place.
+        private final RectF lastTrackedPosition = new RectF();
         private boolean visibleInLastFrame;
+        private float correlation;
+        private float matchScore;
 
         private boolean isDead;
 
         TrackedObject(final RectF position, final long timestamp, final byte[] data) {
             isDead = false;
 
-            id = Integer.toString(this.hashCode());
-
-            lastExternalPositionTime = timestamp;
-
             synchronized (ObjectTracker.this) {
+                lastExternalPositionTime = clampToTrackedTime(timestamp);
                 registerInitialAppearance(position, data);
                 setPreviousPosition(position, timestamp);
-                trackedObjects.put(id, this);
+                trackedObjects.add(this);
             }
         }
 
@@ -518,35 +723,53 @@ public class ObjectTracker {
 
             synchronized (ObjectTracker.this) {
                 isDead = true;
-                forgetNative(id);
-                trackedObjects.remove(id);
+                forgetNative(handle);
+                trackedObjects.remove(this);
+                objectsByHandle[handle] = null;
             }
         }
 
-        public float getCurrentCorrelation() {
+        /**
+         * Returns the correlation as of the last frame or position update.
+         */
+        public synchronized float getCurrentCorrelation() {
             checkValidObject();
-            return ObjectTracker.this.getCurrentCorrelation(id);
+            return correlation;
+        }
+
+        public synchronized float getMatchScore() {
+            checkValidObject();
+            return matchScore;
         }
 
         void registerInitialAppearance(final RectF position, final byte[] data) {
             final RectF externalPosition = downscaleRect(position);
-            registerNewObjectWithAppearanceNative(id,
+            handle = registerNewObjectWithAppearanceNative(
                     externalPosition.left, externalPosition.top,
                     externalPosition.right, externalPosition.bottom,
                     data);
+
+            if (handle >= objectsByHandle.length) {
+                final TrackedObject[] grown =
+                        new TrackedObject[Math.max(handle + 1, 2 * objectsByHandle.length)];
+                System.arraycopy(objectsByHandle, 0, grown, 0, objectsByHandle.length);
+                objectsByHandle = grown;
+            }
+            objectsByHandle[handle] = this;
         }
 
         synchronized void setPreviousPosition(final RectF position, final long timestamp) {
             checkValidObject();
             synchronized (ObjectTracker.this) {
-                if (lastExternalPositionTime > timestamp) {
+                final long positionTime = clampToTrackedTime(timestamp);
+                if (lastExternalPositionTime > positionTime) {
                     LOGGER.w("Tried to use older position time!");
                     return;
                 }
                 final RectF externalPosition = downscaleRect(position);
-                lastExternalPositionTime = timestamp;
+                lastExternalPositionTime = positionTime;
 
-                setPreviousPositionNative(id,
+                setPreviousPositionNative(handle,
                         externalPosition.left, externalPosition.top,
                         externalPosition.right, externalPosition.bottom,
                         lastExternalPositionTime);
@@ -559,31 +782,55 @@ public class ObjectTracker {
             checkValidObject();
             final RectF downsampledPosition = downscaleRect(position);
             synchronized (ObjectTracker.this) {
-                setCurrentPositionNative(id,
+                setCurrentPositionNative(handle,
                         downsampledPosition.left, downsampledPosition.top,
                         downsampledPosition.right, downsampledPosition.bottom);
             }
         }
 
+        /**
+         * Refreshes this object alone, after its position was set outside of nextFrame().
+         */
         private synchronized void updateTrackedPosition() {
             checkValidObject();
 
-            final float[] delta = new float[4];
-            getTrackedPositionNative(id, delta);
-            lastTrackedPosition = new RectF(delta[0], delta[1], delta[2], delta[3]);
+            getTrackedPositionNative(handle, positionValues);
+            lastTrackedPosition.set(
+                    positionValues[0], positionValues[1], positionValues[2], positionValues[3]);
 
-            visibleInLastFrame = isObjectVisible(id);
+            visibleInLastFrame = isObjectVisible(handle);
+            correlation = ObjectTracker.this.getCurrentCorrelation(handle);
+            matchScore = ObjectTracker.this.getMatchScore(handle);
+        }
+
+        /**
+         * Reads this object's record from the tracked state filled by nextFrameNative().
+         */
+        private synchronized void applyTrackedState(final float[] state, final int offset) {
+            lastTrackedPosition.set(
+                    state[offset + 1], state[offset + 2], state[offset + 3], state[offset + 4]);
+            correlation = state[offset + 5];
+            visibleInLastFrame = state[offset + 6] > 0.0f;
+            matchScore = state[offset + 7];
         }
 
         public synchronized RectF getTrackedPositionInPreviewFrame() {
             checkValidObject();
-
-            if (lastTrackedPosition == null) {
-                return null;
-            }
             return upscaleRect(lastTrackedPosition);
         }
 
+        /**
+         * Same as getTrackedPositionInPreviewFrame(), writing into the given rect.
+         */
+        public synchronized void getTrackedPositionInPreviewFrame(final RectF position) {
+            checkValidObject();
+            position.set(
+                    lastTrackedPosition.left * downsampleFactor,
+                    lastTrackedPosition.top * downsampleFactor,
+                    lastTrackedPosition.right * downsampleFactor,
+                    lastTrackedPosition.bottom * downsampleFactor);
+        }
+
         synchronized long getLastExternalPositionTime() {
             return lastExternalPositionTime;
         }
@@ -595,17 +842,26 @@ public class ObjectTracker {
         private void checkValidObject() {
             if (isDead) {
                 throw new RuntimeException("TrackedObject already removed from tracking!");
-            } else if (ObjectTracker.this != instance) {
-                throw new RuntimeException("TrackedObject created with another ObjectTracker!");
+            } else if (released) {
+                throw new RuntimeException("TrackedObject's ObjectTracker was released!");
             }
         }
     }
 
+    /**
+     * Limits a frame time to the last frame passed to nextFrame(). When frames are tracked
+     * on their own thread, a detection can finish before the tracker reaches its frame, and
+     * its position is then taken to be current.
+     */
+    private long clampToTrackedTime(final long timestamp) {
+        return Math.min(timestamp, lastTimestamp);
+    }
+
     public synchronized TrackedObject trackObject(
             final RectF position, final long timestamp, final byte[] frameData) {
         if (downsampledTimestamp != timestamp) {
             ObjectTracker.downsampleImageNative(
-                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
+                    frameWidth, frameHeight, rowStride, frameData, downsampleFactor, downsampledFrame);
             downsampledTimestamp = timestamp;
         }
         return new TrackedObject(position, timestamp, downsampledFrame);
@@ -620,31 +876,45 @@ public class ObjectTracker {
     /** This will contain an opaque pointer to the native ObjectTracker */
     private long nativeObjectTracker;
 
-    private native void initNative(int imageWidth, int imageHeight, boolean alwaysTrack);
+    private native void initNative(
+            int imageWidth, int imageHeight, boolean alwaysTrack, int numThreads,
+            int maxKeypoints, int flowLevels, int flowIterations);
+
+    protected native void setTrackingBudgetNative(
+            int maxKeypoints, int flowLevels, int flowIterations);
 
-    protected native void registerNewObjectWithAppearanceNative(
-            String objectId, float x1, float y1, float x2, float y2, byte[] data);
+    /** Returns the handle that identifies the new object in the other per-object calls. */
+    protected native int registerNewObjectWithAppearanceNative(
+            float x1, float y1, float x2, float y2, byte[] data);
 
     protected native void setPreviousPositionNative(
-            String objectId, float x1, float y1, float x2, float y2, long timestamp);
+            int handle, float x1, float y1, float x2, float y2, long timestamp);
 
     protected native void setCurrentPositionNative(
-            String objectId, float x1, float y1, float x2, float y2);
+            int handle, float x1, float y1, float x2, float y2);
+
+    protected native void forgetNative(int handle);
 
-    protected native void forgetNative(String key);
+    protected native String getModelIdNative(int handle);
 
-    protected native String getModelIdNative(String key);
+    protected native boolean haveObject(int handle);
+    protected native boolean isObjectVisible(int handle);
+    protected native float getCurrentCorrelation(int handle);
 
-    protected native boolean haveObject(String key);
-    protected native boolean isObjectVisible(String key);
-    protected native float getCurrentCorrelation(String key);
+    protected native float getMatchScore(int handle);
 
-    protected native float getMatchScore(String key);
+    protected native void getTrackedPositionNative(int handle, float[] points);
 
-    protected native void getTrackedPositionNative(String key, float[] points);
+    /**
+     * Returns the number of tracked objects, and writes the state of as many as fit into
+     * trackedState, TRACKED_STATE_SIZE floats each.
+     */
+    protected native int nextFrameNative(
+            byte[] frameData, byte[] uvData, long timestamp, float[] frameAlignMatrix,
+            float[] trackedState);
 
-    protected native void nextFrameNative(
-            byte[] frameData, byte[] uvData, long timestamp, float[] frameAlignMatrix);
+    /** Like nextFrameNative(), for the state of the current frame. */
+    protected native int getTrackedStateNative(float[] trackedState);
 
     protected native void releaseMemoryNative();
 
@@ -653,9 +923,18 @@ public class ObjectTracker {
                                                    final float positionX2, final float positionY2,
                                                    final float[] delta);
 
-    protected native byte[] getKeypointsPacked(float scaleFactor);
+    /**
+     * Packs the last frame's keypoints into data from offset, which needs room for
+     * FRAME_DELTAS_SIZE bytes, and returns how many were written.
+     */
+    protected native int getKeypointsPacked(float scaleFactor, byte[] data, int offset);
 
-    protected native float[] getKeypointsNative(boolean onlyReturnCorrespondingKeypoints);
+    /**
+     * Fills keypoints, which needs room for TrackerConfig.MAX_KEYPOINTS keypoints, and
+     * returns the count.
+     */
+    protected native int getKeypointsNative(
+            boolean onlyReturnCorrespondingKeypoints, float[] keypoints);
 
     protected native void drawNative(int viewWidth, int viewHeight, float[] frameToCanvas);
 
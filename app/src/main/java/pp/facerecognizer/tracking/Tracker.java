@@ -0,0 +1,69 @@
+package pp.facerecognizer.tracking;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * The tracking MultiBoxTracker relies on: ObjectTracker follows boxes through native optical
+ * flow, JavaObjectTracker predicts them from their detections where the native library is
+ * missing. All positions are in preview frame coordinates.
+ */
+public interface Tracker {
+    /**
+     * A box followed from frame to frame until stopTracking() is called.
+     */
+    interface TrackedBox {
+        /**
+         * How much the box can still be trusted, 1 for a perfect match. MultiBoxTracker drops
+         * boxes whose correlation gets too low.
+         */
+        float getCurrentCorrelation();
+
+        RectF getTrackedPositionInPreviewFrame();
+
+        void getTrackedPositionInPreviewFrame(RectF position);
+
+        void stopTracking();
+    }
+
+    /**
+     * Debug output copied out of a tracker, so the UI thread draws it without the tracker's
+     * lock while the next frame is tracked.
+     */
+    interface DebugState {
+        void draw(Canvas canvas, Matrix frameToCanvas);
+    }
+
+    void nextFrame(byte[] frameData, byte[] uvData, long timestamp, float[] transformationMatrix,
+                   boolean updateDebugInfo);
+
+    /**
+     * Starts tracking a box found in the frame with the given timestamp, whose luminance is
+     * frameData.
+     */
+    TrackedBox trackObject(RectF position, long timestamp, byte[] frameData);
+
+    /**
+     * Moves a box from the frame with the given timestamp to the latest frame.
+     */
+    RectF getCurrentPosition(long timestamp, RectF oldPosition);
+
+    /**
+     * Mean motion of the last frame in preview frame pixels, negative if unknown.
+     */
+    float getFrameMotion();
+
+    /**
+     * Returns an empty DebugState for copyDebugState().
+     */
+    DebugState createDebugState();
+
+    /**
+     * Copies the debug output of the latest frame into state, which createDebugState()
+     * returned.
+     */
+    void copyDebugState(DebugState state);
+
+    void release();
+}
@@ -0,0 +1,115 @@
+package pp.facerecognizer.tracking;
+
+/**
+ * Settings for a new ObjectTracker, trading tracking accuracy for CPU time.
+ * The limits match the array sizes compiled into the native tracker, see
+ * jni/tensorflow_demo/object_tracking/config.h.
+ *
+ * With a frame budget set, the tracker lowers its keypoint count, then its flow levels,
+ * while nextFrame() takes longer than the budget, and restores them when there is headroom.
+ */
+public class TrackerConfig {
+    public static final int MAX_KEYPOINTS = 76;
+    public static final int MAX_FLOW_LEVELS = 3;
+
+    public static final int DEFAULT_DOWNSAMPLE_FACTOR = 2;
+    public static final int DEFAULT_FLOW_ITERATIONS = 3;
+
+    private int downsampleFactor = DEFAULT_DOWNSAMPLE_FACTOR;
+    private int maxKeypoints = MAX_KEYPOINTS;
+    private int flowLevels = MAX_FLOW_LEVELS;
+    private int flowIterations = DEFAULT_FLOW_ITERATIONS;
+    private int numThreads = 1;
+    private boolean alwaysTrack = true;
+    private float frameBudgetMs;
+
+    /**
+     * Factor the preview frame is shrunk by before tracking.
+     */
+    public TrackerConfig setDownsampleFactor(int downsampleFactor) {
+        this.downsampleFactor = Math.max(1, downsampleFactor);
+        return this;
+    }
+
+    /**
+     * Keypoints whose flow is computed per frame, at most MAX_KEYPOINTS.
+     */
+    public TrackerConfig setMaxKeypoints(int maxKeypoints) {
+        this.maxKeypoints = Math.max(1, Math.min(maxKeypoints, MAX_KEYPOINTS));
+        return this;
+    }
+
+    /**
+     * Coarse pyramid levels used to guess each keypoint's flow, at most MAX_FLOW_LEVELS.
+     * Fewer levels are cheaper but follow fast motion less well.
+     */
+    public TrackerConfig setFlowLevels(int flowLevels) {
+        this.flowLevels = Math.max(0, Math.min(flowLevels, MAX_FLOW_LEVELS));
+        return this;
+    }
+
+    /**
+     * Lucas-Kanade iterations per keypoint and pyramid level.
+     */
+    public TrackerConfig setFlowIterations(int flowIterations) {
+        this.flowIterations = Math.max(1, flowIterations);
+        return this;
+    }
+
+    /**
+     * Threads keypoint flow and per-object updates are spread over, including the one
+     * calling nextFrame().
+     */
+    public TrackerConfig setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        return this;
+    }
+
+    /**
+     * Whether to compute flow even while no objects are tracked.
+     */
+    public TrackerConfig setAlwaysTrack(boolean alwaysTrack) {
+        this.alwaysTrack = alwaysTrack;
+        return this;
+    }
+
+    /**
+     * Target time for nextFrame(). 0 keeps the settings fixed.
+     */
+    public TrackerConfig setFrameBudgetMs(float frameBudgetMs) {
+        this.frameBudgetMs = Math.max(0f, frameBudgetMs);
+        return this;
+    }
+
+    public int getDownsampleFactor() {
+        return downsampleFactor;
+    }
+
+    public int getMaxKeypoints() {
+        return maxKeypoints;
+    }
+
+    public int getFlowLevels() {
+        return flowLevels;
+    }
+
+    public int getFlowIterations() {
+        return flowIterations;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public boolean getAlwaysTrack() {
+        return alwaysTrack;
+    }
+
+    public float getFrameBudgetMs() {
+        return frameBudgetMs;
+    }
+
+    public boolean isAdaptive() {
+        return frameBudgetMs > 0;
+    }
+}
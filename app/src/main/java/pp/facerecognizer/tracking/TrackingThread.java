@@ -0,0 +1,136 @@
+package pp.facerecognizer.tracking;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Runs MultiBoxTracker.onFrame() on a thread of its own, so the camera thread only pays
+ * for a copy of the luminance plane. offer() hands over the newest frame; a frame that is
+ * still waiting when the next one arrives is dropped, so the tracker never falls behind.
+ *
+ * Three buffers are enough: one is being tracked, one waits as the newest frame and one
+ * is being filled by offer().
+ */
+public class TrackingThread {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int NUM_BUFFERS = 3;
+
+    /** Called on the tracking thread after each tracked frame. */
+    public interface Listener {
+        void onFrameTracked(long timestamp);
+    }
+
+    private final MultiBoxTracker tracker;
+    private final int frameWidth;
+    private final int frameHeight;
+    private final int sensorOrientation;
+    private final Listener listener;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Runnable trackLatest = this::trackLatest;
+
+    // Guarded by this.
+    private final byte[][] freeBuffers = new byte[NUM_BUFFERS][];
+    private int numFreeBuffers = NUM_BUFFERS;
+    private byte[] latest;
+    private int latestRowStride;
+    private long latestTimestamp;
+    private long droppedFrames;
+
+    public TrackingThread(
+            final MultiBoxTracker tracker,
+            final int frameWidth,
+            final int frameHeight,
+            final int sensorOrientation,
+            final Listener listener) {
+        this.tracker = tracker;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.sensorOrientation = sensorOrientation;
+        this.listener = listener;
+
+        thread = new HandlerThread("tracking");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Copies the luminance plane and queues it for tracking. Returns without waiting for
+     * the tracker, so the caller may reuse luminance right away.
+     */
+    public void offer(final byte[] luminance, final int rowStride, final long timestamp) {
+        byte[] buffer;
+        synchronized (this) {
+            buffer = freeBuffers[--numFreeBuffers];
+            freeBuffers[numFreeBuffers] = null;
+        }
+        if (buffer == null || buffer.length != luminance.length) {
+            buffer = new byte[luminance.length];
+        }
+        System.arraycopy(luminance, 0, buffer, 0, luminance.length);
+
+        final boolean idle;
+        synchronized (this) {
+            idle = latest == null;
+            if (!idle) {
+                freeBuffers[numFreeBuffers++] = latest;
+                ++droppedFrames;
+            }
+            latest = buffer;
+            latestRowStride = rowStride;
+            latestTimestamp = timestamp;
+        }
+
+        // A pending trackLatest() picks up the replaced frame.
+        if (idle) {
+            handler.post(trackLatest);
+        }
+    }
+
+    private void trackLatest() {
+        final byte[] frame;
+        final int rowStride;
+        final long timestamp;
+        synchronized (this) {
+            frame = latest;
+            rowStride = latestRowStride;
+            timestamp = latestTimestamp;
+            latest = null;
+        }
+        if (frame == null) {
+            return;
+        }
+
+        tracker.onFrame(frameWidth, frameHeight, rowStride, sensorOrientation, frame, timestamp);
+
+        synchronized (this) {
+            freeBuffers[numFreeBuffers++] = frame;
+        }
+        listener.onFrameTracked(timestamp);
+    }
+
+    /**
+     * Frames that were replaced by a newer one before the tracker got to them.
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Lets the frame being tracked finish and stops the thread. Frames offered afterwards
+     * are ignored.
+     */
+    public void quit() {
+        handler.removeCallbacks(trackLatest);
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            LOGGER.e(e, "Exception!");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Classifies embeddings by cosine similarity to the mean of each label's L2-normalized
+ * embeddings. Enrollment only updates running sums, so there is no training step.
+ * Embeddings are stored in the same data file as LibSVM, so the two are interchangeable.
+ */
+public class CentroidClassifier implements FaceClassifier {
+    private static final Logger LOGGER = new Logger();
+
+    // Cosine similarity to a centroid above which a face is considered known.
+    private static final float MIN_SIMILARITY = 0.5f;
+
+    private final int dimensions;
+    private final String dataFile;
+
+    // Per label: sum of normalized embeddings, and the normalized sum used for matching.
+    private final ArrayList<float[]> sums = new ArrayList<>();
+    private final ArrayList<float[]> centroids = new ArrayList<>();
+
+    /**
+     * Builds the centroids from the embeddings stored in the data file.
+     */
+    public static CentroidClassifier load(String dataFile, int dimensions) {
+        CentroidClassifier classifier = new CentroidClassifier(dataFile, dimensions);
+        try {
+            FileUtils.readEmbeddings(dataFile, dimensions, classifier::add);
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to read embeddings from %s", dataFile);
+        }
+        return classifier;
+    }
+
+    public CentroidClassifier(String dataFile, int dimensions) {
+        this.dataFile = dataFile;
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public void train(int label, ArrayList<float[]> list) {
+        FileUtils.appendEmbeddings(label, list, dataFile);
+        for (float[] embedding : list) {
+            add(label, embedding);
+        }
+    }
+
+    @Override
+    public void remove(int label) {
+        FileUtils.removeEmbeddings(label, dataFile);
+        if (label < sums.size()) {
+            sums.set(label, null);
+            centroids.set(label, null);
+        }
+    }
+
+    /**
+     * Adds one embedding to the label's centroid without persisting it.
+     */
+    public void add(int label, float[] embedding) {
+        while (sums.size() <= label) {
+            sums.add(null);
+            centroids.add(null);
+        }
+
+        float[] sum = sums.get(label);
+        if (sum == null) {
+            sum = new float[dimensions];
+            sums.set(label, sum);
+            centroids.set(label, new float[dimensions]);
+        }
+
+        float norm = norm(embedding);
+        for (int i = 0; i < dimensions; i++) {
+            sum[i] += embedding[i] / norm;
+        }
+
+        float[] centroid = centroids.get(label);
+        float sumNorm = norm(sum);
+        for (int i = 0; i < dimensions; i++) {
+            centroid[i] = sum[i] / sumNorm;
+        }
+    }
+
+    @Override
+    public Pair<Integer, Float> predict(FloatBuffer buffer) {
+        int offset = buffer.position();
+        float norm = 0;
+        for (int i = 0; i < dimensions; i++) {
+            float v = buffer.get(offset + i);
+            norm += v * v;
+        }
+        norm = (float) Math.max(Math.sqrt(norm), 1e-12);
+
+        int best = 0;
+        float bestSimilarity = 0f;
+        for (int label = 0; label < centroids.size(); label++) {
+            float[] centroid = centroids.get(label);
+            if (centroid == null) continue;
+
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += centroid[i] * buffer.get(offset + i);
+            }
+            float similarity = dot / norm;
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = label;
+            }
+        }
+
+        return new Pair<>(best, bestSimilarity);
+    }
+
+    @Override
+    public float getMinConfidence() {
+        return MIN_SIMILARITY;
+    }
+
+    private static float norm(float[] v) {
+        double sum = 0;
+        for (int i = 0; i < v.length; i++) {
+            sum += v[i] * v[i];
+        }
+        return (float) Math.max(Math.sqrt(sum), 1e-12);
+    }
+}
@@ -0,0 +1,372 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Stores every enrolled embedding compressed with an {@link EmbeddingCodec} and identifies
+ * faces by the most similar stored code, scored without decoding.
+ * The gallery file has a header with the codec parameters followed by (label, code)
+ * records, so enrollment usually only appends. Enrolled embeddings are also appended to the
+ * text data file, like LibSVM does, and the gallery is rebuilt from it when needed.
+ *
+ * Product quantization needs a codebook trained on the gallery itself. Until there are
+ * MIN_PQ_SAMPLES embeddings the gallery uses fp16 instead, and the codebook is retrained
+ * whenever the gallery has grown by RETRAIN_GROWTH since it was trained, so people
+ * enrolled later are encoded with centroids that saw them.
+ */
+public class CompressedGallery implements FaceClassifier {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int MAGIC = 0x47414c59; // "GALY"
+    private static final int VERSION = 2;
+
+    // Codec used for "pq" while there are too few embeddings to train a codebook on.
+    private static final String FALLBACK_CODEC = Float16Codec.NAME;
+    private static final int MIN_PQ_SAMPLES = 256;
+    private static final int RETRAIN_GROWTH = 2;
+
+    // Cosine similarity to the nearest stored embedding above which a face is considered known.
+    private static final float MIN_SIMILARITY = 0.5f;
+
+    // Requested codec name and data file, null for galleries that are not persisted.
+    private final String codecName;
+    private final String dataFile;
+    private final File file;
+
+    private EmbeddingCodec codec;
+    // Embeddings the codec was built from.
+    private int trainedSamples;
+
+    private int size;
+    private int[] labels;
+    private byte[] codes;
+
+    private final float[] query;
+
+    /**
+     * Opens the gallery file, or builds it from the text data file with the named codec
+     * ("fp16", "int8" or "pq"). Product quantization trains its codebook on the data file.
+     * The gallery is also rebuilt when the data file is newer, as after a PCA refit.
+     */
+    public static CompressedGallery load(
+            String galleryFile, String dataFile, String codecName, int dimensions) {
+        File data = new File(FileUtils.ROOT + File.separator + dataFile);
+        File file = new File(FileUtils.ROOT + File.separator + galleryFile);
+        if (file.exists() && file.lastModified() >= data.lastModified()) {
+            try {
+                CompressedGallery gallery = read(file, codecName, dataFile);
+                if (gallery.codec.getDimensions() == dimensions && gallery.isCurrent()) {
+                    LOGGER.i("Loaded %s gallery with %d embeddings",
+                            gallery.codec.getName(), gallery.size);
+                    return gallery;
+                }
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to read gallery %s", file);
+            }
+        }
+
+        CompressedGallery gallery = new CompressedGallery(codecName, dataFile, file, dimensions);
+        gallery.rebuild();
+        return gallery;
+    }
+
+    /**
+     * Creates a codec by name. Samples are only used to train product quantization.
+     */
+    public static EmbeddingCodec createCodec(String name, int dimensions, List<float[]> samples) {
+        switch (name) {
+            case Float16Codec.NAME:
+                return new Float16Codec(dimensions);
+            case Int8Codec.NAME:
+                return new Int8Codec(dimensions);
+            case ProductQuantizer.NAME:
+                return ProductQuantizer.train(
+                        samples, dimensions, ProductQuantizer.getSubspaces(dimensions));
+            default:
+                throw new IllegalArgumentException("Unknown embedding codec '" + name + "'");
+        }
+    }
+
+    /**
+     * Creates an empty gallery with a fixed codec. Enrolled embeddings are only appended to
+     * file, if it is not null.
+     */
+    public CompressedGallery(EmbeddingCodec codec, File file) {
+        this(codec.getName(), null, file, codec.getDimensions());
+        setCodec(codec, 0);
+    }
+
+    private CompressedGallery(String codecName, String dataFile, File file, int dimensions) {
+        this.codecName = codecName;
+        this.dataFile = dataFile;
+        this.file = file;
+        this.query = new float[dimensions];
+    }
+
+    private void setCodec(EmbeddingCodec codec, int trainedSamples) {
+        this.codec = codec;
+        this.trainedSamples = trainedSamples;
+        size = 0;
+        labels = new int[16];
+        codes = new byte[16 * codec.getCodeSize()];
+    }
+
+    /**
+     * Returns true unless the codec differs from the requested one, or the codebook should
+     * be retrained for the current gallery size.
+     */
+    private boolean isCurrent() {
+        boolean fallback = ProductQuantizer.NAME.equals(codecName)
+                && FALLBACK_CODEC.equals(codec.getName());
+        return (codec.getName().equals(codecName) || fallback) && !needsRetraining(size);
+    }
+
+    private boolean needsRetraining(int gallerySize) {
+        if (dataFile == null || !ProductQuantizer.NAME.equals(codecName)) return false;
+        if (!ProductQuantizer.NAME.equals(codec.getName())) return gallerySize >= MIN_PQ_SAMPLES;
+        return gallerySize >= RETRAIN_GROWTH * trainedSamples;
+    }
+
+    /**
+     * Re-encodes every embedding of the data file, training a new codec, and rewrites the
+     * gallery file.
+     */
+    private void rebuild() {
+        final ArrayList<Integer> dataLabels = new ArrayList<>();
+        final ArrayList<float[]> embeddings = new ArrayList<>();
+        try {
+            FileUtils.readEmbeddings(dataFile, query.length, (label, embedding) -> {
+                dataLabels.add(label);
+                embeddings.add(normalize(embedding));
+            });
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to read embeddings from %s", dataFile);
+        }
+
+        String name = codecName;
+        if (ProductQuantizer.NAME.equals(name) && embeddings.size() < MIN_PQ_SAMPLES) {
+            LOGGER.i("Using %s until there are %d embeddings to train PQ on",
+                    FALLBACK_CODEC, MIN_PQ_SAMPLES);
+            name = FALLBACK_CODEC;
+        }
+        setCodec(createCodec(name, query.length, embeddings), embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            add(dataLabels.get(i), embeddings.get(i));
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to write gallery %s", file);
+        }
+        LOGGER.i("Built %s gallery with %d embeddings", name, size);
+    }
+
+    @Override
+    public void train(int label, ArrayList<float[]> list) {
+        if (list.isEmpty()) return;
+        if (dataFile != null) {
+            FileUtils.appendEmbeddings(label, list, dataFile);
+            if (needsRetraining(size + list.size())) {
+                rebuild();
+                return;
+            }
+        }
+
+        int start = size;
+        for (float[] embedding : list) {
+            add(label, normalize(embedding));
+        }
+        if (file == null) return;
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            writeRecords(out, start);
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to append to gallery %s", file);
+        }
+    }
+
+    @Override
+    public void remove(int label) {
+        if (dataFile != null) {
+            FileUtils.removeEmbeddings(label, dataFile);
+        }
+
+        int codeSize = codec.getCodeSize();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (labels[i] == label) continue;
+            labels[kept] = labels[i];
+            System.arraycopy(codes, i * codeSize, codes, kept * codeSize, codeSize);
+            kept++;
+        }
+        if (kept == size) return;
+        size = kept;
+        if (file == null) return;
+
+        try {
+            write();
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to write gallery %s", file);
+        }
+    }
+
+    /**
+     * Adds a normalized embedding without persisting it.
+     */
+    public void add(int label, float[] embedding) {
+        ensureCapacity();
+        labels[size] = label;
+        codec.encode(embedding, codes, size * codec.getCodeSize());
+        size++;
+    }
+
+    private void ensureCapacity() {
+        if (size == labels.length) {
+            labels = Arrays.copyOf(labels, size * 2);
+            codes = Arrays.copyOf(codes, size * 2 * codec.getCodeSize());
+        }
+    }
+
+    @Override
+    public Pair<Integer, Float> predict(FloatBuffer buffer) {
+        buffer.duplicate().get(query);
+        return predict(normalize(query));
+    }
+
+    /**
+     * Returns the label of the most similar stored code and its similarity.
+     */
+    public Pair<Integer, Float> predict(float[] normalizedQuery) {
+        EmbeddingCodec.Query q = codec.prepare(normalizedQuery);
+        int codeSize = codec.getCodeSize();
+
+        int best = 0;
+        float bestSimilarity = 0f;
+        for (int i = 0; i < size; i++) {
+            float similarity = q.similarity(codes, i * codeSize);
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = labels[i];
+            }
+        }
+        return new Pair<>(best, bestSimilarity);
+    }
+
+    @Override
+    public float getMinConfidence() {
+        return MIN_SIMILARITY;
+    }
+
+    public EmbeddingCodec getCodec() {
+        return codec;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held in memory for the stored embeddings, excluding the codec parameters.
+     */
+    public long getCodeBytes() {
+        return (long) size * codec.getCodeSize();
+    }
+
+    private void write() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(codec.getDimensions());
+            out.writeUTF(codec.getName());
+            out.writeInt(trainedSamples);
+            codec.write(out);
+            writeRecords(out, 0);
+        }
+    }
+
+    private void writeRecords(DataOutputStream out, int start) throws IOException {
+        int codeSize = codec.getCodeSize();
+        for (int i = start; i < size; i++) {
+            out.writeInt(labels[i]);
+            out.write(codes, i * codeSize, codeSize);
+        }
+    }
+
+    private static CompressedGallery read(File file, String codecName, String dataFile)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported gallery file " + file);
+            }
+
+            int dimensions = in.readInt();
+            String name = in.readUTF();
+            int trainedSamples = in.readInt();
+            EmbeddingCodec codec;
+            switch (name) {
+                case Float16Codec.NAME:
+                    codec = new Float16Codec(dimensions);
+                    break;
+                case Int8Codec.NAME:
+                    codec = new Int8Codec(dimensions);
+                    break;
+                case ProductQuantizer.NAME:
+                    codec = ProductQuantizer.read(in, dimensions);
+                    break;
+                default:
+                    throw new IOException("Unknown embedding codec '" + name + "'");
+            }
+
+            CompressedGallery gallery =
+                    new CompressedGallery(codecName, dataFile, file, dimensions);
+            gallery.setCodec(codec, trainedSamples);
+            int codeSize = codec.getCodeSize();
+            while (true) {
+                int label;
+                try {
+                    label = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                gallery.ensureCapacity();
+                in.readFully(gallery.codes, gallery.size * codeSize, codeSize);
+                gallery.labels[gallery.size++] = label;
+            }
+            return gallery;
+        }
+    }
+
+    static float[] normalize(float[] v) {
+        double sum = 0;
+        for (float x : v) {
+            sum += x * x;
+        }
+        float norm = (float) Math.max(Math.sqrt(sum), 1e-12);
+
+        float[] normalized = new float[v.length];
+        for (int i = 0; i < v.length; i++) {
+            normalized[i] = v[i] / norm;
+        }
+        return normalized;
+    }
+}
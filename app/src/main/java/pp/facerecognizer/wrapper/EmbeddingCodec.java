@@ -0,0 +1,51 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed-size compressed representation of an L2-normalized embedding.
+ * Matching runs on the codes directly: a query is prepared once in full precision and
+ * then scored against each stored code (asymmetric distance computation).
+ */
+public interface EmbeddingCodec {
+    /**
+     * Scores codes against one full precision query.
+     */
+    interface Query {
+        /**
+         * Returns the approximate cosine similarity between the query and the code
+         * starting at offset.
+         */
+        float similarity(byte[] codes, int offset);
+    }
+
+    /**
+     * Short name used in the gallery file and in reports.
+     */
+    String getName();
+
+    int getDimensions();
+
+    /**
+     * Bytes per encoded embedding.
+     */
+    int getCodeSize();
+
+    /**
+     * Encodes a normalized embedding into code[offset .. offset + getCodeSize()).
+     */
+    void encode(float[] embedding, byte[] code, int offset);
+
+    void decode(byte[] code, int offset, float[] out);
+
+    /**
+     * Prepares a normalized query for scoring against codes.
+     */
+    Query prepare(float[] query);
+
+    /**
+     * Writes the codec parameters (e.g. a trained codebook) after the name.
+     */
+    void write(DataOutputStream out) throws IOException;
+}
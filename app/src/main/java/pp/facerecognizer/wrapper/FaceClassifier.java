@@ -0,0 +1,32 @@
+package pp.facerecognizer.wrapper;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import androidx.core.util.Pair;
+
+/**
+ * Maps a FaceNet embedding to one of the enrolled labels.
+ */
+public interface FaceClassifier {
+    /**
+     * Enrolls the embeddings under the given label and persists them.
+     */
+    void train(int label, ArrayList<float[]> list);
+
+    /**
+     * Forgets every embedding enrolled under the label, including its rows in the data file,
+     * so a rebuild from the data file does not bring it back.
+     */
+    void remove(int label);
+
+    /**
+     * Returns the best matching label and its confidence.
+     */
+    Pair<Integer, Float> predict(FloatBuffer buffer);
+
+    /**
+     * Confidence above which a prediction is reported as a known person.
+     */
+    float getMinConfidence();
+}
@@ -0,0 +1,343 @@
+package pp.facerecognizer.wrapper;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.Classifier;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Compares the face classifiers on the enrolled data file. Every TEST_EVERY_NTH row is
+ * held out for testing and the rest is used for enrollment.
+ * {@link #runIndex} separately measures the HNSW index at gallery sizes we do not ship,
+ * and {@link #runPca} repeats the comparison on PCA-projected embeddings.
+ */
+public class FaceClassifierBenchmark {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int TEST_EVERY_NTH = 5;
+
+    private static final String TRAIN_FILE = "benchmark_data";
+    private static final String MODEL_FILE = "benchmark_model";
+
+    /**
+     * Rows of the data file, split into enrollment and held-out test embeddings.
+     */
+    private static final class Split {
+        final ArrayList<Integer> trainLabels = new ArrayList<>();
+        final ArrayList<float[]> trainEmbeddings = new ArrayList<>();
+        final ArrayList<Integer> testLabels = new ArrayList<>();
+        final ArrayList<float[]> testEmbeddings = new ArrayList<>();
+
+        static Split read(int dimensions) throws IOException {
+            final Split split = new Split();
+            final int[] row = {0};
+            FileUtils.readEmbeddings(FileUtils.DATA_FILE, dimensions, (label, embedding) -> {
+                if (row[0]++ % TEST_EVERY_NTH == 0) {
+                    split.testLabels.add(label);
+                    split.testEmbeddings.add(embedding);
+                } else {
+                    split.trainLabels.add(label);
+                    split.trainEmbeddings.add(embedding);
+                }
+            });
+            return split;
+        }
+
+        int size() {
+            return trainLabels.size() + testLabels.size();
+        }
+    }
+
+    /**
+     * Runs the benchmark and returns a printable report.
+     */
+    public static String run() throws IOException {
+        final Split split = Split.read(Classifier.EMBEDDING_SIZE);
+
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("Train: %d, test: %d\n",
+                split.trainLabels.size(), split.testLabels.size()));
+        report.append(compare(split, Classifier.EMBEDDING_SIZE));
+
+        LOGGER.i("Face classifier benchmark:\n%s", report);
+        return report.toString();
+    }
+
+    /**
+     * Fits PCA on the enrollment split and reruns the comparison on projected embeddings,
+     * to report the accuracy and cost impact of each component count.
+     */
+    public static String runPca(int... componentCounts) throws IOException {
+        final Split split = Split.read(Classifier.EMBEDDING_SIZE);
+
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%d dims:\n", Classifier.EMBEDDING_SIZE));
+        report.append(compare(split, Classifier.EMBEDDING_SIZE));
+
+        for (int components : componentCounts) {
+            long startTime = SystemClock.uptimeMillis();
+            final Pca pca = Pca.fit(split.trainEmbeddings, Classifier.EMBEDDING_SIZE, components);
+            final long fitTime = SystemClock.uptimeMillis() - startTime;
+
+            final Split projected = new Split();
+            projected.trainLabels.addAll(split.trainLabels);
+            projected.testLabels.addAll(split.testLabels);
+            for (float[] embedding : split.trainEmbeddings) {
+                projected.trainEmbeddings.add(pca.project(embedding));
+            }
+            for (float[] embedding : split.testEmbeddings) {
+                projected.testEmbeddings.add(pca.project(embedding));
+            }
+
+            report.append(String.format("%d dims (fit %dms, explained variance %.3f):\n",
+                    components, fitTime, pca.getExplainedVariance()));
+            report.append(compare(projected, components));
+        }
+
+        LOGGER.i("PCA evaluation:\n%s", report);
+        return report.toString();
+    }
+
+    private static String compare(Split split, int dimensions) throws IOException {
+        final StringBuilder report = new StringBuilder();
+        final File trainFile = new File(FileUtils.ROOT + File.separator + TRAIN_FILE);
+        final File modelFile = new File(FileUtils.ROOT + File.separator + MODEL_FILE);
+        trainFile.delete();
+        try {
+            // Centroid: enrollment is just the running-sum update.
+            final CentroidClassifier centroid = new CentroidClassifier(TRAIN_FILE, dimensions);
+            long startTime = SystemClock.uptimeMillis();
+            for (int i = 0; i < split.trainLabels.size(); i++) {
+                centroid.add(split.trainLabels.get(i), split.trainEmbeddings.get(i));
+            }
+            final long centroidTrainTime = SystemClock.uptimeMillis() - startTime;
+            report.append(evaluate("centroid", centroidTrainTime, dimensions,
+                    centroid::predict, split));
+
+            // HNSW: nearest gallery embedding.
+            final HnswIndex index = new HnswIndex(dimensions);
+            startTime = SystemClock.uptimeMillis();
+            for (int i = 0; i < split.trainLabels.size(); i++) {
+                index.add(split.trainLabels.get(i), split.trainEmbeddings.get(i));
+            }
+            final long indexTrainTime = SystemClock.uptimeMillis() - startTime;
+            report.append(evaluate("hnsw", indexTrainTime, dimensions, buffer -> {
+                HnswIndex.Neighbor nearest = index.search(buffer, 1).get(0);
+                return new Pair<>(nearest.label, 1 - nearest.distance);
+            }, split));
+
+            // SVM: write the split in LibSVM format and train a model on it.
+            for (int i = 0; i < split.trainLabels.size(); i++) {
+                final ArrayList<float[]> single = new ArrayList<>(1);
+                single.add(split.trainEmbeddings.get(i));
+                FileUtils.appendEmbeddings(split.trainLabels.get(i), single, TRAIN_FILE);
+            }
+            final LibSVM svm = LibSVM.create(TRAIN_FILE, MODEL_FILE, dimensions);
+            startTime = SystemClock.uptimeMillis();
+            svm.train();
+            final long svmTrainTime = SystemClock.uptimeMillis() - startTime;
+            report.append(evaluate("svm", svmTrainTime, dimensions, svm::predict, split));
+            report.append(String.format("storage: %.0f bytes/embedding, svm model %d bytes\n",
+                    trainFile.length() / (float) Math.max(split.trainLabels.size(), 1),
+                    modelFile.length()));
+        } finally {
+            trainFile.delete();
+            modelFile.delete();
+        }
+        return report.toString();
+    }
+
+    /**
+     * Reports size and accuracy of each gallery codec against float32 nearest-neighbor
+     * matching on the data file split. Product quantization is trained on the train split.
+     */
+    public static String runCodecs() throws IOException {
+        final int dims = Classifier.EMBEDDING_SIZE;
+        final Split split = Split.read(dims);
+        final ArrayList<Integer> trainLabels = split.trainLabels;
+        final ArrayList<float[]> trainEmbeddings = new ArrayList<>();
+        final ArrayList<Integer> testLabels = split.testLabels;
+        final ArrayList<float[]> testEmbeddings = new ArrayList<>();
+        for (float[] embedding : split.trainEmbeddings) {
+            trainEmbeddings.add(CompressedGallery.normalize(embedding));
+        }
+        for (float[] embedding : split.testEmbeddings) {
+            testEmbeddings.add(CompressedGallery.normalize(embedding));
+        }
+
+        final File dataFile = new File(FileUtils.ROOT + File.separator + FileUtils.DATA_FILE);
+        final float textBytes = dataFile.length() / (float) Math.max(split.size(), 1);
+
+        // Float32 baseline: exact nearest neighbor.
+        int baselineCorrect = 0;
+        final int[] baseline = new int[testLabels.size()];
+        for (int t = 0; t < testLabels.size(); t++) {
+            float bestSimilarity = -Float.MAX_VALUE;
+            for (int i = 0; i < trainLabels.size(); i++) {
+                float dot = 0;
+                for (int j = 0; j < dims; j++) {
+                    dot += testEmbeddings.get(t)[j] * trainEmbeddings.get(i)[j];
+                }
+                if (dot > bestSimilarity) {
+                    bestSimilarity = dot;
+                    baseline[t] = trainLabels.get(i);
+                }
+            }
+            if (baseline[t] == testLabels.get(t)) baselineCorrect++;
+        }
+
+        final int n = Math.max(testLabels.size(), 1);
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("text: %.0f bytes/embedding\n", textBytes));
+        report.append(String.format("float32: %d bytes/embedding, accuracy %.1f%%\n",
+                dims * 4, 100f * baselineCorrect / n));
+
+        final float[] decoded = new float[dims];
+        for (String name : new String[] {"fp16", "int8", "pq"}) {
+            final EmbeddingCodec codec = CompressedGallery.createCodec(name, dims, trainEmbeddings);
+            final CompressedGallery gallery = new CompressedGallery(codec, null);
+            for (int i = 0; i < trainLabels.size(); i++) {
+                gallery.add(trainLabels.get(i), trainEmbeddings.get(i));
+            }
+
+            int correct = 0;
+            int agree = 0;
+            double reconstruction = 0;
+            final byte[] code = new byte[codec.getCodeSize()];
+            long startTime = System.nanoTime();
+            for (int t = 0; t < testLabels.size(); t++) {
+                int label = gallery.predict(testEmbeddings.get(t)).first;
+                if (label == testLabels.get(t)) correct++;
+                if (label == baseline[t]) agree++;
+            }
+            final long matchTime = System.nanoTime() - startTime;
+
+            for (float[] embedding : testEmbeddings) {
+                codec.encode(embedding, code, 0);
+                codec.decode(code, 0, decoded);
+                float dot = 0;
+                for (int j = 0; j < dims; j++) {
+                    dot += embedding[j] * decoded[j];
+                }
+                reconstruction += dot;
+            }
+
+            final int codeSize = codec.getCodeSize();
+            report.append(String.format(
+                    "%s: %d bytes/embedding (%.1fx vs float32, %.1fx vs text), accuracy %.1f%%,"
+                            + " agrees with float32 %.1f%%, reconstruction cosine %.4f,"
+                            + " match %.3fms\n",
+                    name, codeSize, dims * 4f / codeSize, textBytes / codeSize,
+                    100f * correct / n, 100f * agree / n, reconstruction / n,
+                    matchTime / 1e6 / n));
+        }
+
+        LOGGER.i("Embedding codec evaluation:\n%s", report);
+        return report.toString();
+    }
+
+    /**
+     * Measures HNSW lookup latency and recall@k against brute force on a synthetic
+     * gallery, since the shipped data set is far too small to show the difference.
+     * Embeddings are drawn around one random center per identity, like FaceNet clusters.
+     */
+    public static String runIndex(int size, int identities, int k, int queries) {
+        final Random random = new Random(0);
+        final int dims = Classifier.EMBEDDING_SIZE;
+        final float[][] centers = new float[identities][dims];
+        for (float[] center : centers) {
+            for (int i = 0; i < dims; i++) {
+                center[i] = (float) random.nextGaussian();
+            }
+        }
+
+        final HnswIndex index = new HnswIndex(dims);
+        final float[] embedding = new float[dims];
+        long startTime = SystemClock.uptimeMillis();
+        for (int n = 0; n < size; n++) {
+            int label = n % identities;
+            sample(random, centers[label], embedding);
+            index.add(label, embedding);
+        }
+        final long buildTime = SystemClock.uptimeMillis() - startTime;
+
+        long searchTime = 0;
+        long bruteForceTime = 0;
+        int hits = 0;
+        for (int q = 0; q < queries; q++) {
+            sample(random, centers[random.nextInt(identities)], embedding);
+
+            startTime = System.nanoTime();
+            List<HnswIndex.Neighbor> approximate = index.search(embedding, k);
+            searchTime += System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            List<HnswIndex.Neighbor> exact = index.searchBruteForce(embedding, k);
+            bruteForceTime += System.nanoTime() - startTime;
+
+            final HashSet<Integer> exactIds = new HashSet<>();
+            for (HnswIndex.Neighbor neighbor : exact) {
+                exactIds.add(neighbor.id);
+            }
+            for (HnswIndex.Neighbor neighbor : approximate) {
+                if (exactIds.contains(neighbor.id)) hits++;
+            }
+        }
+
+        final String report = String.format(
+                "HNSW %d embeddings: build %dms, search %.3fms, brute force %.3fms, recall@%d %.3f",
+                size, buildTime, searchTime / 1e6 / queries, bruteForceTime / 1e6 / queries,
+                k, hits / (float) (k * queries));
+        LOGGER.i(report);
+        return report;
+    }
+
+    private static void sample(Random random, float[] center, float[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = center[i] + 0.5f * (float) random.nextGaussian();
+        }
+    }
+
+    private interface Predictor {
+        Pair<Integer, Float> predict(FloatBuffer buffer);
+    }
+
+    private static String evaluate(String name, long trainTime, int dimensions,
+                                   Predictor predictor, Split split) {
+        final ArrayList<Integer> labels = split.testLabels;
+        final ArrayList<float[]> embeddings = split.testEmbeddings;
+        // LibSVM reads straight from the buffer address, so it has to be direct.
+        final FloatBuffer buffer = ByteBuffer.allocateDirect(dimensions * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        int correct = 0;
+        long startTime = SystemClock.uptimeMillis();
+        for (int i = 0; i < labels.size(); i++) {
+            buffer.clear();
+            buffer.put(embeddings.get(i));
+            buffer.flip();
+
+            if (predictor.predict(buffer).first.equals(labels.get(i))) {
+                correct++;
+            }
+        }
+        final long predictTime = SystemClock.uptimeMillis() - startTime;
+
+        final int n = Math.max(labels.size(), 1);
+        return String.format("%s: train %dms, predict %.2fms/face, accuracy %.1f%%\n",
+                name, trainTime, predictTime / (float) n, 100f * correct / n);
+    }
+}
@@ -19,18 +19,16 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.os.Trace;
 
-import org.tensorflow.Graph;
-import org.tensorflow.Operation;
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import pp.facerecognizer.Classifier;
 
-public class FaceNet {
+public class FaceNet implements SessionTuner.Tunable {
     private static final String MODEL_FILE = "file:///android_asset/facenet.pb";
+    // Eight-bit variant produced by tools/quantize_graphs.sh.
+    private static final String QUANTIZED_MODEL_FILE = "file:///android_asset/facenet_quant.pb";
     private static final int BYTE_SIZE_OF_FLOAT = 4;
 
     // Config values.
@@ -46,9 +44,10 @@ public class FaceNet {
     private FloatBuffer outputBuffer;
     private String[] outputNames;
 
-    private TensorFlowInferenceInterface inferenceInterface;
+    private InferenceEngine inferenceInterface;
 
     private Bitmap bitmap;
+    private Bitmap warmUpBitmap;
 
     /**
      * Initializes a native TensorFlow session for classifying images.
@@ -59,20 +58,55 @@ public class FaceNet {
             final AssetManager assetManager,
             final int inputHeight,
             final int inputWidth) {
+        return create(assetManager, inputHeight, inputWidth, SessionConfig.DEFAULT);
+    }
+
+    /**
+     * Initializes a native TensorFlow session with the given thread configuration.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param config The session options to run the graph with.
+     */
+    public static FaceNet create(
+            final AssetManager assetManager,
+            final int inputHeight,
+            final int inputWidth,
+            final SessionConfig config) {
+        return create(new TensorFlowEngine(assetManager, MODEL_FILE, config),
+                inputHeight, inputWidth);
+    }
+
+    /**
+     * Initializes a native TensorFlow session for the quantized model.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param config The session options to run the graph with.
+     */
+    public static FaceNet createQuantized(
+            final AssetManager assetManager,
+            final int inputHeight,
+            final int inputWidth,
+            final SessionConfig config) {
+        return create(new TensorFlowEngine(assetManager, QUANTIZED_MODEL_FILE, config),
+                inputHeight, inputWidth);
+    }
+
+    private static FaceNet create(
+            final InferenceEngine engine,
+            final int inputHeight,
+            final int inputWidth) {
         final FaceNet d = new FaceNet();
 
-        d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, MODEL_FILE);
+        d.inferenceInterface = engine;
 
-        final Graph g = d.inferenceInterface.graph();
+        final InferenceEngine g = d.inferenceInterface;
 
         d.inputName = "input";
         // The inputName node has a shape of [N, H, W, C], where
         // N is the batch size
         // H = W are the height and width
         // C is the number of channels (3 for our purposes - RGB)
-        final Operation
-                inputOp1 = g.operation(d.inputName);
-        if (inputOp1 == null) {
+        if (!g.hasOperation(d.inputName)) {
             throw new RuntimeException("Failed to find input Node '" + d.inputName + "'");
         }
 
@@ -80,8 +114,7 @@ public class FaceNet {
         d.inputWidth = inputWidth;
 
         d.outputNames = new String[] {"embeddings"};
-        final Operation outputOp1 = g.operation(d.outputNames[0]);
-        if (outputOp1 == null) {
+        if (!g.hasOperation(d.outputNames[0])) {
             throw new RuntimeException("Failed to find output Node'" + d.outputNames[0] + "'");
         }
 
@@ -148,7 +181,7 @@ public class FaceNet {
 
         // Run the inference call.
         Trace.beginSection("run");
-        inferenceInterface.run(outputNames, false);
+        inferenceInterface.run(outputNames);
         Trace.endSection();
 
         // Copy the output Tensor back into the output array.
@@ -162,10 +195,22 @@ public class FaceNet {
         return outputBuffer;
     }
 
+    /**
+     * Embeds a blank face so TensorFlow's lazy initialization is paid up front.
+     */
+    @Override
+    public void warmUp() {
+        if (warmUpBitmap == null) {
+            warmUpBitmap = Bitmap.createBitmap(inputWidth, inputHeight, Config.ARGB_8888);
+        }
+        getEmbeddings(warmUpBitmap, new Rect(0, 0, inputWidth, inputHeight));
+    }
+
     public String getStatString() {
         return inferenceInterface.getStatString();
     }
 
+    @Override
     public void close() {
         inferenceInterface.close();
     }
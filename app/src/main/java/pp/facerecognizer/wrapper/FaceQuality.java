@@ -0,0 +1,170 @@
+package pp.facerecognizer.wrapper;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Cheap checks that reject MTCNN faces which FaceNet would only turn into "Unknown":
+ * faces that are too small, turned too far from the camera, or too blurry.
+ * Pose comes from the five MTCNN landmarks. Sharpness is the variance of the
+ * Laplacian of the face in the camera's luminance plane, read in place, so no pixels are
+ * copied or converted from the RGB crop.
+ */
+public class FaceQuality {
+    public static final int ACCEPTED = 0;
+    public static final int TOO_SMALL = 1;
+    public static final int OFF_ANGLE = 2;
+    public static final int BLURRY = 3;
+    private static final String[] REASONS = {"accepted", "small", "pose", "blur"};
+
+    public static final int DEFAULT_MIN_FACE_SIZE = 32;
+    public static final float DEFAULT_MAX_YAW = 0.3f;
+    public static final float DEFAULT_MAX_ROLL = 25f;
+    public static final float DEFAULT_MIN_SHARPNESS = 25f;
+
+    // Nose height between the eye line and the mouth line; about 0.55 for a frontal face.
+    private static final float MIN_PITCH = 0.3f;
+    private static final float MAX_PITCH = 0.8f;
+    // The Laplacian is taken on a grid of at most this many samples per side, so the
+    // measure does not depend on how large the face is.
+    private static final int SHARPNESS_GRID = 64;
+
+    private final int minFaceSize;
+    private final float maxYaw;
+    private final float maxRoll;
+    private final float minSharpness;
+
+    private final RectF frameBox = new RectF();
+    private final Rect region = new Rect();
+
+    private final long[] counts = new long[REASONS.length];
+
+    public FaceQuality() {
+        this(DEFAULT_MIN_FACE_SIZE, DEFAULT_MAX_YAW, DEFAULT_MAX_ROLL, DEFAULT_MIN_SHARPNESS);
+    }
+
+    /**
+     * The luminance plane of the camera frame the detection bitmap was cropped from.
+     * Wraps the buffer without copying it, so it follows the buffer's contents.
+     */
+    public static class LuminanceFrame {
+        private final byte[] data;
+        private final int width;
+        private final int height;
+        private final int stride;
+
+        public LuminanceFrame(byte[] data, int width, int height, int stride) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+        }
+    }
+
+    /**
+     * @param minFaceSize shortest box side in bitmap pixels.
+     * @param maxYaw nose offset from the eye midpoint along the eye line, in eye distances.
+     * @param maxRoll tilt of the eye line in degrees.
+     * @param minSharpness variance of the luminance Laplacian, in 8-bit luminance steps.
+     */
+    public FaceQuality(int minFaceSize, float maxYaw, float maxRoll, float minSharpness) {
+        this.minFaceSize = minFaceSize;
+        this.maxYaw = maxYaw;
+        this.maxRoll = maxRoll;
+        this.minSharpness = minSharpness;
+    }
+
+    /**
+     * Returns ACCEPTED, or the first check the face fails.
+     *
+     * @param box the face in the detection bitmap.
+     * @param landmarks the face's MTCNN landmarks, y1..y5 followed by x1..x5 for the
+     *                  eyes, the nose and the mouth corners.
+     * @param cropToFrame maps the detection bitmap onto the camera frame.
+     */
+    public synchronized int check(RectF box, float[] landmarks,
+                                  LuminanceFrame frame, Matrix cropToFrame) {
+        int result = ACCEPTED;
+        if (Math.min(box.width(), box.height()) < minFaceSize) {
+            result = TOO_SMALL;
+        } else if (!isFrontal(landmarks)) {
+            result = OFF_ANGLE;
+        } else if (getSharpness(frame, box, cropToFrame) < minSharpness) {
+            result = BLURRY;
+        }
+        counts[result]++;
+        return result;
+    }
+
+    private boolean isFrontal(float[] landmarks) {
+        float leftEyeX = landmarks[5], leftEyeY = landmarks[0];
+        float rightEyeX = landmarks[6], rightEyeY = landmarks[1];
+        float noseX = landmarks[7], noseY = landmarks[2];
+        float mouthX = (landmarks[8] + landmarks[9]) / 2, mouthY = (landmarks[3] + landmarks[4]) / 2;
+
+        float eyeDx = rightEyeX - leftEyeX, eyeDy = rightEyeY - leftEyeY;
+        float eyeDistance = (float) Math.hypot(eyeDx, eyeDy);
+        if (eyeDistance < 1f) return false;
+
+        double roll = Math.toDegrees(Math.atan2(eyeDy, eyeDx));
+        if (Math.abs(roll) > maxRoll) return false;
+
+        // Nose and mouth relative to the eye midpoint, split along and across the eye line.
+        float midX = (leftEyeX + rightEyeX) / 2, midY = (leftEyeY + rightEyeY) / 2;
+        float yaw = ((noseX - midX) * eyeDx + (noseY - midY) * eyeDy) / (eyeDistance * eyeDistance);
+        if (Math.abs(yaw) > maxYaw) return false;
+
+        float noseDown = ((noseY - midY) * eyeDx - (noseX - midX) * eyeDy) / eyeDistance;
+        float mouthDown = ((mouthY - midY) * eyeDx - (mouthX - midX) * eyeDy) / eyeDistance;
+        if (mouthDown <= 0) return false;
+        float pitch = noseDown / mouthDown;
+        return pitch >= MIN_PITCH && pitch <= MAX_PITCH;
+    }
+
+    /**
+     * Returns the variance of the 4-neighbour Laplacian of the frame's luminance inside the
+     * box, which cropToFrame maps from detection bitmap to frame coordinates.
+     */
+    public synchronized float getSharpness(LuminanceFrame frame, RectF box, Matrix cropToFrame) {
+        cropToFrame.mapRect(frameBox, box);
+        frameBox.round(region);
+        if (!region.intersect(0, 0, frame.width, frame.height)) return 0f;
+
+        int w = region.width(), h = region.height();
+        int step = Math.max(1, Math.min(w, h) / SHARPNESS_GRID);
+        if (w < 3 * step || h < 3 * step) return 0f;
+
+        byte[] data = frame.data;
+        int rowStep = step * frame.stride;
+        double sum = 0, sumSquares = 0;
+        int n = 0;
+        for (int y = region.top + step; y < region.bottom - step; y += step) {
+            for (int x = region.left + step; x < region.right - step; x += step) {
+                int i = y * frame.stride + x;
+                int laplacian = 4 * (data[i] & 0xFF)
+                        - (data[i - step] & 0xFF) - (data[i + step] & 0xFF)
+                        - (data[i - rowStep] & 0xFF) - (data[i + rowStep] & 0xFF);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                n++;
+            }
+        }
+        double mean = sum / n;
+        return (float) (sumSquares / n - mean * mean);
+    }
+
+    /**
+     * Number of faces skipped for each reason, out of all faces checked.
+     */
+    public synchronized String getStatString() {
+        long total = 0;
+        for (long count : counts) total += count;
+
+        StringBuilder builder = new StringBuilder("Quality skips:");
+        for (int i = 1; i < counts.length; i++) {
+            builder.append(' ').append(REASONS[i]).append(' ').append(counts[i]);
+        }
+        return builder.append(" of ").append(total).append('\n').toString();
+    }
+}
@@ -0,0 +1,108 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.DataOutputStream;
+
+/**
+ * Stores each component as an IEEE 754 half-precision float, 2x smaller than float32.
+ * android.util.Half needs API 26, so the conversion is done here.
+ */
+public class Float16Codec implements EmbeddingCodec {
+    static final String NAME = "fp16";
+
+    private final int dimensions;
+
+    public Float16Codec(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public int getCodeSize() {
+        return dimensions * 2;
+    }
+
+    @Override
+    public void encode(float[] embedding, byte[] code, int offset) {
+        for (int i = 0; i < dimensions; i++) {
+            short h = toHalf(embedding[i]);
+            code[offset + 2 * i] = (byte) h;
+            code[offset + 2 * i + 1] = (byte) (h >> 8);
+        }
+    }
+
+    @Override
+    public void decode(byte[] code, int offset, float[] out) {
+        for (int i = 0; i < dimensions; i++) {
+            out[i] = toFloat(half(code, offset + 2 * i));
+        }
+    }
+
+    @Override
+    public Query prepare(float[] query) {
+        // Decoding a half is cheap enough that a lookup table for all 65536 values
+        // would cost more in cache misses than it saves.
+        return (codes, offset) -> {
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += query[i] * toFloat(half(codes, offset + 2 * i));
+            }
+            return dot;
+        };
+    }
+
+    @Override
+    public void write(DataOutputStream out) {
+    }
+
+    private static short half(byte[] code, int offset) {
+        return (short) ((code[offset] & 0xFF) | (code[offset + 1] << 8));
+    }
+
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent <= 0) {
+            // Subnormal or zero. Embedding components this small are noise anyway.
+            if (exponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int rounded = (mantissa + (1 << (shift - 1))) >> shift;
+            return (short) (sign | rounded);
+        }
+        if (exponent >= 0x1F) {
+            // Overflow (cannot happen for normalized embeddings), clamp to the largest half.
+            return (short) (sign | 0x7BFF);
+        }
+
+        // Round to nearest; a mantissa carry correctly bumps the exponent.
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0) half++;
+        return (short) half;
+    }
+
+    static float toFloat(short half) {
+        int h = half & 0xFFFF;
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >>> 10) & 0x1F;
+        int mantissa = h & 0x3FF;
+
+        if (exponent == 0) {
+            // Subnormal or zero.
+            float value = mantissa / 16777216f; // 2^-24
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,135 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Identifies faces with a top-k search over every enrolled embedding in an {@link HnswIndex}.
+ * Lookups stay sub-linear in the gallery size, and no per-class model has to be trained.
+ * The index is persisted next to the data file and rebuilt from it when stale.
+ */
+public class HnswClassifier implements FaceClassifier {
+    private static final Logger LOGGER = new Logger();
+
+    // Cosine similarity to the matched gallery embeddings above which a face is considered known.
+    private static final float MIN_SIMILARITY = 0.5f;
+    // Neighbors that vote on the label.
+    private static final int TOP_K = 5;
+
+    private final HnswIndex index;
+    private final String dataFile;
+    private final File indexFile;
+
+    /**
+     * Loads the stored index, or rebuilds it from the data file when it is missing or
+     * older than the data file (e.g. after enrolling with another classifier).
+     */
+    public static HnswClassifier load(String dataFile, String indexFile, int dimensions) {
+        File data = new File(FileUtils.ROOT + File.separator + dataFile);
+        File file = new File(FileUtils.ROOT + File.separator + indexFile);
+
+        HnswIndex index = null;
+        if (file.exists() && file.lastModified() >= data.lastModified()) {
+            try {
+                index = HnswIndex.load(file);
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to load index %s", file);
+            }
+        }
+
+        HnswClassifier classifier;
+        if (index != null && index.getDimensions() == dimensions) {
+            classifier = new HnswClassifier(index, dataFile, file);
+        } else {
+            classifier = new HnswClassifier(new HnswIndex(dimensions), dataFile, file);
+            try {
+                FileUtils.readEmbeddings(dataFile, dimensions, classifier.index::add);
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to read embeddings from %s", dataFile);
+            }
+            classifier.save();
+        }
+        LOGGER.i("Loaded index with %d embeddings", classifier.index.size());
+        return classifier;
+    }
+
+    private HnswClassifier(HnswIndex index, String dataFile, File indexFile) {
+        this.index = index;
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    public void train(int label, ArrayList<float[]> list) {
+        FileUtils.appendEmbeddings(label, list, dataFile);
+        for (float[] embedding : list) {
+            index.add(label, embedding);
+        }
+        save();
+    }
+
+    @Override
+    public void remove(int label) {
+        FileUtils.removeEmbeddings(label, dataFile);
+        index.removeLabel(label);
+        save();
+    }
+
+    /**
+     * Votes among the nearest neighbors above the similarity threshold, weighted by
+     * similarity. Falls back to the single nearest neighbor when none pass.
+     */
+    @Override
+    public Pair<Integer, Float> predict(FloatBuffer buffer) {
+        List<HnswIndex.Neighbor> neighbors = index.search(buffer, TOP_K);
+        if (neighbors.isEmpty()) return new Pair<>(0, 0f);
+
+        int best = neighbors.get(0).label;
+        float bestScore = 0f;
+        for (HnswIndex.Neighbor candidate : neighbors) {
+            if (1 - candidate.distance <= MIN_SIMILARITY) break;
+
+            float score = 0f;
+            for (HnswIndex.Neighbor neighbor : neighbors) {
+                float similarity = 1 - neighbor.distance;
+                if (neighbor.label == candidate.label && similarity > MIN_SIMILARITY) {
+                    score += similarity;
+                }
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                best = candidate.label;
+            }
+        }
+
+        // Report the closest match of the winning label as the confidence.
+        for (HnswIndex.Neighbor neighbor : neighbors) {
+            if (neighbor.label == best) return new Pair<>(best, 1 - neighbor.distance);
+        }
+        return new Pair<>(best, 0f);
+    }
+
+    @Override
+    public float getMinConfidence() {
+        return MIN_SIMILARITY;
+    }
+
+    public HnswIndex getIndex() {
+        return index;
+    }
+
+    private void save() {
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to save index %s", indexFile);
+        }
+    }
+}
@@ -0,0 +1,723 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) over L2-normalized
+ * embeddings, searched by cosine distance.
+ * Nodes are inserted and deleted incrementally. Deleted nodes keep routing searches
+ * but are never returned, so the graph stays connected without a rebuild.
+ *
+ * The index file is a list of records that load() replays. save() appends records for the
+ * nodes added, the links changed and the nodes deleted since the last save. Once those
+ * patches outweigh the rest of the file, or too many nodes are deleted, it drops the
+ * deleted nodes and rewrites the file compactly.
+ */
+public class HnswIndex {
+    private static final int MAGIC = 0x484e5357; // "HNSW"
+    private static final int VERSION = 2;
+
+    // Record tags of the index file.
+    private static final int RECORD_NODE = 1;
+    private static final int RECORD_LINKS = 2;
+    private static final int RECORD_DELETE = 3;
+    private static final int RECORD_ENTRY = 4;
+
+    // Fraction of deleted nodes above which save() compacts the index.
+    private static final float MAX_DELETED_FRACTION = 0.25f;
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_EF_SEARCH = 50;
+
+    /**
+     * A search hit, nearest first.
+     */
+    public static final class Neighbor {
+        public final int id;
+        public final int label;
+        public final float distance;
+
+        Neighbor(int id, int label, float distance) {
+            this.id = id;
+            this.label = label;
+            this.distance = distance;
+        }
+    }
+
+    private final int dimensions;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private int efSearch = DEFAULT_EF_SEARCH;
+
+    private final ArrayList<float[]> vectors = new ArrayList<>();
+    // links.get(node)[level] holds the neighbor count at [0], followed by the neighbor ids.
+    private final ArrayList<int[][]> links = new ArrayList<>();
+    private int[] labels = new int[16];
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Persistence state: nodes in the file, changes to them since, the file's length and
+    // how much of it are patch records, which a compaction would drop.
+    private int savedNodes;
+    private final BitSet dirtyLinks = new BitSet();
+    private final BitSet dirtyDeleted = new BitSet();
+    private long fileBytes = -1;
+    private long patchBytes;
+
+    // Search scratch space, reused across calls.
+    private int[] visited = new int[16];
+    private int visitedTag;
+    private final LongHeap candidates = new LongHeap();
+    private final LongHeap results = new LongHeap();
+
+    public HnswIndex(int dimensions) {
+        this(dimensions, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    public HnswIndex(int dimensions, int m, int efConstruction) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public synchronized int size() {
+        return vectors.size() - deletedCount;
+    }
+
+    /**
+     * Sets how many candidates are kept while searching level 0. Higher is slower
+     * but closer to the brute force result.
+     */
+    public synchronized void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Inserts an embedding and returns its node id.
+     */
+    public synchronized int add(int label, float[] embedding) {
+        float[] q = normalize(embedding);
+        int id = vectors.size();
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+
+        int[][] nodeLinks = new int[level + 1][];
+        for (int lc = 0; lc <= level; lc++) {
+            nodeLinks[lc] = new int[maxLinks(lc) + 1];
+        }
+        vectors.add(q);
+        links.add(nodeLinks);
+        if (id >= labels.length) labels = Arrays.copyOf(labels, labels.length * 2);
+        labels[id] = label;
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return id;
+        }
+
+        int ep = entryPoint;
+        for (int lc = maxLevel; lc > level; lc--) {
+            ep = idOf(searchLayer(q, ep, 1, lc)[0]);
+        }
+
+        for (int lc = Math.min(level, maxLevel); lc >= 0; lc--) {
+            long[] found = searchLayer(q, ep, efConstruction, lc);
+            int[] selected = selectNeighbors(found, found.length, m);
+            System.arraycopy(selected, 0, nodeLinks[lc], 0, selected[0] + 1);
+
+            for (int i = 1; i <= selected[0]; i++) {
+                connect(selected[i], id, lc);
+            }
+            ep = idOf(found[0]);
+        }
+
+        if (level > maxLevel) {
+            entryPoint = id;
+            maxLevel = level;
+        }
+        return id;
+    }
+
+    /**
+     * Excludes a node from search results.
+     */
+    public synchronized void remove(int id) {
+        if (!deleted.get(id)) {
+            deleted.set(id);
+            deletedCount++;
+            if (id < savedNodes) dirtyDeleted.set(id);
+        }
+    }
+
+    /**
+     * Excludes every node enrolled under the label from search results.
+     */
+    public synchronized void removeLabel(int label) {
+        for (int i = 0; i < vectors.size(); i++) {
+            if (labels[i] == label) remove(i);
+        }
+    }
+
+    /**
+     * Returns up to k nearest live nodes to the query, nearest first.
+     */
+    public synchronized List<Neighbor> search(float[] query, int k) {
+        List<Neighbor> neighbors = new ArrayList<>(k);
+        if (entryPoint < 0) return neighbors;
+
+        float[] q = normalize(query);
+        int ep = entryPoint;
+        for (int lc = maxLevel; lc > 0; lc--) {
+            ep = idOf(searchLayer(q, ep, 1, lc)[0]);
+        }
+
+        // Deleted nodes take up candidate slots, so widen the beam to make up for them.
+        int ef = Math.max(efSearch, k) + Math.min(deletedCount, efSearch);
+        for (long key : searchLayer(q, ep, ef, 0)) {
+            int id = idOf(key);
+            if (deleted.get(id)) continue;
+            neighbors.add(new Neighbor(id, labels[id], distanceOf(key)));
+            if (neighbors.size() == k) break;
+        }
+        return neighbors;
+    }
+
+    public List<Neighbor> search(FloatBuffer buffer, int k) {
+        float[] query = new float[dimensions];
+        buffer.duplicate().get(query);
+        return search(query, k);
+    }
+
+    /**
+     * Exact search over every live node, used to measure the recall of {@link #search}.
+     */
+    public synchronized List<Neighbor> searchBruteForce(float[] query, int k) {
+        float[] q = normalize(query);
+        long[] keys = new long[vectors.size() - deletedCount];
+        int n = 0;
+        for (int i = 0; i < vectors.size(); i++) {
+            if (!deleted.get(i)) keys[n++] = key(distance(q, vectors.get(i)), i);
+        }
+        Arrays.sort(keys);
+
+        List<Neighbor> neighbors = new ArrayList<>(k);
+        for (int i = 0; i < Math.min(k, n); i++) {
+            int id = idOf(keys[i]);
+            neighbors.add(new Neighbor(id, labels[id], distanceOf(keys[i])));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Persists the changes since the last save() or load() of this file by appending
+     * them. Writes the whole index instead, without deleted nodes, if the file is not the
+     * one last written or compaction is due. Node ids change when deleted nodes are
+     * dropped.
+     */
+    public synchronized void save(File file) throws IOException {
+        boolean compact = patchBytes > fileBytes - patchBytes
+                || deletedCount > MAX_DELETED_FRACTION * vectors.size();
+        if (compact || file.length() != fileBytes) {
+            compact();
+            writeAll(file);
+        } else {
+            appendChanges(file);
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the target, so a crash
+     * never leaves a truncated index behind.
+     */
+    private void writeAll(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimensions);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            for (int i = 0; i < vectors.size(); i++) {
+                writeNode(out, i);
+            }
+            writeEntry(out);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to move " + tmp + " to " + file);
+        }
+
+        savedNodes = vectors.size();
+        dirtyLinks.clear();
+        dirtyDeleted.clear();
+        fileBytes = file.length();
+        patchBytes = 0;
+    }
+
+    /**
+     * Appends the new nodes and patches the links and deletions of saved ones. A crash
+     * may leave a partial record at the end, which makes load() fail, and the index is
+     * then rebuilt from the data file.
+     */
+    private void appendChanges(File file) throws IOException {
+        int nodeBytes;
+        int written;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            for (int i = savedNodes; i < vectors.size(); i++) {
+                writeNode(out, i);
+            }
+            nodeBytes = out.size();
+            for (int i = dirtyLinks.nextSetBit(0); i >= 0; i = dirtyLinks.nextSetBit(i + 1)) {
+                writeLinks(out, i);
+            }
+            for (int i = dirtyDeleted.nextSetBit(0); i >= 0; i = dirtyDeleted.nextSetBit(i + 1)) {
+                out.writeByte(RECORD_DELETE);
+                out.writeInt(i);
+            }
+            writeEntry(out);
+            written = out.size();
+        }
+
+        savedNodes = vectors.size();
+        dirtyLinks.clear();
+        dirtyDeleted.clear();
+        fileBytes += written;
+        patchBytes += written - nodeBytes;
+    }
+
+    private void writeNode(DataOutputStream out, int id) throws IOException {
+        out.writeByte(RECORD_NODE);
+        out.writeInt(labels[id]);
+        out.writeBoolean(deleted.get(id));
+        for (float v : vectors.get(id)) {
+            out.writeFloat(v);
+        }
+        writeLevels(out, links.get(id));
+    }
+
+    private void writeLinks(DataOutputStream out, int id) throws IOException {
+        out.writeByte(RECORD_LINKS);
+        out.writeInt(id);
+        writeLevels(out, links.get(id));
+    }
+
+    private static void writeLevels(DataOutputStream out, int[][] nodeLinks) throws IOException {
+        out.writeByte(nodeLinks.length);
+        for (int[] level : nodeLinks) {
+            out.writeShort(level[0]);
+            for (int j = 1; j <= level[0]; j++) {
+                out.writeInt(level[j]);
+            }
+        }
+    }
+
+    private void writeEntry(DataOutputStream out) throws IOException {
+        out.writeByte(RECORD_ENTRY);
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+    }
+
+    public static HnswIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported index file " + file);
+            }
+
+            HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt());
+            int tag;
+            while ((tag = in.read()) >= 0) {
+                switch (tag) {
+                    case RECORD_NODE:
+                        index.readNode(in);
+                        break;
+                    case RECORD_LINKS: {
+                        int id = in.readInt();
+                        index.links.set(id, index.readLevels(in));
+                        index.patchBytes += 5 + levelBytes(index.links.get(id));
+                        break;
+                    }
+                    case RECORD_DELETE:
+                        index.remove(in.readInt());
+                        index.patchBytes += 5;
+                        break;
+                    case RECORD_ENTRY:
+                        index.entryPoint = in.readInt();
+                        index.maxLevel = in.readInt();
+                        index.patchBytes += 9;
+                        break;
+                    default:
+                        throw new IOException("Corrupt index file " + file);
+                }
+            }
+
+            index.savedNodes = index.vectors.size();
+            index.dirtyDeleted.clear();
+            index.fileBytes = file.length();
+            return index;
+        }
+    }
+
+    private void readNode(DataInputStream in) throws IOException {
+        int id = vectors.size();
+        if (id >= labels.length) labels = Arrays.copyOf(labels, labels.length * 2);
+        labels[id] = in.readInt();
+        boolean isDeleted = in.readBoolean();
+
+        float[] vector = new float[dimensions];
+        for (int j = 0; j < vector.length; j++) {
+            vector[j] = in.readFloat();
+        }
+        vectors.add(vector);
+        links.add(readLevels(in));
+        if (isDeleted) remove(id);
+    }
+
+    private int[][] readLevels(DataInputStream in) throws IOException {
+        int[][] nodeLinks = new int[in.readByte()][];
+        for (int lc = 0; lc < nodeLinks.length; lc++) {
+            nodeLinks[lc] = new int[maxLinks(lc) + 1];
+            nodeLinks[lc][0] = in.readShort();
+            for (int j = 1; j <= nodeLinks[lc][0]; j++) {
+                nodeLinks[lc][j] = in.readInt();
+            }
+        }
+        return nodeLinks;
+    }
+
+    private static int levelBytes(int[][] nodeLinks) {
+        int bytes = 1;
+        for (int[] level : nodeLinks) {
+            bytes += 2 + 4 * level[0];
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the deleted nodes and renumbers the rest. A link to a dropped node is replaced
+     * by the best of that node's own neighbors, so searches still get through.
+     */
+    private void compact() {
+        if (deletedCount == 0) return;
+
+        int n = vectors.size();
+        int[] newIds = new int[n];
+        int live = 0;
+        for (int i = 0; i < n; i++) {
+            newIds[i] = deleted.get(i) ? -1 : live++;
+        }
+
+        // Repaired against the old ids first, as selectNeighbors() looks up vectors by id.
+        for (int i = 0; i < n; i++) {
+            if (newIds[i] < 0) continue;
+            int[][] nodeLinks = links.get(i);
+            for (int lc = 0; lc < nodeLinks.length; lc++) {
+                repairLinks(i, lc);
+            }
+        }
+
+        ArrayList<float[]> liveVectors = new ArrayList<>(live);
+        ArrayList<int[][]> liveLinks = new ArrayList<>(live);
+        int[] liveLabels = new int[Math.max(live, 16)];
+        int newEntryPoint = -1;
+        int newMaxLevel = -1;
+        for (int i = 0; i < n; i++) {
+            if (newIds[i] < 0) continue;
+            int[][] nodeLinks = links.get(i);
+            for (int[] level : nodeLinks) {
+                for (int j = 1; j <= level[0]; j++) {
+                    level[j] = newIds[level[j]];
+                }
+            }
+            liveLabels[newIds[i]] = labels[i];
+            liveVectors.add(vectors.get(i));
+            liveLinks.add(nodeLinks);
+            if (nodeLinks.length - 1 > newMaxLevel) {
+                newMaxLevel = nodeLinks.length - 1;
+                newEntryPoint = newIds[i];
+            }
+        }
+        if (entryPoint >= 0 && newIds[entryPoint] >= 0) {
+            newEntryPoint = newIds[entryPoint];
+            newMaxLevel = maxLevel;
+        }
+
+        vectors.clear();
+        vectors.addAll(liveVectors);
+        links.clear();
+        links.addAll(liveLinks);
+        labels = liveLabels;
+        deleted.clear();
+        deletedCount = 0;
+        entryPoint = newEntryPoint;
+        maxLevel = newMaxLevel;
+    }
+
+    /**
+     * Replaces the node's links to deleted nodes on one level with the closest of their
+     * live neighbors, using the same selection as insertion.
+     */
+    private void repairLinks(int node, int level) {
+        int[] nodeLinks = links.get(node)[level];
+        boolean linksDeleted = false;
+        for (int i = 1; i <= nodeLinks[0]; i++) {
+            linksDeleted |= deleted.get(nodeLinks[i]);
+        }
+        if (!linksDeleted) return;
+
+        // The live neighbors, and the neighbors of the deleted ones.
+        int[] candidates = new int[nodeLinks[0] * (maxLinks(level) + 1)];
+        int count = 0;
+        for (int i = 1; i <= nodeLinks[0]; i++) {
+            int neighbor = nodeLinks[i];
+            if (!deleted.get(neighbor)) {
+                candidates[count++] = neighbor;
+                continue;
+            }
+            int[] replacements = links.get(neighbor)[level];
+            for (int j = 1; j <= replacements[0]; j++) {
+                candidates[count++] = replacements[j];
+            }
+        }
+
+        int tag = nextVisitedTag();
+        visited[node] = tag;
+        float[] v = vectors.get(node);
+        long[] keys = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int candidate = candidates[i];
+            if (visited[candidate] == tag || deleted.get(candidate)) continue;
+            visited[candidate] = tag;
+            keys[n++] = key(distance(v, vectors.get(candidate)), candidate);
+        }
+        Arrays.sort(keys, 0, n);
+
+        int[] selected = selectNeighbors(keys, n, maxLinks(level));
+        System.arraycopy(selected, 0, nodeLinks, 0, selected[0] + 1);
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? maxM0 : m;
+    }
+
+    /**
+     * Adds a link from node to neighbor, pruning node's links if it is full.
+     */
+    private void connect(int node, int neighbor, int level) {
+        if (node < savedNodes) dirtyLinks.set(node);
+        int[] nodeLinks = links.get(node)[level];
+        int max = maxLinks(level);
+        if (nodeLinks[0] < max) {
+            nodeLinks[++nodeLinks[0]] = neighbor;
+            return;
+        }
+
+        float[] v = vectors.get(node);
+        long[] keys = new long[max + 1];
+        for (int i = 1; i <= max; i++) {
+            keys[i - 1] = key(distance(v, vectors.get(nodeLinks[i])), nodeLinks[i]);
+        }
+        keys[max] = key(distance(v, vectors.get(neighbor)), neighbor);
+        Arrays.sort(keys);
+
+        int[] selected = selectNeighbors(keys, keys.length, max);
+        System.arraycopy(selected, 0, nodeLinks, 0, selected[0] + 1);
+    }
+
+    /**
+     * Picks up to max neighbors from candidates sorted nearest first, skipping any that
+     * are closer to an already picked neighbor than to the base node. This keeps links
+     * spread across clusters instead of all pointing into the nearest one.
+     */
+    private int[] selectNeighbors(long[] sorted, int count, int max) {
+        int[] selected = new int[max + 1];
+        int n = 0;
+        for (int i = 0; i < count && n < max; i++) {
+            int candidate = idOf(sorted[i]);
+            float d = distanceOf(sorted[i]);
+            float[] v = vectors.get(candidate);
+
+            boolean keep = true;
+            for (int j = 1; j <= n; j++) {
+                if (distance(v, vectors.get(selected[j])) < d) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) selected[++n] = candidate;
+        }
+        selected[0] = n;
+        return selected;
+    }
+
+    /**
+     * Beam search on one level. Returns the ef closest nodes as keys, nearest first.
+     */
+    private long[] searchLayer(float[] q, int ep, int ef, int level) {
+        int visitedTag = nextVisitedTag();
+
+        candidates.clear();
+        results.clear();
+
+        long start = key(distance(q, vectors.get(ep)), ep);
+        visited[ep] = visitedTag;
+        candidates.push(start);
+        // Keys are non-negative, so negating them turns the min-heap into a max-heap.
+        results.push(-start);
+
+        while (!candidates.isEmpty()) {
+            long current = candidates.pop();
+            if (results.size() >= ef && current > -results.peek()) break;
+
+            int[] currentLinks = links.get(idOf(current))[level];
+            for (int i = 1; i <= currentLinks[0]; i++) {
+                int n = currentLinks[i];
+                if (visited[n] == visitedTag) continue;
+                visited[n] = visitedTag;
+
+                long key = key(distance(q, vectors.get(n)), n);
+                if (results.size() < ef || key < -results.peek()) {
+                    candidates.push(key);
+                    results.push(-key);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+
+        long[] found = new long[results.size()];
+        for (int i = found.length - 1; i >= 0; i--) {
+            found[i] = -results.pop();
+        }
+        return found;
+    }
+
+    /**
+     * Returns a tag that no entry of visited holds yet, sizing visited for every node.
+     */
+    private int nextVisitedTag() {
+        if (visited.length < vectors.size()) {
+            visited = new int[vectors.size() * 2];
+            visitedTag = 0;
+        }
+        if (++visitedTag == 0) {
+            Arrays.fill(visited, 0);
+            visitedTag = 1;
+        }
+        return visitedTag;
+    }
+
+    private float[] normalize(float[] v) {
+        double sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            sum += v[i] * v[i];
+        }
+        float norm = (float) Math.max(Math.sqrt(sum), 1e-12);
+
+        float[] normalized = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            normalized[i] = v[i] / norm;
+        }
+        return normalized;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return 1 - dot;
+    }
+
+    // A key packs a non-negative distance above the node id, so keys sort by distance.
+    private static long key(float distance, int id) {
+        return ((long) Float.floatToRawIntBits(Math.max(distance, 0f)) << 32) | id;
+    }
+
+    private static int idOf(long key) {
+        return (int) key;
+    }
+
+    private static float distanceOf(long key) {
+        return Float.intBitsToFloat((int) (key >>> 32));
+    }
+
+    /**
+     * Binary min-heap of primitive longs, so searches do not box every candidate.
+     */
+    private static final class LongHeap {
+        private long[] heap = new long[64];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long value) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (heap[child] >= last) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package pp.facerecognizer.wrapper;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The subset of an inference runtime the model wrappers rely on.
+ * Implementations own a loaded model and are not thread-safe.
+ */
+public interface InferenceEngine {
+    /**
+     * Returns true if the loaded model has a node with the given name.
+     */
+    boolean hasOperation(String name);
+
+    /**
+     * Queues an input for the next run() call. The remaining elements of src must match dims.
+     */
+    void feed(String inputName, FloatBuffer src, long... dims);
+
+    void run(String[] outputNames);
+
+    /**
+     * Copies an output of the last run() call into dst, advancing its position.
+     */
+    void fetch(String outputName, FloatBuffer dst);
+
+    String getStatString();
+
+    void close();
+}
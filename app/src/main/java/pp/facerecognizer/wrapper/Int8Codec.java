@@ -0,0 +1,84 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.DataOutputStream;
+
+/**
+ * Stores each embedding as signed bytes with a per-vector float scale, about 4x smaller
+ * than float32. The scale maps the largest absolute component to 127.
+ */
+public class Int8Codec implements EmbeddingCodec {
+    static final String NAME = "int8";
+
+    private static final int SCALE_SIZE = 4;
+
+    private final int dimensions;
+
+    public Int8Codec(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public int getCodeSize() {
+        return SCALE_SIZE + dimensions;
+    }
+
+    @Override
+    public void encode(float[] embedding, byte[] code, int offset) {
+        float max = 0;
+        for (int i = 0; i < dimensions; i++) {
+            max = Math.max(max, Math.abs(embedding[i]));
+        }
+        float scale = max > 0 ? max / 127f : 1f;
+
+        int bits = Float.floatToRawIntBits(scale);
+        code[offset] = (byte) bits;
+        code[offset + 1] = (byte) (bits >> 8);
+        code[offset + 2] = (byte) (bits >> 16);
+        code[offset + 3] = (byte) (bits >> 24);
+
+        for (int i = 0; i < dimensions; i++) {
+            code[offset + SCALE_SIZE + i] = (byte) Math.round(embedding[i] / scale);
+        }
+    }
+
+    @Override
+    public void decode(byte[] code, int offset, float[] out) {
+        float scale = scale(code, offset);
+        for (int i = 0; i < dimensions; i++) {
+            out[i] = code[offset + SCALE_SIZE + i] * scale;
+        }
+    }
+
+    @Override
+    public Query prepare(float[] query) {
+        return (codes, offset) -> {
+            int start = offset + SCALE_SIZE;
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += query[i] * codes[start + i];
+            }
+            return dot * scale(codes, offset);
+        };
+    }
+
+    @Override
+    public void write(DataOutputStream out) {
+    }
+
+    private static float scale(byte[] code, int offset) {
+        return Float.intBitsToFloat((code[offset] & 0xFF)
+                | (code[offset + 1] & 0xFF) << 8
+                | (code[offset + 2] & 0xFF) << 16
+                | (code[offset + 3] & 0xFF) << 24);
+    }
+}
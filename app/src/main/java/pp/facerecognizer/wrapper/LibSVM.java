@@ -17,10 +17,14 @@ import pp.facerecognizer.env.FileUtils;
  * This is a java wrapper of LibSVM
  */
 
-public class LibSVM {
+public class LibSVM implements FaceClassifier {
+    private static final float MIN_PROBABILITY = 0.5f;
+
     private String LOG_TAG = "LibSVM";
-    private String DATA_PATH = FileUtils.ROOT + File.separator + FileUtils.DATA_FILE;
-    private String MODEL_PATH = FileUtils.ROOT + File.separator + FileUtils.MODEL_FILE;
+    private final String dataFile;
+    private final String DATA_PATH;
+    private final String MODEL_PATH;
+    private final int dimensions;
 
     private int index;
     private double prob;
@@ -46,46 +50,74 @@ public class LibSVM {
         jniSvmScale(cmd, fileOutPath);
     }
 
+    @Override
     public void train(int label, ArrayList<float[]> list) {
-        StringBuilder builder = new StringBuilder();
-
-        for (int i = 0; i < list.size(); i++) {
-            float[] array = list.get(i);
-            builder.append(label);
-            for (int j = 0; j < array.length; j++) {
-                builder.append(" ").append(j).append(":").append(array[j]);
-            }
-            if (i < list.size() - 1) builder.append(System.lineSeparator());
-        }
-        FileUtils.appendText(builder.toString(), FileUtils.DATA_FILE);
+        FileUtils.appendEmbeddings(label, list, dataFile);
 
         train();
     }
 
+    @Override
+    public void remove(int label) {
+        if (FileUtils.removeEmbeddings(label, dataFile) > 0) {
+            train();
+        }
+    }
+
     public void train() {
+        // libsvm exits the process on a blank line in its input.
+        FileUtils.removeBlankLines(dataFile);
+
         String options = "-t 0 -b 1";
         String cmd = TextUtils.join(" ", Arrays.asList(options, DATA_PATH, MODEL_PATH));
         train(cmd);
     }
 
+    /**
+     * Returns true if the model is missing or older than its data file, e.g. after
+     * enrolling with another classifier.
+     */
+    public boolean isModelStale() {
+        File model = new File(MODEL_PATH);
+        return !model.exists() || model.lastModified() < new File(DATA_PATH).lastModified();
+    }
+
+    @Override
     public Pair<Integer, Float> predict(FloatBuffer buffer) {
         String options = "-b 1";
         String cmd = TextUtils.join(" ", Arrays.asList(options, MODEL_PATH));
 
-        predict(cmd, buffer, Classifier.EMBEDDING_SIZE);
+        predict(cmd, buffer, dimensions);
         return new Pair<>(index, (float) prob);
     }
 
+    @Override
+    public float getMinConfidence() {
+        return MIN_PROBABILITY;
+    }
+
     // singleton for the easy access
     private static LibSVM svm;
     public static LibSVM getInstance() {
         if (svm == null) {
-            svm = new LibSVM();
+            svm = new LibSVM(FileUtils.DATA_FILE, FileUtils.MODEL_FILE, Classifier.EMBEDDING_SIZE);
         }
         return svm;
     }
 
-    private LibSVM() {
+    /**
+     * Creates an SVM that trains on and predicts with the given files under FileUtils.ROOT,
+     * e.g. for embeddings of another dimension.
+     */
+    public static LibSVM create(String dataFile, String modelFile, int dimensions) {
+        return new LibSVM(dataFile, modelFile, dimensions);
+    }
+
+    private LibSVM(String dataFile, String modelFile, int dimensions) {
         Log.d(LOG_TAG, "LibSVM init");
+        this.dataFile = dataFile;
+        this.DATA_PATH = FileUtils.ROOT + File.separator + dataFile;
+        this.MODEL_PATH = FileUtils.ROOT + File.separator + modelFile;
+        this.dimensions = dimensions;
     }
 }
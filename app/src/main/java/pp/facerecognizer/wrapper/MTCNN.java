@@ -17,30 +17,38 @@ import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.Trace;
 
-import org.tensorflow.Graph;
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import androidx.core.util.Pair;
 
-public class MTCNN {
+public class MTCNN implements SessionTuner.Tunable {
     private static final String MODEL_FILE = "file:///android_asset/mtcnn.pb";
+    // Eight-bit variant produced by tools/quantize_graphs.sh.
+    private static final String QUANTIZED_MODEL_FILE = "file:///android_asset/mtcnn_quant.pb";
     // Only return this many results.
     private static final int MAX_RESULTS = 100;
     private static final int BYTE_SIZE_OF_FLOAT = 4;
+    // Five (y, x) landmarks per face, all ys first.
+    public static final int LANDMARK_SIZE = 10;
+    // Input size used for warm-up runs, matches the recognition crop.
+    private static final int WARM_UP_SIZE = 300;
 
     // Config values.
     private String inputName;
 
     // Pre-allocated buffers.
+    private int[] intValues;
+    private FloatBuffer inputBuffer;
     private FloatBuffer outputProbs;
     private FloatBuffer outputBoxes;
+    private FloatBuffer outputLandmarks;
     private String[] outputNames;
 
-    private TensorFlowInferenceInterface inferenceInterface;
+    private InferenceEngine inferenceInterface;
+
+    private Bitmap warmUpBitmap;
 
     /**
      * Initializes a native TensorFlow session for classifying images.
@@ -49,24 +57,52 @@ public class MTCNN {
      */
     public static MTCNN create(
             final AssetManager assetManager) {
+        return create(assetManager, SessionConfig.DEFAULT);
+    }
+
+    /**
+     * Initializes a native TensorFlow session with the given thread configuration.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param config The session options to run the graph with.
+     */
+    public static MTCNN create(
+            final AssetManager assetManager,
+            final SessionConfig config) {
+        return create(new TensorFlowEngine(assetManager, MODEL_FILE, config));
+    }
+
+    /**
+     * Initializes a native TensorFlow session for the quantized model.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param config The session options to run the graph with.
+     */
+    public static MTCNN createQuantized(
+            final AssetManager assetManager,
+            final SessionConfig config) {
+        return create(new TensorFlowEngine(assetManager, QUANTIZED_MODEL_FILE, config));
+    }
+
+    private static MTCNN create(final InferenceEngine engine) {
         final MTCNN d = new MTCNN();
 
-        d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, MODEL_FILE);
+        d.inferenceInterface = engine;
 
-        final Graph g = d.inferenceInterface.graph();
+        final InferenceEngine g = d.inferenceInterface;
 
         d.inputName = "input";
-        if (g.operation(d.inputName) == null)
+        if (!g.hasOperation(d.inputName))
             throw new RuntimeException("Failed to find input Node '" + d.inputName + "'");
 
         d.outputNames = new String[] {"prob", "landmarks", "box"};
-        if (g.operation(d.outputNames[0]) == null)
+        if (!g.hasOperation(d.outputNames[0]))
             throw new RuntimeException("Failed to find output Node '" + d.outputNames[0] + "'");
 
-        if (g.operation(d.outputNames[1]) == null)
+        if (!g.hasOperation(d.outputNames[1]))
             throw new RuntimeException("Failed to find output Node '" + d.outputNames[1] + "'");
 
-        if (g.operation(d.outputNames[2]) == null)
+        if (!g.hasOperation(d.outputNames[2]))
             throw new RuntimeException("Failed to find output Node '" + d.outputNames[2] + "'");
 
         // Pre-allocate buffers.
@@ -78,6 +114,10 @@ public class MTCNN {
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
 
+        d.outputLandmarks = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT * LANDMARK_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
         return d;
     }
 
@@ -91,34 +131,40 @@ public class MTCNN {
         // Preprocess the image data from 0-255 int to normalized float based
         // on the provided parameters.
         int w = bitmap.getWidth(), h = bitmap.getHeight();
-        int intValues[] = new int[w * h];
-        float floatValues[] = new float[w * h * 3];
+        if (intValues == null || intValues.length != w * h) {
+            intValues = new int[w * h];
+            inputBuffer = ByteBuffer.allocateDirect(w * h * 3 * BYTE_SIZE_OF_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
 
         bitmap.getPixels(intValues, 0, w, 0, 0, w, h);
 
         // BGR
-        for (int i = 0; i < intValues.length; ++i) {
-            int p = intValues[i];
-
-            floatValues[i * 3 + 0] = p & 0xFF;
-            floatValues[i * 3 + 1] = (p >> 8) & 0xFF;
-            floatValues[i * 3 + 2] = (p >> 16) & 0xFF;
+        inputBuffer.clear();
+        for (int p : intValues) {
+            inputBuffer.put(p & 0xFF);
+            inputBuffer.put((p >> 8) & 0xFF);
+            inputBuffer.put((p >> 16) & 0xFF);
         }
+        inputBuffer.flip();
         Trace.endSection(); // preprocessBitmap
 
         // Copy the input data into TensorFlow.
         Trace.beginSection("feed");
-        inferenceInterface.feed(inputName, floatValues, h, w, 3);
+        inferenceInterface.feed(inputName, inputBuffer, h, w, 3);
         Trace.endSection();
 
         // Run the inference call.
         Trace.beginSection("run");
-        inferenceInterface.run(outputNames, false);
+        inferenceInterface.run(outputNames);
         Trace.endSection();
 
         // Copy the output Tensor back into the output array.
         Trace.beginSection("fetch");
         inferenceInterface.fetch(outputNames[0], outputProbs);
+        outputLandmarks.clear();
+        inferenceInterface.fetch(outputNames[1], outputLandmarks);
         inferenceInterface.fetch(outputNames[2], outputBoxes);
         Trace.endSection();
 
@@ -148,10 +194,32 @@ public class MTCNN {
         return faces;
     }
 
+    /**
+     * Copies the landmarks of the given face from the last call into out, see
+     * {@link #LANDMARK_SIZE} for the layout.
+     */
+    public void getLandmarks(int faceIndex, float[] out) {
+        for (int i = 0; i < LANDMARK_SIZE; i++) {
+            out[i] = outputLandmarks.get(faceIndex * LANDMARK_SIZE + i);
+        }
+    }
+
+    /**
+     * Runs a detection on a blank frame so TensorFlow's lazy initialization is paid up front.
+     */
+    @Override
+    public void warmUp() {
+        if (warmUpBitmap == null) {
+            warmUpBitmap = Bitmap.createBitmap(WARM_UP_SIZE, WARM_UP_SIZE, Bitmap.Config.ARGB_8888);
+        }
+        detect(warmUpBitmap);
+    }
+
     public String getStatString() {
         return inferenceInterface.getStatString();
     }
 
+    @Override
     public void close() {
         inferenceInterface.close();
     }
@@ -0,0 +1,257 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.facerecognizer.wrapper;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.Trace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.Classifier;
+
+/**
+ * Runs MTCNN, the face crop and FaceNet in a single session call.
+ * The graph is generated from mtcnn.pb and facenet.pb by tools/merge_graphs.py.
+ */
+public class MergedGraph implements SessionTuner.Tunable {
+    private static final String MODEL_ASSET = "merged.pb";
+    private static final String MODEL_FILE = "file:///android_asset/" + MODEL_ASSET;
+    // Only return this many results.
+    private static final int MAX_RESULTS = 100;
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+    private static final int LANDMARK_SIZE = MTCNN.LANDMARK_SIZE;
+    // Input size used for warm-up runs, matches the recognition crop.
+    private static final int WARM_UP_SIZE = 300;
+    // MTCNN's box output inside the merged graph. Feeding it replaces the detections.
+    private static final String WARM_UP_BOX_NAME = "mtcnn/box";
+
+    // Config values.
+    private String inputName;
+
+    // Pre-allocated buffers.
+    private int[] intValues;
+    private FloatBuffer inputBuffer;
+    private FloatBuffer outputProbs;
+    private FloatBuffer outputBoxes;
+    private FloatBuffer outputLandmarks;
+    private FloatBuffer outputEmbeddings;
+    private FloatBuffer embeddingBuffer;
+    private String[] outputNames;
+
+    private InferenceEngine inferenceInterface;
+
+    private Bitmap warmUpBitmap;
+    private FloatBuffer warmUpBox;
+
+    /**
+     * Returns true if the merged graph has been bundled with the app.
+     */
+    public static boolean isAvailable(final AssetManager assetManager) {
+        try (InputStream is = assetManager.open(MODEL_ASSET)) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Initializes a native TensorFlow session for the merged graph.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param config The session options to run the graph with.
+     */
+    public static MergedGraph create(
+            final AssetManager assetManager,
+            final SessionConfig config) {
+        final MergedGraph d = new MergedGraph();
+
+        d.inferenceInterface = new TensorFlowEngine(assetManager, MODEL_FILE, config);
+
+        final InferenceEngine g = d.inferenceInterface;
+
+        d.inputName = "input";
+        if (!g.hasOperation(d.inputName))
+            throw new RuntimeException("Failed to find input Node '" + d.inputName + "'");
+
+        d.outputNames = new String[] {"prob", "box", "embeddings", "landmarks"};
+        for (String outputName : d.outputNames) {
+            if (!g.hasOperation(outputName))
+                throw new RuntimeException("Failed to find output Node '" + outputName + "'");
+        }
+
+        if (g.hasOperation(WARM_UP_BOX_NAME)) {
+            d.warmUpBox = FloatBuffer.wrap(
+                    new float[] {0, 0, WARM_UP_SIZE - 1, WARM_UP_SIZE - 1});
+        }
+
+        // Pre-allocate buffers.
+        d.outputProbs = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        d.outputBoxes = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        d.outputLandmarks = ByteBuffer.allocateDirect(MAX_RESULTS * BYTE_SIZE_OF_FLOAT * LANDMARK_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        d.outputEmbeddings = ByteBuffer.allocateDirect(
+                MAX_RESULTS * Classifier.EMBEDDING_SIZE * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        // LibSVM reads from the start of a direct buffer, so each face is copied into this one.
+        d.embeddingBuffer = ByteBuffer.allocateDirect(Classifier.EMBEDDING_SIZE * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        return d;
+    }
+
+    private MergedGraph() {}
+
+    /**
+     * Detects and embeds every face in the bitmap. The embedding of the i-th returned face
+     * is available through {@link #getEmbeddings(int)} until the next call.
+     */
+    public Pair[] detectAndEmbed(Bitmap bitmap) {
+        // Log this method so that it can be analyzed with systrace.
+        Trace.beginSection("detectAndEmbed");
+
+        // Copy the input data into TensorFlow.
+        feed(bitmap);
+
+        // Run the inference call.
+        Trace.beginSection("run");
+        inferenceInterface.run(outputNames);
+        Trace.endSection();
+
+        // Copy the output Tensor back into the output array.
+        Trace.beginSection("fetch");
+        outputProbs.clear();
+        outputBoxes.clear();
+        outputEmbeddings.clear();
+        outputLandmarks.clear();
+        inferenceInterface.fetch(outputNames[0], outputProbs);
+        inferenceInterface.fetch(outputNames[1], outputBoxes);
+        inferenceInterface.fetch(outputNames[2], outputEmbeddings);
+        inferenceInterface.fetch(outputNames[3], outputLandmarks);
+        Trace.endSection();
+
+        outputProbs.flip();
+        outputBoxes.flip();
+
+        int len = outputProbs.remaining();
+        Pair faces[] = new Pair[len];
+
+        for (int i = 0; i < len; i++) {
+            float top = outputBoxes.get();
+            float left = outputBoxes.get();
+            float bottom = outputBoxes.get();
+            float right = outputBoxes.get();
+
+            faces[i] = new Pair<>(
+                    new RectF(left, top, right, bottom), outputProbs.get());
+        }
+
+        Trace.endSection(); // "detectAndEmbed"
+        return faces;
+    }
+
+    private void feed(Bitmap bitmap) {
+        Trace.beginSection("preprocessBitmap");
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
+        if (intValues == null || intValues.length != w * h) {
+            intValues = new int[w * h];
+            inputBuffer = ByteBuffer.allocateDirect(w * h * 3 * BYTE_SIZE_OF_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+
+        bitmap.getPixels(intValues, 0, w, 0, 0, w, h);
+
+        // BGR, same as MTCNN.
+        inputBuffer.clear();
+        for (int p : intValues) {
+            inputBuffer.put(p & 0xFF);
+            inputBuffer.put((p >> 8) & 0xFF);
+            inputBuffer.put((p >> 16) & 0xFF);
+        }
+        inputBuffer.flip();
+        Trace.endSection(); // preprocessBitmap
+
+        Trace.beginSection("feed");
+        inferenceInterface.feed(inputName, inputBuffer, h, w, 3);
+        Trace.endSection();
+    }
+
+    public FloatBuffer getEmbeddings(int faceIndex) {
+        outputEmbeddings.limit((faceIndex + 1) * Classifier.EMBEDDING_SIZE);
+        outputEmbeddings.position(faceIndex * Classifier.EMBEDDING_SIZE);
+
+        embeddingBuffer.clear();
+        embeddingBuffer.put(outputEmbeddings);
+        embeddingBuffer.flip();
+        return embeddingBuffer;
+    }
+
+    /**
+     * Copies the landmarks of the given face from the last call into out, see
+     * {@link MTCNN#LANDMARK_SIZE} for the layout.
+     */
+    public void getLandmarks(int faceIndex, float[] out) {
+        for (int i = 0; i < LANDMARK_SIZE; i++) {
+            out[i] = outputLandmarks.get(faceIndex * LANDMARK_SIZE + i);
+        }
+    }
+
+    /**
+     * Runs the graph on a blank frame so TensorFlow's lazy initialization is paid up front.
+     * MTCNN finds no face there, so a box covering the frame is fed in place of its
+     * detections for the crop and FaceNet to run too. Older merged graphs that do not
+     * expose the box only warm up MTCNN.
+     */
+    @Override
+    public void warmUp() {
+        if (warmUpBitmap == null) {
+            warmUpBitmap = Bitmap.createBitmap(WARM_UP_SIZE, WARM_UP_SIZE, Bitmap.Config.ARGB_8888);
+        }
+        if (warmUpBox == null) {
+            detectAndEmbed(warmUpBitmap);
+            return;
+        }
+
+        feed(warmUpBitmap);
+        warmUpBox.rewind();
+        inferenceInterface.feed(WARM_UP_BOX_NAME, warmUpBox, 1, 4);
+        inferenceInterface.run(outputNames);
+    }
+
+    public String getStatString() {
+        return inferenceInterface.getStatString();
+    }
+
+    @Override
+    public void close() {
+        inferenceInterface.close();
+    }
+}
@@ -0,0 +1,255 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Principal component projection of embeddings onto their top components.
+ * Fitted by orthogonal iteration on the covariance matrix. That only needs
+ * d * d * components work per iteration, instead of a full eigendecomposition.
+ */
+public class Pca {
+    private static final int MAGIC = 0x50434132; // "PCA2"
+    private static final int ITERATIONS = 30;
+
+    private final int dimensions;
+    private final int components;
+    private final float[] mean;
+    // basis[c * dimensions + j] is component j of principal axis c, ordered by variance.
+    private final float[] basis;
+    private final float[] variances;
+    private float totalVariance;
+    // Embeddings the projection was fitted on, 0 for identity().
+    private int samples;
+
+    /**
+     * Fits the projection on the given embeddings.
+     */
+    public static Pca fit(List<float[]> samples, int dimensions, int components) {
+        if (samples.isEmpty()) throw new IllegalArgumentException("No samples to fit on");
+        if (components > dimensions) {
+            throw new IllegalArgumentException(
+                    "Cannot keep " + components + " of " + dimensions + " dimensions");
+        }
+
+        Pca pca = new Pca(dimensions, components);
+        int n = samples.size();
+        pca.samples = n;
+
+        for (float[] sample : samples) {
+            for (int j = 0; j < dimensions; j++) {
+                pca.mean[j] += sample[j] / n;
+            }
+        }
+
+        // Covariance, upper triangle accumulated then mirrored.
+        double[] covariance = new double[dimensions * dimensions];
+        double[] centered = new double[dimensions];
+        for (float[] sample : samples) {
+            for (int j = 0; j < dimensions; j++) {
+                centered[j] = sample[j] - pca.mean[j];
+            }
+            for (int i = 0; i < dimensions; i++) {
+                double ci = centered[i];
+                int row = i * dimensions;
+                for (int j = i; j < dimensions; j++) {
+                    covariance[row + j] += ci * centered[j];
+                }
+            }
+        }
+        for (int i = 0; i < dimensions; i++) {
+            for (int j = i; j < dimensions; j++) {
+                double v = covariance[i * dimensions + j] / n;
+                covariance[i * dimensions + j] = v;
+                covariance[j * dimensions + i] = v;
+            }
+            pca.totalVariance += (float) covariance[i * dimensions + i];
+        }
+
+        // Orthogonal iteration: Q <- orthonormalize(C Q) converges to the top eigenvectors.
+        double[] q = new double[components * dimensions];
+        double[] next = new double[components * dimensions];
+        Random random = new Random(0);
+        for (int i = 0; i < q.length; i++) {
+            q[i] = random.nextGaussian();
+        }
+        orthonormalize(q, components, dimensions, random);
+
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int c = 0; c < components; c++) {
+                int base = c * dimensions;
+                for (int i = 0; i < dimensions; i++) {
+                    double sum = 0;
+                    int row = i * dimensions;
+                    for (int j = 0; j < dimensions; j++) {
+                        sum += covariance[row + j] * q[base + j];
+                    }
+                    next[base + i] = sum;
+                }
+            }
+
+            // Rayleigh quotients of the current basis are the component variances.
+            for (int c = 0; c < components; c++) {
+                double dot = 0;
+                for (int j = 0; j < dimensions; j++) {
+                    dot += q[c * dimensions + j] * next[c * dimensions + j];
+                }
+                pca.variances[c] = (float) dot;
+            }
+
+            double[] swap = q;
+            q = next;
+            next = swap;
+            orthonormalize(q, components, dimensions, random);
+        }
+
+        for (int i = 0; i < q.length; i++) {
+            pca.basis[i] = (float) q[i];
+        }
+        return pca;
+    }
+
+    /**
+     * Keeps the first components dimensions unchanged, for when there is nothing to fit on.
+     */
+    public static Pca identity(int dimensions, int components) {
+        if (components > dimensions) {
+            throw new IllegalArgumentException(
+                    "Cannot keep " + components + " of " + dimensions + " dimensions");
+        }
+
+        Pca pca = new Pca(dimensions, components);
+        for (int c = 0; c < components; c++) {
+            pca.basis[c * dimensions + c] = 1f;
+        }
+        return pca;
+    }
+
+    public static Pca load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Unsupported PCA file " + file);
+
+            Pca pca = new Pca(in.readInt(), in.readInt());
+            pca.samples = in.readInt();
+            pca.totalVariance = in.readFloat();
+            for (int i = 0; i < pca.mean.length; i++) pca.mean[i] = in.readFloat();
+            for (int i = 0; i < pca.variances.length; i++) pca.variances[i] = in.readFloat();
+            for (int i = 0; i < pca.basis.length; i++) pca.basis[i] = in.readFloat();
+            return pca;
+        }
+    }
+
+    private Pca(int dimensions, int components) {
+        this.dimensions = dimensions;
+        this.components = components;
+        this.mean = new float[dimensions];
+        this.basis = new float[components * dimensions];
+        this.variances = new float[components];
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Returns the fraction of the fitted samples' variance kept by the projection.
+     */
+    public float getExplainedVariance() {
+        float sum = 0;
+        for (float v : variances) sum += v;
+        return totalVariance > 0 ? sum / totalVariance : 1f;
+    }
+
+    public void project(float[] embedding, float[] out) {
+        for (int c = 0; c < components; c++) {
+            int base = c * dimensions;
+            float sum = 0;
+            for (int j = 0; j < dimensions; j++) {
+                sum += basis[base + j] * (embedding[j] - mean[j]);
+            }
+            out[c] = sum;
+        }
+    }
+
+    /**
+     * Projects the embedding starting at the buffer's position into out, from its position.
+     */
+    public void project(FloatBuffer embedding, FloatBuffer out) {
+        int start = embedding.position();
+        int outStart = out.position();
+        for (int c = 0; c < components; c++) {
+            int base = c * dimensions;
+            float sum = 0;
+            for (int j = 0; j < dimensions; j++) {
+                sum += basis[base + j] * (embedding.get(start + j) - mean[j]);
+            }
+            out.put(outStart + c, sum);
+        }
+    }
+
+    public float[] project(float[] embedding) {
+        float[] out = new float[components];
+        project(embedding, out);
+        return out;
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dimensions);
+            out.writeInt(components);
+            out.writeInt(samples);
+            out.writeFloat(totalVariance);
+            for (float v : mean) out.writeFloat(v);
+            for (float v : variances) out.writeFloat(v);
+            for (float v : basis) out.writeFloat(v);
+        }
+    }
+
+    // Modified Gram-Schmidt on the rows of m.
+    private static void orthonormalize(double[] m, int rows, int columns, Random random) {
+        for (int r = 0; r < rows; r++) {
+            int base = r * columns;
+            double before = 0;
+            for (int j = 0; j < columns; j++) before += m[base + j] * m[base + j];
+
+            for (int p = 0; p < r; p++) {
+                int other = p * columns;
+                double dot = 0;
+                for (int j = 0; j < columns; j++) dot += m[base + j] * m[other + j];
+                for (int j = 0; j < columns; j++) m[base + j] -= dot * m[other + j];
+            }
+
+            double norm = 0;
+            for (int j = 0; j < columns; j++) norm += m[base + j] * m[base + j];
+            if (norm <= 1e-12 * before || norm == 0) {
+                // The samples span fewer dimensions than requested, so this row collapsed
+                // into the previous ones. Restart it from a random direction.
+                for (int j = 0; j < columns; j++) m[base + j] = random.nextGaussian();
+                r--;
+                continue;
+            }
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < columns; j++) m[base + j] /= norm;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Product quantization (Jegou et al.): the embedding is split into subspaces and each
+ * sub-vector is replaced by the index of its nearest centroid in a per-subspace codebook
+ * trained with k-means. With 64 subspaces a 512-d embedding takes 64 bytes, 32x smaller
+ * than float32.
+ */
+public class ProductQuantizer implements EmbeddingCodec {
+    static final String NAME = "pq";
+
+    // Dimensions per subspace: 64 subspaces for a 512-d embedding.
+    private static final int SUB_DIMENSIONS = 8;
+    private static final int MAX_CENTROIDS = 256;
+    private static final int KMEANS_ITERATIONS = 20;
+
+    private final int dimensions;
+    private final int subspaces;
+    private final int subDimensions;
+    private final int centroids;
+    // codebook[s][c * subDimensions + j] is component j of centroid c in subspace s.
+    private final float[][] codebook;
+
+    /**
+     * Returns the divisor of dimensions closest to SUB_DIMENSIONS dimensions per subspace,
+     * so that PCA-projected embeddings of any size can be split evenly.
+     */
+    public static int getSubspaces(int dimensions) {
+        int target = Math.max(1, Math.round(dimensions / (float) SUB_DIMENSIONS));
+        int best = 1;
+        for (int subspaces = 2; subspaces <= dimensions; subspaces++) {
+            if (dimensions % subspaces == 0
+                    && Math.abs(subspaces - target) < Math.abs(best - target)) {
+                best = subspaces;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Trains the codebooks on the given normalized embeddings.
+     * Uses fewer than 256 centroids per subspace when there are fewer samples.
+     */
+    public static ProductQuantizer train(List<float[]> samples, int dimensions, int subspaces) {
+        if (samples.isEmpty()) throw new IllegalArgumentException("No samples to train on");
+        if (dimensions % subspaces != 0) {
+            throw new IllegalArgumentException(
+                    dimensions + " dimensions do not split into " + subspaces + " subspaces");
+        }
+
+        int centroids = Math.min(MAX_CENTROIDS, samples.size());
+        ProductQuantizer pq = new ProductQuantizer(dimensions, subspaces, centroids);
+        Random random = new Random(0);
+        for (int s = 0; s < subspaces; s++) {
+            pq.trainSubspace(s, samples, random);
+        }
+        return pq;
+    }
+
+    static ProductQuantizer read(DataInputStream in, int dimensions) throws IOException {
+        ProductQuantizer pq = new ProductQuantizer(dimensions, in.readInt(), in.readInt());
+        for (float[] book : pq.codebook) {
+            for (int i = 0; i < book.length; i++) {
+                book[i] = in.readFloat();
+            }
+        }
+        return pq;
+    }
+
+    private ProductQuantizer(int dimensions, int subspaces, int centroids) {
+        this.dimensions = dimensions;
+        this.subspaces = subspaces;
+        this.subDimensions = dimensions / subspaces;
+        this.centroids = centroids;
+        this.codebook = new float[subspaces][centroids * subDimensions];
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public int getCodeSize() {
+        return subspaces;
+    }
+
+    @Override
+    public void encode(float[] embedding, byte[] code, int offset) {
+        for (int s = 0; s < subspaces; s++) {
+            code[offset + s] = (byte) nearest(codebook[s], embedding, s * subDimensions);
+        }
+    }
+
+    @Override
+    public void decode(byte[] code, int offset, float[] out) {
+        for (int s = 0; s < subspaces; s++) {
+            int c = code[offset + s] & 0xFF;
+            System.arraycopy(codebook[s], c * subDimensions, out, s * subDimensions, subDimensions);
+        }
+    }
+
+    /**
+     * Precomputes the dot product of each query sub-vector with every centroid, so scoring
+     * a code is one table lookup per subspace.
+     */
+    @Override
+    public Query prepare(float[] query) {
+        final float[] table = new float[subspaces * centroids];
+        for (int s = 0; s < subspaces; s++) {
+            float[] book = codebook[s];
+            for (int c = 0; c < centroids; c++) {
+                float dot = 0;
+                for (int j = 0; j < subDimensions; j++) {
+                    dot += query[s * subDimensions + j] * book[c * subDimensions + j];
+                }
+                table[s * centroids + c] = dot;
+            }
+        }
+
+        return (codes, offset) -> {
+            float dot = 0;
+            for (int s = 0; s < subspaces; s++) {
+                dot += table[s * centroids + (codes[offset + s] & 0xFF)];
+            }
+            return dot;
+        };
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(subspaces);
+        out.writeInt(centroids);
+        for (float[] book : codebook) {
+            for (float v : book) {
+                out.writeFloat(v);
+            }
+        }
+    }
+
+    private void trainSubspace(int s, List<float[]> samples, Random random) {
+        float[] book = codebook[s];
+        int start = s * subDimensions;
+        int n = samples.size();
+
+        // Initialize from distinct random samples.
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        for (int c = 0; c < centroids; c++) {
+            int pick = c + random.nextInt(n - c);
+            int tmp = order[c];
+            order[c] = order[pick];
+            order[pick] = tmp;
+            System.arraycopy(samples.get(order[c]), start, book, c * subDimensions, subDimensions);
+        }
+
+        int[] assignment = new int[n];
+        float[] sums = new float[centroids * subDimensions];
+        int[] counts = new int[centroids];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                int c = nearest(book, samples.get(i), start);
+                if (c != assignment[i] || iteration == 0) changed = true;
+                assignment[i] = c;
+            }
+            if (!changed) break;
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                float[] sample = samples.get(i);
+                int c = assignment[i];
+                counts[c]++;
+                for (int j = 0; j < subDimensions; j++) {
+                    sums[c * subDimensions + j] += sample[start + j];
+                }
+            }
+
+            for (int c = 0; c < centroids; c++) {
+                if (counts[c] == 0) {
+                    // Reseed empty clusters with a random sample.
+                    System.arraycopy(samples.get(random.nextInt(n)), start,
+                            book, c * subDimensions, subDimensions);
+                    continue;
+                }
+                for (int j = 0; j < subDimensions; j++) {
+                    book[c * subDimensions + j] = sums[c * subDimensions + j] / counts[c];
+                }
+            }
+        }
+    }
+
+    private int nearest(float[] book, float[] v, int start) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < centroids; c++) {
+            float distance = 0;
+            for (int j = 0; j < subDimensions; j++) {
+                float d = v[start + j] - book[c * subDimensions + j];
+                distance += d * d;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,180 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Projects FaceNet embeddings with a {@link Pca} before handing them to another
+ * classifier. The wrapped classifier trains, stores and predicts in the reduced dimension.
+ *
+ * Enrolled embeddings are also appended to the raw data file, which the projection is
+ * fitted on. Until it holds as many embeddings as components, the projection just keeps
+ * the first components dimensions. It is refitted, and the wrapped classifier rebuilt, once
+ * there are enough embeddings to fit on and whenever the gallery has grown by REFIT_GROWTH.
+ */
+public class ProjectedClassifier implements FaceClassifier {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int REFIT_GROWTH = 2;
+
+    /**
+     * Creates the wrapped classifier from the projected data file.
+     */
+    public interface Factory {
+        FaceClassifier create(int components);
+    }
+
+    private final File pcaFile;
+    private final String dataFile;
+    private final String projectedDataFile;
+    private final int dimensions;
+    private final int components;
+    private final Factory factory;
+
+    private Pca pca;
+    private FaceClassifier classifier;
+    // Embeddings in the raw data file.
+    private int samples;
+
+    // Direct, since LibSVM reads the projected embedding through its address.
+    private final FloatBuffer projected;
+
+    /**
+     * Loads the stored projection, or fits one on the raw data file and writes the
+     * projected gallery to projectedDataFile for the wrapped classifier to load.
+     * Refits when the stored projection keeps a different number of components or is
+     * out of date.
+     */
+    public static ProjectedClassifier load(String pcaFile, String dataFile,
+                                           String projectedDataFile, int dimensions,
+                                           int components, Factory factory) {
+        ProjectedClassifier classifier = new ProjectedClassifier(
+                pcaFile, dataFile, projectedDataFile, dimensions, components, factory);
+
+        final ArrayList<Integer> labels = new ArrayList<>();
+        final ArrayList<float[]> embeddings = new ArrayList<>();
+        classifier.readEmbeddings(labels, embeddings);
+
+        if (classifier.pcaFile.exists()) {
+            try {
+                Pca pca = Pca.load(classifier.pcaFile);
+                if (pca.getDimensions() == dimensions && pca.getComponents() == components) {
+                    classifier.pca = pca;
+                }
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to read projection %s", classifier.pcaFile);
+            }
+        }
+
+        if (classifier.pca == null || classifier.needsRefit()) {
+            classifier.fit(labels, embeddings);
+        }
+        classifier.classifier = factory.create(components);
+        return classifier;
+    }
+
+    private ProjectedClassifier(String pcaFile, String dataFile, String projectedDataFile,
+                                int dimensions, int components, Factory factory) {
+        this.pcaFile = new File(FileUtils.ROOT + File.separator + pcaFile);
+        this.dataFile = dataFile;
+        this.projectedDataFile = projectedDataFile;
+        this.dimensions = dimensions;
+        this.components = components;
+        this.factory = factory;
+        this.projected = ByteBuffer.allocateDirect(components * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    private void readEmbeddings(final ArrayList<Integer> labels,
+                                final ArrayList<float[]> embeddings) {
+        try {
+            FileUtils.readEmbeddings(dataFile, dimensions, (label, embedding) -> {
+                labels.add(label);
+                embeddings.add(embedding);
+            });
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to read embeddings from %s", dataFile);
+        }
+        samples = embeddings.size();
+    }
+
+    private boolean needsRefit() {
+        return pca.getSamples() == 0
+                ? samples >= components
+                : samples >= REFIT_GROWTH * pca.getSamples();
+    }
+
+    /**
+     * Fits the projection, or falls back to identity() with too few embeddings, and
+     * rewrites the projected data file. The wrapped classifier has to be created again.
+     */
+    private void fit(ArrayList<Integer> labels, ArrayList<float[]> embeddings) {
+        if (embeddings.size() >= components) {
+            pca = Pca.fit(embeddings, dimensions, components);
+            LOGGER.i("Fitted PCA to %d components on %d embeddings, explained variance %.3f",
+                    components, embeddings.size(), pca.getExplainedVariance());
+        } else {
+            pca = Pca.identity(dimensions, components);
+            LOGGER.i("Not projecting until there are %d embeddings to fit PCA on", components);
+        }
+
+        ArrayList<float[]> projectedEmbeddings = new ArrayList<>(embeddings.size());
+        for (float[] embedding : embeddings) {
+            projectedEmbeddings.add(pca.project(embedding));
+        }
+        new File(FileUtils.ROOT + File.separator + projectedDataFile).delete();
+        FileUtils.appendEmbeddings(labels, projectedEmbeddings, projectedDataFile);
+        try {
+            pca.save(pcaFile);
+        } catch (IOException e) {
+            LOGGER.e(e, "Failed to write projection %s", pcaFile);
+        }
+    }
+
+    @Override
+    public void train(int label, ArrayList<float[]> list) {
+        FileUtils.appendEmbeddings(label, list, dataFile);
+        samples += list.size();
+        if (needsRefit()) {
+            ArrayList<Integer> labels = new ArrayList<>();
+            ArrayList<float[]> embeddings = new ArrayList<>();
+            readEmbeddings(labels, embeddings);
+            fit(labels, embeddings);
+            classifier = factory.create(components);
+            return;
+        }
+
+        ArrayList<float[]> projectedList = new ArrayList<>(list.size());
+        for (float[] embedding : list) {
+            projectedList.add(pca.project(embedding));
+        }
+        classifier.train(label, projectedList);
+    }
+
+    @Override
+    public void remove(int label) {
+        samples -= FileUtils.removeEmbeddings(label, dataFile);
+        classifier.remove(label);
+    }
+
+    @Override
+    public Pair<Integer, Float> predict(FloatBuffer buffer) {
+        projected.clear();
+        pca.project(buffer, projected);
+        return classifier.predict(projected);
+    }
+
+    @Override
+    public float getMinConfidence() {
+        return classifier.getMinConfidence();
+    }
+}
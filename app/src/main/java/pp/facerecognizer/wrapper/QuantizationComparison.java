@@ -0,0 +1,115 @@
+package pp.facerecognizer.wrapper;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+import androidx.core.util.Pair;
+import pp.facerecognizer.Classifier;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Runs the float and quantized variants of MTCNN and FaceNet on the same input and
+ * reports their latency and how far the quantized embeddings drift from the float ones.
+ */
+public class QuantizationComparison {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int RUNS = 5;
+
+    /**
+     * Compares the models on the given frame and returns a printable report.
+     * Loads all four models, so this is meant for offline evaluation only.
+     */
+    public static String compare(
+            final AssetManager assetManager, final Bitmap bitmap, final int faceSize) {
+        final StringBuilder report = new StringBuilder();
+
+        final MTCNN floatMtcnn = MTCNN.create(assetManager, SessionConfig.DEFAULT);
+        final MTCNN quantMtcnn = MTCNN.createQuantized(assetManager, SessionConfig.DEFAULT);
+        final Pair[] faces;
+        final Pair[] quantFaces;
+        try {
+            floatMtcnn.warmUp();
+            quantMtcnn.warmUp();
+
+            long startTime = SystemClock.uptimeMillis();
+            Pair[] detected = null;
+            for (int i = 0; i < RUNS; i++) {
+                detected = floatMtcnn.detect(bitmap);
+            }
+            final long floatTime = (SystemClock.uptimeMillis() - startTime) / RUNS;
+            faces = detected;
+
+            startTime = SystemClock.uptimeMillis();
+            for (int i = 0; i < RUNS; i++) {
+                detected = quantMtcnn.detect(bitmap);
+            }
+            final long quantTime = (SystemClock.uptimeMillis() - startTime) / RUNS;
+            quantFaces = detected;
+
+            report.append(String.format("MTCNN float: %dms, quantized: %dms, faces: %d vs %d\n",
+                    floatTime, quantTime, faces.length, quantFaces.length));
+        } finally {
+            floatMtcnn.close();
+            quantMtcnn.close();
+        }
+
+        final FaceNet floatFaceNet =
+                FaceNet.create(assetManager, faceSize, faceSize, SessionConfig.DEFAULT);
+        final FaceNet quantFaceNet =
+                FaceNet.createQuantized(assetManager, faceSize, faceSize, SessionConfig.DEFAULT);
+        try {
+            floatFaceNet.warmUp();
+            quantFaceNet.warmUp();
+
+            final float[] floatEmbedding = new float[Classifier.EMBEDDING_SIZE];
+            final float[] quantEmbedding = new float[Classifier.EMBEDDING_SIZE];
+            long floatTime = 0;
+            long quantTime = 0;
+            double sumDrift = 0;
+            double maxDrift = 0;
+
+            // Embed the float detections with both models, so only FaceNet differs.
+            for (Pair face : faces) {
+                final Rect rect = new Rect();
+                ((RectF) face.first).round(rect);
+
+                long startTime = SystemClock.uptimeMillis();
+                floatFaceNet.getEmbeddings(bitmap, rect).get(floatEmbedding);
+                floatTime += SystemClock.uptimeMillis() - startTime;
+
+                startTime = SystemClock.uptimeMillis();
+                quantFaceNet.getEmbeddings(bitmap, rect).get(quantEmbedding);
+                quantTime += SystemClock.uptimeMillis() - startTime;
+
+                final double drift = 1.0 - cosineSimilarity(floatEmbedding, quantEmbedding);
+                sumDrift += drift;
+                maxDrift = Math.max(maxDrift, drift);
+            }
+
+            final int n = Math.max(faces.length, 1);
+            report.append(String.format(
+                    "FaceNet float: %dms, quantized: %dms, cosine drift mean: %.4f max: %.4f\n",
+                    floatTime / n, quantTime / n, sumDrift / n, maxDrift));
+        } finally {
+            floatFaceNet.close();
+            quantFaceNet.close();
+        }
+
+        LOGGER.i("Quantization comparison:\n%s", report);
+        return report.toString();
+    }
+
+    private static double cosineSimilarity(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / Math.max(Math.sqrt(normA * normB), 1e-12);
+    }
+}
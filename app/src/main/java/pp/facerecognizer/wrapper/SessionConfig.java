@@ -0,0 +1,83 @@
+package pp.facerecognizer.wrapper;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Thread settings for a TensorFlow session.
+ * Serializes itself into the wire format of tensorflow.ConfigProto, so no protobuf
+ * runtime is needed on the device.
+ */
+public class SessionConfig {
+    // Field numbers from tensorflow/core/protobuf/config.proto.
+    private static final int INTRA_OP_PARALLELISM_THREADS = 2;
+    private static final int INTER_OP_PARALLELISM_THREADS = 5;
+    private static final int WIRETYPE_VARINT = 0;
+
+    /** Lets TensorFlow pick both thread counts, same as a session without a config. */
+    public static final SessionConfig DEFAULT = new SessionConfig(0, 0);
+
+    private final int intraOpThreads;
+    private final int interOpThreads;
+
+    /**
+     * @param intraOpThreads threads used to parallelize a single op, 0 for the TensorFlow default.
+     * @param interOpThreads threads used to run independent ops, 0 for the TensorFlow default.
+     */
+    public SessionConfig(int intraOpThreads, int interOpThreads) {
+        this.intraOpThreads = intraOpThreads;
+        this.interOpThreads = interOpThreads;
+    }
+
+    public int getIntraOpThreads() {
+        return intraOpThreads;
+    }
+
+    public int getInterOpThreads() {
+        return interOpThreads;
+    }
+
+    /**
+     * Returns the serialized ConfigProto, or null if every field is left at its default.
+     */
+    public byte[] toConfigProto() {
+        if (intraOpThreads <= 0 && interOpThreads <= 0) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (intraOpThreads > 0) {
+            writeVarint(out, (INTRA_OP_PARALLELISM_THREADS << 3) | WIRETYPE_VARINT);
+            writeVarint(out, intraOpThreads);
+        }
+        if (interOpThreads > 0) {
+            writeVarint(out, (INTER_OP_PARALLELISM_THREADS << 3) | WIRETYPE_VARINT);
+            writeVarint(out, interOpThreads);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SessionConfig)) return false;
+        SessionConfig other = (SessionConfig) o;
+        return intraOpThreads == other.intraOpThreads && interOpThreads == other.interOpThreads;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * intraOpThreads + interOpThreads;
+    }
+
+    @Override
+    public String toString() {
+        return "intra=" + intraOpThreads + " inter=" + interOpThreads;
+    }
+}
@@ -0,0 +1,122 @@
+package pp.facerecognizer.wrapper;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Scanner;
+
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Picks the fastest session thread configuration for a model on this device.
+ * The winner is stored in {@link FileUtils#SESSION_FILE} keyed by device model and
+ * model name, so the benchmark only runs once per device. It loads every candidate
+ * session in turn, so it is too slow to run while the app starts.
+ */
+public class SessionTuner {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int WARM_UP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+
+    private static final SessionConfig[] CANDIDATES = {
+            SessionConfig.DEFAULT,
+            new SessionConfig(1, 1),
+            new SessionConfig(2, 1),
+            new SessionConfig(4, 1),
+            new SessionConfig(2, 2),
+    };
+
+    /**
+     * A model that can run inference on synthetic input.
+     */
+    public interface Tunable {
+        void warmUp();
+        void close();
+    }
+
+    public interface Factory {
+        Tunable create(SessionConfig config);
+    }
+
+    /**
+     * Returns the stored configuration for the given model, or null if the benchmark has
+     * not run on this device yet.
+     */
+    public static SessionConfig getStored(String name) {
+        SessionConfig config = load(name);
+        if (config != null) {
+            LOGGER.i("Using stored session config for %s: %s", name, config);
+        }
+        return config;
+    }
+
+    /**
+     * Runs the benchmark and stores the fastest configuration for getStored().
+     */
+    public static SessionConfig tuneAndStore(String name, Factory factory) {
+        SessionConfig config = tune(name, factory);
+        FileUtils.appendText(
+                Build.MODEL + "\t" + name + "\t"
+                        + config.getIntraOpThreads() + "\t" + config.getInterOpThreads(),
+                FileUtils.SESSION_FILE);
+        return config;
+    }
+
+    /**
+     * Times every candidate configuration and returns the fastest one.
+     */
+    public static SessionConfig tune(String name, Factory factory) {
+        SessionConfig best = SessionConfig.DEFAULT;
+        long bestTime = Long.MAX_VALUE;
+
+        for (SessionConfig candidate : CANDIDATES) {
+            Tunable model = factory.create(candidate);
+            try {
+                for (int i = 0; i < WARM_UP_RUNS; i++) {
+                    model.warmUp();
+                }
+
+                long startTime = SystemClock.uptimeMillis();
+                for (int i = 0; i < TIMED_RUNS; i++) {
+                    model.warmUp();
+                }
+                long time = (SystemClock.uptimeMillis() - startTime) / TIMED_RUNS;
+
+                LOGGER.i("Session config for %s (%s): %dms", name, candidate, time);
+                if (time < bestTime) {
+                    bestTime = time;
+                    best = candidate;
+                }
+            } finally {
+                model.close();
+            }
+        }
+
+        LOGGER.i("Fastest session config for %s: %s", name, best);
+        return best;
+    }
+
+    private static SessionConfig load(String name) {
+        File file = new File(FileUtils.ROOT + File.separator + FileUtils.SESSION_FILE);
+        if (!file.exists()) return null;
+
+        SessionConfig config = null;
+        try (Scanner s = new Scanner(file)) {
+            while (s.hasNextLine()) {
+                String[] fields = s.nextLine().split("\t");
+                if (fields.length == 4 && fields[0].equals(Build.MODEL) && fields[1].equals(name)) {
+                    // Later lines win, so a re-tune simply appends.
+                    config = new SessionConfig(
+                            Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                }
+            }
+        } catch (FileNotFoundException | NumberFormatException e) {
+            LOGGER.e(e, "Failed to read session configs");
+        }
+        return config;
+    }
+}
@@ -0,0 +1,161 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.facerecognizer.wrapper;
+
+import android.content.res.AssetManager;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * An {@link InferenceEngine} backed by a TensorFlow session. Unlike
+ * TensorFlowInferenceInterface it accepts session options.
+ */
+public class TensorFlowEngine implements InferenceEngine {
+    private static final Logger LOGGER = new Logger();
+    private static final String ASSET_FILE_PREFIX = "file:///android_asset/";
+
+    private final Graph graph;
+    private final Session session;
+    private Session.Runner runner;
+
+    private final List<Tensor<?>> feedTensors = new ArrayList<>();
+    private final List<String> fetchNames = new ArrayList<>();
+    private List<Tensor<?>> fetchTensors = new ArrayList<>();
+
+    public TensorFlowEngine(AssetManager assetManager, String model, SessionConfig config) {
+        graph = new Graph();
+
+        String filename = model.startsWith(ASSET_FILE_PREFIX)
+                ? model.substring(ASSET_FILE_PREFIX.length()) : model;
+        try {
+            graph.importGraphDef(readGraphDef(assetManager, filename));
+        } catch (IOException e) {
+            graph.close();
+            throw new RuntimeException("Failed to load model from '" + model + "'", e);
+        }
+
+        byte[] configProto = config.toConfigProto();
+        session = configProto == null ? new Session(graph) : new Session(graph, configProto);
+        runner = session.runner();
+    }
+
+    /**
+     * Reads the serialized graph straight out of the memory-mapped asset, so the only heap
+     * copy is the one Graph.importGraphDef() requires. Falls back to a stream read when
+     * the asset is compressed.
+     */
+    private static byte[] readGraphDef(AssetManager assetManager, String filename)
+            throws IOException {
+        try {
+            MappedByteBuffer mapped = FileUtils.mapAsset(assetManager, filename);
+            byte[] graphDef = new byte[mapped.remaining()];
+            mapped.get(graphDef);
+            return graphDef;
+        } catch (FileNotFoundException e) {
+            LOGGER.w("Model %s is compressed, falling back to a stream read", filename);
+        }
+
+        try (InputStream is = assetManager.open(filename)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16384];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public boolean hasOperation(String name) {
+        return graph.operation(name) != null;
+    }
+
+    @Override
+    public void feed(String inputName, FloatBuffer src, long... dims) {
+        Tensor<Float> tensor = Tensor.create(dims, src);
+        feedTensors.add(tensor);
+        runner.feed(inputName, tensor);
+    }
+
+    @Override
+    public void run(String[] outputNames) {
+        closeFetches();
+        for (String name : outputNames) {
+            fetchNames.add(name);
+            runner.fetch(name);
+        }
+
+        try {
+            fetchTensors = new ArrayList<>(runner.run());
+        } finally {
+            closeFeeds();
+            runner = session.runner();
+        }
+    }
+
+    @Override
+    public void fetch(String outputName, FloatBuffer dst) {
+        getTensor(outputName).writeTo(dst);
+    }
+
+    @Override
+    public String getStatString() {
+        return "";
+    }
+
+    @Override
+    public void close() {
+        closeFeeds();
+        closeFetches();
+        session.close();
+        graph.close();
+    }
+
+    private Tensor<?> getTensor(String outputName) {
+        int i = fetchNames.indexOf(outputName);
+        if (i < 0) {
+            throw new RuntimeException("Node '" + outputName + "' was not provided to run()");
+        }
+        return fetchTensors.get(i);
+    }
+
+    private void closeFeeds() {
+        for (Tensor<?> t : feedTensors) {
+            t.close();
+        }
+        feedTensors.clear();
+    }
+
+    private void closeFetches() {
+        for (Tensor<?> t : fetchTensors) {
+            t.close();
+        }
+        fetchTensors.clear();
+        fetchNames.clear();
+    }
+}
@@ -87,7 +87,8 @@ static const bool kDoBrightnessNormalize = true;
 // This is a define for now because it helps keep the code streamlined.
 #define NORMALIZE 1
 
-// Number of keypoints to store per frame.
+// Number of keypoints to store per frame. This sizes the keypoint arrays, while
+// KeypointDetectorConfig::max_keypoints sets how many are used at runtime.
 static const int kMaxKeypoints = 76;
 
 // Keypoint detection.
@@ -99,7 +100,8 @@ static const int kKeypointStep = 7;
 // Number of frame deltas to keep around in the circular queue.
 static const int kNumFrames = 512;
 
-// Number of iterations to do tracking on each keypoint at each pyramid level.
+// Default number of iterations to do tracking on each keypoint at each pyramid
+// level, see OpticalFlowConfig::num_iterations.
 static const int kNumIterations = 3;
 
 // The number of bins (on a side) to divide each bin from the previous
@@ -112,7 +114,8 @@ static const int kCacheBranchFactor = 2;
 // branch_factor^(level - 1) on each side.
 //
 // This may be greater than kNumPyramidLevels. Setting it to 0 means no
-// caching is enabled.
+// caching is enabled. OpticalFlowConfig::num_cache_levels may use fewer of the
+// coarsest levels at runtime.
 static const int kNumCacheLevels = 3;
 
 // The level at which the cache pyramid gets cut off and replaced by a matrix
@@ -266,17 +269,31 @@ struct KeypointDetectorConfig {
 
   bool detect_skin;
 
+  // Keypoints selected per frame, at most kMaxKeypoints.
+  int max_keypoints;
+
   explicit KeypointDetectorConfig(const Size& image_size)
       : image_size(image_size),
-        detect_skin(false) {}
+        detect_skin(false),
+        max_keypoints(kMaxKeypoints) {}
 };
 
 
 struct OpticalFlowConfig {
   const Size image_size;
 
+  // Flow cache levels used for initial guesses, at most kNumCacheLevels.
+  // Dropping levels skips the coarsest pyramid levels, which is cheaper but
+  // follows large motions less well.
+  int num_cache_levels;
+
+  // Iterations of flow refinement per keypoint and pyramid level.
+  int num_iterations;
+
   explicit OpticalFlowConfig(const Size& image_size)
-      : image_size(image_size) {}
+      : image_size(image_size),
+        num_cache_levels(kNumCacheLevels),
+        num_iterations(kNumIterations) {}
 };
 
 struct TrackerConfig {
@@ -287,12 +304,17 @@ struct TrackerConfig {
 
   float object_box_scale_factor_for_features;
 
+  // Threads that keypoint flow and per-object updates are spread over,
+  // counting the thread that calls NextFrame().
+  int num_threads;
+
   explicit TrackerConfig(const Size& image_size)
       : image_size(image_size),
         keypoint_detector_config(image_size),
         flow_config(image_size),
         always_track(false),
-        object_box_scale_factor_for_features(1.0f) {}
+        object_box_scale_factor_for_features(1.0f),
+        num_threads(1) {}
 };
 
 }  // namespace tf_tracking
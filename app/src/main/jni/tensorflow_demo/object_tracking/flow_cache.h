@@ -67,22 +67,8 @@ class FlowCache {
   // Finds the flow at a point, using the cache for performance.
   bool FindFlowAtPoint(const float u_x, const float u_y,
                        float* const flow_x, float* const flow_y) const {
-    // Get the best guess from the cache.
-    const Point2f guess_from_cache = LookupGuess(u_x, u_y);
-
-    *flow_x = guess_from_cache.x;
-    *flow_y = guess_from_cache.y;
-
-    // Now refine the guess using the image pyramid.
-    for (int pyramid_level = kMinNumPyramidLevelsToUseForAdjustment - 1;
-        pyramid_level >= 0; --pyramid_level) {
-      if (!optical_flow_.FindFlowAtPointSingleLevel(
-          pyramid_level, u_x, u_y, false, flow_x, flow_y)) {
-        return false;
-      }
-    }
-
-    return true;
+    // Get the best guess from the cache, then refine it.
+    return RefineFlowAtPoint(u_x, u_y, LookupGuess(u_x, u_y), flow_x, flow_y);
   }
 
   // Determines the displacement of a point, and uses that to calculate a new
@@ -91,9 +77,31 @@ class FlowCache {
   // is in the image.
   bool FindNewPositionOfPoint(const float u_x, const float u_y,
                               float* final_x, float* final_y) const {
+    return RefineNewPositionOfPoint(u_x, u_y, LookupGuess(u_x, u_y),
+                                    final_x, final_y);
+  }
+
+  // The two steps of FindNewPositionOfPoint(), for callers that spread points
+  // over threads. GetGuess() fills the cache, so it must be called from one
+  // thread at a time. After PrepareRefinement(), RefineNewPositionOfPoint()
+  // only reads shared state and may be called concurrently.
+  Point2f GetGuess(const float u_x, const float u_y) const {
+    return LookupGuess(u_x, u_y);
+  }
+
+  void PrepareRefinement() const {
+    for (int pyramid_level = kMinNumPyramidLevelsToUseForAdjustment - 1;
+        pyramid_level >= 0; --pyramid_level) {
+      optical_flow_.PrepareLevel(pyramid_level);
+    }
+  }
+
+  bool RefineNewPositionOfPoint(const float u_x, const float u_y,
+                                const Point2f& guess,
+                                float* final_x, float* final_y) const {
     float flow_x;
     float flow_y;
-    if (!FindFlowAtPoint(u_x, u_y, &flow_x, &flow_y)) {
+    if (!RefineFlowAtPoint(u_x, u_y, guess, &flow_x, &flow_y)) {
       return false;
     }
 
@@ -212,7 +220,7 @@ class FlowCache {
       (*has_cache_[cache_level])[index_y][index_x] = true;
 
       // Get the lower cache level's best guess, if it exists.
-      displacement = cache_level >= kNumCacheLevels - 1 ?
+      displacement = cache_level >= config_->num_cache_levels - 1 ?
           Point2f(0, 0) : LookupGuessFromLevel(cache_level + 1, x, y);
       // LOGI("Best guess at cache level %d is %5.2f, %5.2f.", cache_level,
       //      best_guess.x, best_guess.y);
@@ -254,7 +262,7 @@ class FlowCache {
     }
 
     // LOGI("Looking up guess at %5.2f %5.2f.", x, y);
-    if (kNumCacheLevels > 0) {
+    if (config_->num_cache_levels > 0) {
       return LookupGuessFromLevel(0, x, y);
     } else {
       return Point2f(0, 0);
@@ -285,6 +293,24 @@ class FlowCache {
     return cache_level + (kNumPyramidLevels - kNumCacheLevels);
   }
 
+  // Refines a guess from the cache using the image pyramid.
+  bool RefineFlowAtPoint(const float u_x, const float u_y,
+                         const Point2f& guess,
+                         float* const flow_x, float* const flow_y) const {
+    *flow_x = guess.x;
+    *flow_y = guess.y;
+
+    for (int pyramid_level = kMinNumPyramidLevelsToUseForAdjustment - 1;
+        pyramid_level >= 0; --pyramid_level) {
+      if (!optical_flow_.FindFlowAtPointSingleLevel(
+          pyramid_level, u_x, u_y, false, flow_x, flow_y)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
   const OpticalFlowConfig* const config_;
 
   const Size image_size_;
@@ -33,8 +33,8 @@ void FramePair::AdjustBox(const BoundingBox box,
                           float* const translation_y,
                           float* const scale_x,
                           float* const scale_y) const {
-  static float weights[kMaxKeypoints];
-  static Point2f deltas[kMaxKeypoints];
+  float weights[kMaxKeypoints];
+  Point2f deltas[kMaxKeypoints];
   memset(weights, 0.0f, sizeof(*weights) * kMaxKeypoints);
 
   BoundingBox resized_box(box);
@@ -224,7 +224,7 @@ Point2f FramePair::GetWeightedMedian(
   Point2f median_delta;
 
   // TODO(andrewharp): only sort deltas that could possibly have an effect.
-  static WeightedDelta weighted_deltas[kMaxKeypoints];
+  WeightedDelta weighted_deltas[kMaxKeypoints];
 
   // Compute median X value.
   {
@@ -270,7 +270,7 @@ float FramePair::GetWeightedMedianScale(
   float median_delta;
 
   // TODO(andrewharp): only sort deltas that could possibly have an effect.
-  static WeightedDelta weighted_deltas[kMaxKeypoints * 2];
+  WeightedDelta weighted_deltas[kMaxKeypoints * 2];
 
   // Compute median scale value across x and y.
   {
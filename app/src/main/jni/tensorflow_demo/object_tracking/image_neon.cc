@@ -237,9 +237,9 @@ void CalculateGNeon(const float* const vals_x, const float* const vals_y,
     yy = vmlaq_f32(yy, y, y);
   }
 
-  static float32_t xx_vals[4];
-  static float32_t xy_vals[4];
-  static float32_t yy_vals[4];
+  float32_t xx_vals[4];
+  float32_t xy_vals[4];
+  float32_t yy_vals[4];
 
   vst1q_f32(xx_vals, xx);
   vst1q_f32(xy_vals, xy);
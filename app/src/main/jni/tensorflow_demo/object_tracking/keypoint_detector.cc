@@ -172,7 +172,7 @@ void KeypointDetector::SelectKeypoints(
 
     const int max_keypoints_to_find_in_box =
         MIN(kMaxKeypointsForObject - num_keypoints_already_in_box,
-            kMaxKeypoints - curr_change->number_of_keypoints_);
+            config_->max_keypoints - curr_change->number_of_keypoints_);
 
     const int num_new_keypoints_in_box = SelectKeypointsInBox(
         bounding_box,
@@ -375,7 +375,7 @@ void KeypointDetector::FindKeypoints(const ImageData& image_data,
 
   LOGV("Picked %d (%d max) final keypoints out of %d potential.",
        curr_change->number_of_keypoints_,
-       kMaxKeypoints, number_of_tmp_keypoints);
+       config_->max_keypoints, number_of_tmp_keypoints);
 }
 
 
@@ -18,6 +18,7 @@ limitations under the License.
 #include <GLES/glext.h>
 #endif
 
+#include <stdio.h>
 #include <string>
 #include <map>
 
@@ -36,7 +37,7 @@ limitations under the License.
 
 namespace tf_tracking {
 
-ObjectTracker::ObjectTracker(const TrackerConfig* const config,
+ObjectTracker::ObjectTracker(TrackerConfig* const config,
                              ObjectDetectorBase* const detector)
     : config_(config),
       frame_width_(config->image_size.width),
@@ -50,7 +51,8 @@ ObjectTracker::ObjectTracker(const TrackerConfig* const config,
       frame1_(new ImageData(frame_width_, frame_height_)),
       frame2_(new ImageData(frame_width_, frame_height_)),
       detector_(detector),
-      num_detected_(0) {
+      num_detected_(0),
+      worker_pool_(config->num_threads) {
   for (int i = 0; i < kNumFrames; ++i) {
     frame_pairs_[i].Init(-1, -1);
   }
@@ -74,17 +76,32 @@ void ObjectTracker::FindCorrespondences(FramePair* const frame_pair) const {
          sizeof(*frame_pair->optical_flow_found_keypoint_) * kMaxKeypoints);
   TimeLog("Cleared old found keypoints");
 
-  int num_keypoints_found = 0;
+  // The cached guesses fill the flow cache as they go, so they are looked up
+  // in order on this thread. Refining them only reads the frames, and each
+  // keypoint writes its own slots, so that part runs on the worker pool.
+  Point2f guesses[kMaxKeypoints];
+  for (int i_feat = 0; i_feat < frame_pair->number_of_keypoints_; ++i_feat) {
+    const Keypoint& keypoint1 = frame_pair->frame1_keypoints_[i_feat];
+    guesses[i_feat] = flow_cache_.GetGuess(keypoint1.pos_.x, keypoint1.pos_.y);
+  }
+  flow_cache_.PrepareRefinement();
 
   // For every keypoint...
-  for (int i_feat = 0; i_feat < frame_pair->number_of_keypoints_; ++i_feat) {
+  worker_pool_.ParallelFor(frame_pair->number_of_keypoints_,
+                           [&](const int i_feat) {
     Keypoint* const keypoint1 = frame_pair->frame1_keypoints_ + i_feat;
     Keypoint* const keypoint2 = frame_pair->frame2_keypoints_ + i_feat;
 
-    if (flow_cache_.FindNewPositionOfPoint(
-        keypoint1->pos_.x, keypoint1->pos_.y,
+    if (flow_cache_.RefineNewPositionOfPoint(
+        keypoint1->pos_.x, keypoint1->pos_.y, guesses[i_feat],
         &keypoint2->pos_.x, &keypoint2->pos_.y)) {
       frame_pair->optical_flow_found_keypoint_[i_feat] = true;
+    }
+  });
+
+  int num_keypoints_found = 0;
+  for (int i_feat = 0; i_feat < frame_pair->number_of_keypoints_; ++i_feat) {
+    if (frame_pair->optical_flow_found_keypoint_[i_feat]) {
       ++num_keypoints_found;
     }
   }
@@ -196,19 +213,31 @@ void ObjectTracker::RegisterNewObjectWithAppearance(
 void ObjectTracker::SetPreviousPositionOfObject(const std::string& id,
                                                 const BoundingBox& bounding_box,
                                                 const int64_t timestamp) {
+  SetPreviousPositionOfObject(GetObject(id), bounding_box, timestamp);
+}
+
+
+void ObjectTracker::SetPreviousPositionOfObject(const int handle,
+                                                const BoundingBox& bounding_box,
+                                                const int64_t timestamp) {
+  SetPreviousPositionOfObject(GetObject(handle), bounding_box, timestamp);
+}
+
+
+void ObjectTracker::SetPreviousPositionOfObject(TrackedObject* const object,
+                                                const BoundingBox& bounding_box,
+                                                const int64_t timestamp) {
   CHECK_ALWAYS(timestamp > 0, "Timestamp too low! %lld", timestamp);
   CHECK_ALWAYS(timestamp <= curr_time_,
                "Timestamp too great! %lld vs %lld", timestamp, curr_time_);
 
-  TrackedObject* const object = GetObject(id);
-
   // Track this bounding box from the past to the current time.
   const BoundingBox current_position = TrackBox(bounding_box, timestamp);
 
   object->UpdatePosition(current_position, curr_time_, *frame2_, false);
 
-  VLOG(2) << "Set tracked position for " << id << " to " << bounding_box
-          << std::endl;
+  VLOG(2) << "Set tracked position for " << object->GetName() << " to "
+          << bounding_box << std::endl;
 }
 
 
@@ -218,9 +247,82 @@ void ObjectTracker::SetCurrentPositionOfObject(
 }
 
 
+void ObjectTracker::SetCurrentPositionOfObject(
+    const int handle, const BoundingBox& bounding_box) {
+  SetPreviousPositionOfObject(handle, bounding_box, curr_time_);
+}
+
+
+int ObjectTracker::RegisterNewObjectWithAppearance(
+    const uint8_t* const new_frame, const BoundingBox& bounding_box) {
+  int handle = 0;
+  while (handle < static_cast<int>(handles_.size()) &&
+         handles_[handle] != NULL) {
+    ++handle;
+  }
+  if (handle == static_cast<int>(handles_.size())) {
+    handles_.push_back(NULL);
+  }
+
+  // The string id only matters to the map and the detector, so derive it from
+  // the handle.
+  char id[16];
+  snprintf(id, sizeof(id), "#%d", handle);
+  RegisterNewObjectWithAppearance(id, new_frame, bounding_box);
+  handles_[handle] = GetObject(std::string(id));
+  return handle;
+}
+
+
+void ObjectTracker::SetTrackingBudget(const int max_keypoints,
+                                      const int num_cache_levels,
+                                      const int num_iterations) {
+  config_->keypoint_detector_config.max_keypoints =
+      Clip(max_keypoints, 1, kMaxKeypoints);
+  config_->flow_config.num_cache_levels =
+      Clip(num_cache_levels, 0, kNumCacheLevels);
+  config_->flow_config.num_iterations = MAX(num_iterations, 1);
+}
+
+
+int ObjectTracker::GetTrackedState(float* const out_data,
+                                   const int max_objects) {
+  int num_objects = 0;
+  for (size_t handle = 0; handle < handles_.size(); ++handle) {
+    TrackedObject* const object = handles_[handle];
+    if (object == NULL) {
+      continue;
+    }
+
+    if (num_objects < max_objects) {
+      float* const state = out_data + num_objects * kTrackedStateSize;
+      state[0] = handle;
+      object->GetPosition().CopyToArray(state + 1);
+      state[5] = object->GetCorrelation();
+      state[6] = object->IsVisible() ? 1.0f : 0.0f;
+      state[7] = object->GetMatchScore().value;
+    }
+    ++num_objects;
+  }
+  return num_objects;
+}
+
+
+void ObjectTracker::ForgetTarget(const int handle) {
+  // Copied, as GetName() refers into the object that ForgetTarget() deletes.
+  const std::string id = GetObject(handle)->GetName();
+  ForgetTarget(id);
+}
+
+
 void ObjectTracker::ForgetTarget(const std::string& id) {
   LOGV("Forgetting object %s", id.c_str());
   TrackedObject* const object = GetObject(id);
+  for (size_t i = 0; i < handles_.size(); ++i) {
+    if (handles_[i] == object) {
+      handles_[i] = NULL;
+    }
+  }
   delete object;
   objects_.erase(id);
 
@@ -396,7 +498,7 @@ void ObjectTracker::Draw(const int canvas_width, const int canvas_height,
   glPushMatrix();
 
   // Apply the frame to canvas transformation.
-  static GLfloat transformation[16];
+  GLfloat transformation[16];
   Convert3x3To4x4(frame_to_canvas, transformation);
   glMultMatrixf(transformation);
 
@@ -650,14 +752,33 @@ void ObjectTracker::TrackObjects() {
       detector_->AllowSpontaneousDetections() : false;
 
   LOGV("Tracking %zu objects!", objects_.size());
-  std::vector<std::string> dead_objects;
+  objects_to_track_.clear();
   for (TrackedObjectMap::iterator iter = objects_.begin();
        iter != objects_.end(); iter++) {
-    TrackedObject* object = iter->second;
-    const BoundingBox tracked_position = TrackBox(
-        object->GetPosition(), frame_pairs_[GetNthIndexFromEnd(0)]);
+    objects_to_track_.push_back(iter->second);
+  }
+
+  // Each object only updates its own state, unless a detector is present, in
+  // which case objects may share its models and are updated in order.
+  const FramePair& frame_pair = frame_pairs_[GetNthIndexFromEnd(0)];
+  const std::function<void(int)> track_object = [&](const int index) {
+    TrackedObject* const object = objects_to_track_[index];
+    const BoundingBox tracked_position =
+        TrackBox(object->GetPosition(), frame_pair);
     object->UpdatePosition(tracked_position, curr_time_, *frame2_, false);
+  };
+  if (detector_.get() == NULL) {
+    worker_pool_.ParallelFor(objects_to_track_.size(), track_object);
+  } else {
+    for (size_t index = 0; index < objects_to_track_.size(); ++index) {
+      track_object(index);
+    }
+  }
 
+  std::vector<std::string> dead_objects;
+  for (TrackedObjectMap::iterator iter = objects_.begin();
+       iter != objects_.end(); iter++) {
+    TrackedObject* object = iter->second;
     if (automatic_removal_allowed &&
         object->GetNumConsecutiveFramesBelowThreshold() >
         kMaxNumDetectionFailures * 5) {
@@ -18,6 +18,7 @@ limitations under the License.
 
 #include <map>
 #include <string>
+#include <vector>
 
 #include "geom.h"
 #include "integral_image.h"
@@ -29,11 +30,15 @@ limitations under the License.
 #include "object_model.h"
 #include "optical_flow.h"
 #include "tracked_object.h"
+#include "worker_pool.h"
 
 namespace tf_tracking {
 
 typedef std::map<const std::string, TrackedObject*> TrackedObjectMap;
 
+// Floats per object written by ObjectTracker::GetTrackedState().
+static const int kTrackedStateSize = 8;
+
 inline std::ostream& operator<<(std::ostream& stream,
                                 const TrackedObjectMap& map) {
   for (TrackedObjectMap::const_iterator iter = map.begin();
@@ -51,7 +56,7 @@ inline std::ostream& operator<<(std::ostream& stream,
 // object tracking, and object detection/relocalization.
 class ObjectTracker {
  public:
-  ObjectTracker(const TrackerConfig* const config,
+  ObjectTracker(TrackerConfig* const config,
                 ObjectDetectorBase* const detector);
   virtual ~ObjectTracker();
 
@@ -90,6 +95,33 @@ class ObjectTracker {
   // Tells the ObjectTracker to stop tracking a target.
   void ForgetTarget(const std::string& id);
 
+  // Handle-based variants of the calls above. A handle is an index into a slot
+  // array, so per-object calls need no string conversion or map lookup.
+  // Handles of forgotten objects are reused by later registrations.
+  int RegisterNewObjectWithAppearance(const uint8_t* const new_frame,
+                                      const BoundingBox& bounding_box);
+
+  void SetPreviousPositionOfObject(const int handle,
+                                   const BoundingBox& bounding_box,
+                                   const int64_t timestamp);
+
+  void SetCurrentPositionOfObject(const int handle,
+                                  const BoundingBox& bounding_box);
+
+  void ForgetTarget(const int handle);
+
+  // Changes how much work each frame does: the keypoints selected, the flow
+  // cache levels used for guesses and the flow iterations per level. Values
+  // are clamped to the limits in config.h and apply from the next frame.
+  void SetTrackingBudget(const int max_keypoints, const int num_cache_levels,
+                         const int num_iterations);
+
+  // Writes the state of up to max_objects tracked objects to out_data, as
+  // kTrackedStateSize floats each: handle, left, top, right, bottom,
+  // correlation, visibility (0 or 1) and match score.
+  // Returns the number of tracked objects, which may exceed max_objects.
+  int GetTrackedState(float* const out_data, const int max_objects);
+
   // Fills the given out_data buffer with the latest detected keypoint
   // correspondences, first scaled by scale_factor (to adjust for downsampling
   // that may have occurred elsewhere), then packed in a fixed-point format.
@@ -141,6 +173,25 @@ class ObjectTracker {
     return object->IsVisible();
   }
 
+  inline bool HaveObject(const int handle) const {
+    return handle >= 0 && handle < static_cast<int>(handles_.size()) &&
+        handles_[handle] != NULL;
+  }
+
+  inline const TrackedObject* GetObject(const int handle) const {
+    CHECK_ALWAYS(HaveObject(handle), "Unknown object handle! %d", handle);
+    return handles_[handle];
+  }
+
+  inline TrackedObject* GetObject(const int handle) {
+    CHECK_ALWAYS(HaveObject(handle), "Unknown object handle! %d", handle);
+    return handles_[handle];
+  }
+
+  bool IsObjectVisible(const int handle) const {
+    return GetObject(handle)->IsVisible();
+  }
+
   virtual void Draw(const int canvas_width, const int canvas_height,
                     const float* const frame_to_canvas) const;
 
@@ -189,7 +240,8 @@ class ObjectTracker {
 
   void TrackObjects();
 
-  const std::unique_ptr<const TrackerConfig> config_;
+  // Not const, so that the tracking budget can change between frames.
+  const std::unique_ptr<TrackerConfig> config_;
 
   const int frame_width_;
   const int frame_height_;
@@ -200,6 +252,9 @@ class ObjectTracker {
 
   TrackedObjectMap objects_;
 
+  // Objects by handle, NULL for free slots.
+  std::vector<TrackedObject*> handles_;
+
   FlowCache flow_cache_;
 
   KeypointDetector keypoint_detector_;
@@ -216,7 +271,14 @@ class ObjectTracker {
 
   int num_detected_;
 
+  // Mutable so that const passes such as FindCorrespondences can use it.
+  mutable WorkerPool worker_pool_;
+
  private:
+  void SetPreviousPositionOfObject(TrackedObject* const object,
+                                   const BoundingBox& bounding_box,
+                                   const int64_t timestamp);
+
   void TrackTarget(TrackedObject* const object);
 
   bool GetBestObjectForDetection(
@@ -229,6 +291,9 @@ class ObjectTracker {
   // Temp object used in ObjectTracker::CreateNewExample.
   mutable std::vector<BoundingSquare> squares;
 
+  // Temp object used in ObjectTracker::TrackObjects.
+  std::vector<TrackedObject*> objects_to_track_;
+
   friend std::ostream& operator<<(std::ostream& stream,
                                   const ObjectTracker& tracker);
 
@@ -54,72 +54,87 @@ extern "C" {
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(initNative)(JNIEnv* env, jobject thiz,
                                                jint width, jint height,
-                                               jboolean always_track);
+                                               jboolean always_track,
+                                               jint num_threads,
+                                               jint max_keypoints,
+                                               jint num_flow_levels,
+                                               jint num_flow_iterations);
+
+JNIEXPORT
+void JNICALL OBJECT_TRACKER_METHOD(setTrackingBudgetNative)(
+    JNIEnv* env, jobject thiz, jint max_keypoints, jint num_flow_levels,
+    jint num_flow_iterations);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
                                                         jobject thiz);
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jbyteArray frame_data);
+jint JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
+    JNIEnv* env, jobject thiz, jfloat x1, jfloat y1, jfloat x2, jfloat y2,
+    jbyteArray frame_data);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jlong timestamp);
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1, jfloat x2,
+    jfloat y2, jlong timestamp);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2);
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1, jfloat x2,
+    jfloat y2);
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id);
+                                                   jint handle);
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id);
+                                                        jint handle);
 
 JNIEXPORT
 jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id);
+                                                        jint handle);
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
                                                             jobject thiz,
-                                                            jstring object_id);
+                                                            jint handle);
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id);
+                                                    jint handle);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array);
+    JNIEnv* env, jobject thiz, jint handle, jfloatArray rect_array);
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
+jint JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
                                                     jbyteArray y_data,
                                                     jbyteArray uv_data,
                                                     jlong timestamp,
-                                                    jfloatArray vg_matrix_2x3);
+                                                    jfloatArray vg_matrix_2x3,
+                                                    jfloatArray tracked_state);
+
+JNIEXPORT
+jint JNICALL OBJECT_TRACKER_METHOD(getTrackedStateNative)(
+    JNIEnv* env, jobject thiz, jfloatArray tracked_state);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id);
+                                                 jint handle);
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor);
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray packed,
+    jint offset);
 
 JNIEXPORT
-jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
-    JNIEnv* env, jobject thiz, jboolean only_found_);
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
+    JNIEnv* env, jobject thiz, jboolean only_found_, jfloatArray keypoints);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getCurrentPositionNative)(
@@ -144,14 +159,22 @@ JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageNative)(
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(initNative)(JNIEnv* env, jobject thiz,
                                                jint width, jint height,
-                                               jboolean always_track) {
-  LOGI("Initializing object tracker. %dx%d @%p", width, height, thiz);
+                                               jboolean always_track,
+                                               jint num_threads,
+                                               jint max_keypoints,
+                                               jint num_flow_levels,
+                                               jint num_flow_iterations) {
+  LOGI("Initializing object tracker. %dx%d @%p, %d threads",
+       width, height, thiz, num_threads);
   const Size image_size(width, height);
   TrackerConfig* const tracker_config = new TrackerConfig(image_size);
   tracker_config->always_track = always_track;
+  tracker_config->num_threads = MAX(num_threads, 1);
 
   // XXX detector
   ObjectTracker* const tracker = new ObjectTracker(tracker_config, NULL);
+  tracker->SetTrackingBudget(max_keypoints, num_flow_levels,
+                             num_flow_iterations);
   set_object_tracker(env, thiz, tracker);
   LOGI("Initialized!");
 
@@ -159,6 +182,14 @@ void JNICALL OBJECT_TRACKER_METHOD(initNative)(JNIEnv* env, jobject thiz,
                "Failure to set hand tracker!");
 }
 
+JNIEXPORT
+void JNICALL OBJECT_TRACKER_METHOD(setTrackingBudgetNative)(
+    JNIEnv* env, jobject thiz, jint max_keypoints, jint num_flow_levels,
+    jint num_flow_iterations) {
+  get_object_tracker(env, thiz)->SetTrackingBudget(
+      max_keypoints, num_flow_levels, num_flow_iterations);
+}
+
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
                                                         jobject thiz) {
@@ -167,13 +198,10 @@ void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
 }
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jbyteArray frame_data) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
-       x2, y2);
+jint JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
+    JNIEnv* env, jobject thiz, jfloat x1, jfloat y1, jfloat x2, jfloat y2,
+    jbyteArray frame_data) {
+  LOGI("Registering a new object at %.2f,%.2f,%.2f,%.2f", x1, y1, x2, y2);
 
   jboolean iCopied = JNI_FALSE;
 
@@ -181,75 +209,57 @@ void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
   jbyte* pixels = env->GetByteArrayElements(frame_data, &iCopied);
 
   BoundingBox bounding_box(x1, y1, x2, y2);
-  get_object_tracker(env, thiz)->RegisterNewObjectWithAppearance(
-      id_str, reinterpret_cast<const uint8_t*>(pixels), bounding_box);
+  const int handle =
+      get_object_tracker(env, thiz)->RegisterNewObjectWithAppearance(
+          reinterpret_cast<const uint8_t*>(pixels), bounding_box);
 
   env->ReleaseByteArrayElements(frame_data, pixels, JNI_ABORT);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+  return handle;
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2, jlong timestamp) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1, jfloat x2,
+    jfloat y2, jlong timestamp) {
   LOGI(
-      "Registering the position of %s at %.2f,%.2f,%.2f,%.2f"
+      "Registering the position of %d at %.2f,%.2f,%.2f,%.2f"
       " at time %lld",
-      id_str, x1, y1, x2, y2, static_cast<int64_t>(timestamp));
+      handle, x1, y1, x2, y2, static_cast<int64_t>(timestamp));
 
   get_object_tracker(env, thiz)->SetPreviousPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2), timestamp);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+      handle, BoundingBox(x1, y1, x2, y2), timestamp);
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
-    jfloat x2, jfloat y2) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1, jfloat x2,
+    jfloat y2) {
+  LOGI("Registering the position of %d at %.2f,%.2f,%.2f,%.2f", handle, x1, y1,
        x2, y2);
 
   get_object_tracker(env, thiz)->SetCurrentPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2));
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+      handle, BoundingBox(x1, y1, x2, y2));
 }
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool haveObject = get_object_tracker(env, thiz)->HaveObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return haveObject;
+                                                   jint handle) {
+  return get_object_tracker(env, thiz)->HaveObject(handle);
 }
 
 JNIEXPORT
 jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool visible = get_object_tracker(env, thiz)->IsObjectVisible(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return visible;
+                                                        jint handle) {
+  return get_object_tracker(env, thiz)->IsObjectVisible(handle);
 }
 
 JNIEXPORT
 jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
                                                         jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+                                                        jint handle) {
   const TrackedObject* const object =
-      get_object_tracker(env, thiz)->GetObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
+      get_object_tracker(env, thiz)->GetObject(handle);
   jstring model_name = env->NewStringUTF(object->GetModel()->GetName().c_str());
   return model_name;
 }
@@ -257,47 +267,54 @@ jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
                                                             jobject thiz,
-                                                            jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float correlation =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetCorrelation();
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return correlation;
+                                                            jint handle) {
+  return get_object_tracker(env, thiz)->GetObject(handle)->GetCorrelation();
 }
 
 JNIEXPORT
 jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float match_score =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetMatchScore().value;
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return match_score;
+                                                    jint handle) {
+  return get_object_tracker(env, thiz)->GetObject(handle)->GetMatchScore().value;
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array) {
-  jboolean iCopied = JNI_FALSE;
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
+    JNIEnv* env, jobject thiz, jint handle, jfloatArray rect_array) {
   const BoundingBox bounding_box =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetPosition();
-  env->ReleaseStringUTFChars(object_id, id_str);
+      get_object_tracker(env, thiz)->GetObject(handle)->GetPosition();
 
-  jfloat* rect = env->GetFloatArrayElements(rect_array, &iCopied);
+  // Only four floats, so a region copy is cheaper than pinning the array.
+  jfloat rect[4];
   bounding_box.CopyToArray(reinterpret_cast<float*>(rect));
-  env->ReleaseFloatArrayElements(rect_array, rect, 0);
+  env->SetFloatArrayRegion(rect_array, 0, 4, rect);
+}
+
+// Writes the tracked state into the Java array, see
+// ObjectTracker::GetTrackedState(). Returns the number of tracked objects.
+static jint CopyTrackedState(JNIEnv* env, ObjectTracker* const tracker,
+                             jfloatArray tracked_state) {
+  const int max_objects =
+      env->GetArrayLength(tracked_state) / kTrackedStateSize;
+  jfloat* const state = reinterpret_cast<jfloat*>(
+      env->GetPrimitiveArrayCritical(tracked_state, NULL));
+  const int num_objects = tracker->GetTrackedState(state, max_objects);
+  env->ReleasePrimitiveArrayCritical(tracked_state, state, 0);
+  return num_objects;
 }
 
 JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
+jint JNICALL OBJECT_TRACKER_METHOD(getTrackedStateNative)(
+    JNIEnv* env, jobject thiz, jfloatArray tracked_state) {
+  return CopyTrackedState(env, get_object_tracker(env, thiz), tracked_state);
+}
+
+JNIEXPORT
+jint JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
                                                     jbyteArray y_data,
                                                     jbyteArray uv_data,
                                                     jlong timestamp,
-                                                    jfloatArray vg_matrix_2x3) {
+                                                    jfloatArray vg_matrix_2x3,
+                                                    jfloatArray tracked_state) {
   TimeLog("Starting object tracker");
 
   jboolean iCopied = JNI_FALSE;
@@ -336,65 +353,62 @@ void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
 
   TimeLog("Released elements");
 
+  const jint num_objects =
+      CopyTrackedState(env, get_object_tracker(env, thiz), tracked_state);
+  TimeLog("Copied tracked state");
+
   PrintTimeLog();
   ResetTimeLog();
+  return num_objects;
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  get_object_tracker(env, thiz)->ForgetTarget(id_str);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+                                                 jint handle) {
+  get_object_tracker(env, thiz)->ForgetTarget(handle);
 }
 
 JNIEXPORT
-jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
-    JNIEnv* env, jobject thiz, jboolean only_found) {
-  jfloat keypoint_arr[kMaxKeypoints * kKeypointStep];
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
+    JNIEnv* env, jobject thiz, jboolean only_found, jfloatArray keypoints) {
+  if (env->GetArrayLength(keypoints) < kMaxKeypoints * kKeypointStep) {
+    LOGE("Keypoint array too small!");
+    return 0;
+  }
 
+  // Written straight into the caller's array, which is reused across frames.
+  jfloat* const keypoint_arr = reinterpret_cast<jfloat*>(
+      env->GetPrimitiveArrayCritical(keypoints, NULL));
   const int number_of_keypoints =
       get_object_tracker(env, thiz)->GetKeypoints(only_found, keypoint_arr);
+  env->ReleasePrimitiveArrayCritical(keypoints, keypoint_arr, 0);
 
-  // Create and return the array that will be passed back to Java.
-  jfloatArray keypoints =
-      env->NewFloatArray(number_of_keypoints * kKeypointStep);
-  if (keypoints == NULL) {
-    LOGE("null array!");
-    return NULL;
-  }
-  env->SetFloatArrayRegion(keypoints, 0, number_of_keypoints * kKeypointStep,
-                           keypoint_arr);
-
-  return keypoints;
+  return number_of_keypoints;
 }
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor) {
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray packed,
+    jint offset) {
   // 2 bytes to a uint16_t and two pairs of xy coordinates per keypoint.
   const int bytes_per_keypoint = sizeof(uint16_t) * 2 * 2;
-  jbyte keypoint_arr[kMaxKeypoints * bytes_per_keypoint];
+  if (offset < 0 || offset % bytes_per_keypoint != 0 ||
+      env->GetArrayLength(packed) - offset <
+          kMaxKeypoints * bytes_per_keypoint) {
+    LOGE("No room for packed keypoints at offset %d!", offset);
+    return 0;
+  }
 
+  // Written in place at the given offset, so the Java side can keep a
+  // preallocated history of packed frames.
+  jbyte* const packed_arr = reinterpret_cast<jbyte*>(
+      env->GetPrimitiveArrayCritical(packed, NULL));
   const int number_of_keypoints =
       get_object_tracker(env, thiz)->GetKeypointsPacked(
-          reinterpret_cast<uint16_t*>(keypoint_arr), scale_factor);
-
-  // Create and return the array that will be passed back to Java.
-  jbyteArray keypoints =
-      env->NewByteArray(number_of_keypoints * bytes_per_keypoint);
-
-  if (keypoints == NULL) {
-    LOGE("null array!");
-    return NULL;
-  }
-
-  env->SetByteArrayRegion(
-      keypoints, 0, number_of_keypoints * bytes_per_keypoint, keypoint_arr);
+          reinterpret_cast<uint16_t*>(packed_arr + offset), scale_factor);
+  env->ReleasePrimitiveArrayCritical(packed, packed_arr, 0);
 
-  return keypoints;
+  return number_of_keypoints;
 }
 
 JNIEXPORT
@@ -52,8 +52,8 @@ bool OpticalFlow::FindFlowAtPoint_LK(const Image<uint8_t>& img_I,
                                      const Image<uint8_t>& img_J,
                                      const Image<int32_t>& I_x,
                                      const Image<int32_t>& I_y, const float p_x,
-                                     const float p_y, float* out_g_x,
-                                     float* out_g_y) {
+                                     const float p_y, const int num_iterations,
+                                     float* out_g_x, float* out_g_y) {
   float g_x = *out_g_x;
   float g_y = *out_g_y;
   // Get values for frame 1.  They remain constant through the inner
@@ -124,8 +124,8 @@ bool OpticalFlow::FindFlowAtPoint_LK(const Image<uint8_t>& img_I,
   const float std_dev_I = ComputeStdDev(vals_I, kFlowArraySize, mean_I);
 #endif
 
-  // Iterate kNumIterations times or until we converge.
-  for (int iteration = 0; iteration < kNumIterations; ++iteration) {
+  // Iterate num_iterations times or until we converge.
+  for (int iteration = 0; iteration < num_iterations; ++iteration) {
     // Get values for frame 2.
     float vals_J[kFlowArraySize];
 
@@ -217,7 +217,8 @@ bool OpticalFlow::FindFlowAtPoint_ESM(
     const Image<uint8_t>& img_I, const Image<uint8_t>& img_J,
     const Image<int32_t>& I_x, const Image<int32_t>& I_y,
     const Image<int32_t>& J_x, const Image<int32_t>& J_y, const float p_x,
-    const float p_y, float* out_g_x, float* out_g_y) {
+    const float p_y, const int num_iterations,
+    float* out_g_x, float* out_g_y) {
   float g_x = *out_g_x;
   float g_y = *out_g_y;
   const float area_inv = 1.0f / static_cast<float>(kFlowArraySize);
@@ -279,8 +280,8 @@ bool OpticalFlow::FindFlowAtPoint_ESM(
     bright_offset = static_cast<int>(static_cast<float>(sum_diff) * area_inv);
   }
 
-  // Iterate kNumIterations times or until we go out of image.
-  for (int iteration = 0; iteration < kNumIterations; ++iteration) {
+  // Iterate num_iterations times or until we go out of image.
+  for (int iteration = 0; iteration < num_iterations; ++iteration) {
     int jtj[3] = { 0, 0, 0 };
     int jtr[2] = { 0, 0 };
     sum_diff = 0;
@@ -408,10 +409,10 @@ bool OpticalFlow::FindFlowAtPointReversible(
 
   const bool success = kUseEsm ?
     FindFlowAtPoint_ESM(img_I, img_J, I_x, I_y, J_x, J_y,
-                        scaled_p_x, scaled_p_y,
+                        scaled_p_x, scaled_p_y, config_->num_iterations,
                         &scaled_flow_x, &scaled_flow_y) :
     FindFlowAtPoint_LK(img_I, img_J, I_x, I_y,
-                       scaled_p_x, scaled_p_y,
+                       scaled_p_x, scaled_p_y, config_->num_iterations,
                        &scaled_flow_x, &scaled_flow_y);
 
   *flow_x = scaled_flow_x * shrink_factor;
@@ -421,6 +422,16 @@ bool OpticalFlow::FindFlowAtPointReversible(
 }
 
 
+void OpticalFlow::PrepareLevel(const int level) const {
+  const ImageData* const frames[] = { frame1_, frame2_ };
+  for (int i = 0; i < 2; ++i) {
+    frames[i]->GetPyramidSqrt2Level(level * 2);
+    frames[i]->GetSpatialX(level);
+    frames[i]->GetSpatialY(level);
+  }
+}
+
+
 bool OpticalFlow::FindFlowAtPointSingleLevel(
     const int level,
     const float u_x, const float u_y,
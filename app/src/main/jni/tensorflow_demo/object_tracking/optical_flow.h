@@ -52,15 +52,16 @@ class OpticalFlow {
                                  const Image<uint8_t>& img_J,
                                  const Image<int32_t>& I_x,
                                  const Image<int32_t>& I_y, const float p_x,
-                                 const float p_y, float* out_g_x,
-                                 float* out_g_y);
+                                 const float p_y, const int num_iterations,
+                                 float* out_g_x, float* out_g_y);
 
   // Pointwise flow using translational 2dof ESM.
   static bool FindFlowAtPoint_ESM(
       const Image<uint8_t>& img_I, const Image<uint8_t>& img_J,
       const Image<int32_t>& I_x, const Image<int32_t>& I_y,
       const Image<int32_t>& J_x, const Image<int32_t>& J_y, const float p_x,
-      const float p_y, float* out_g_x, float* out_g_y);
+      const float p_y, const int num_iterations,
+      float* out_g_x, float* out_g_y);
 
   // Finds the flow using a specific level, in either direction.
   // If reversed, the coordinates are in the context of the latest
@@ -78,6 +79,11 @@ class OpticalFlow {
                                   const bool filter_by_fb_error,
                                   float* flow_x, float* flow_y) const;
 
+  // Computes the pyramid level and gradients of both frames that flow at the
+  // given level reads, which are otherwise computed lazily. Once done, flow at
+  // that level may be found from several threads at once.
+  void PrepareLevel(const int level) const;
+
   // Pyramidal optical-flow using all levels.
   bool FindFlowAtPointPyramidal(const float u_x, const float u_y,
                                 const bool filter_by_fb_error,
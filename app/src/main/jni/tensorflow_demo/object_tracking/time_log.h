@@ -39,14 +39,15 @@ struct AverageEntry {
   float average_duration;
 };
 
-// Storage for keeping track of this frame's values.
-extern int num_time_logs;
-extern LogEntry time_logs[NUM_LOGS];
+// Storage for keeping track of this frame's values. Kept per thread, so that
+// trackers running on different threads do not mix their logs.
+extern thread_local int num_time_logs;
+extern thread_local LogEntry time_logs[NUM_LOGS];
 
 // Storage for keeping track of average values (each entry may not be printed
 // out each frame).
-extern AverageEntry avg_entries[NUM_LOGS];
-extern int num_avg_entries;
+extern thread_local AverageEntry avg_entries[NUM_LOGS];
+extern thread_local int num_avg_entries;
 
 // Call this at the start of a logging phase.
 inline static void ResetTimeLog() {
@@ -0,0 +1,143 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+#ifndef TENSORFLOW_EXAMPLES_ANDROID_JNI_OBJECT_TRACKING_WORKER_POOL_H_
+#define TENSORFLOW_EXAMPLES_ANDROID_JNI_OBJECT_TRACKING_WORKER_POOL_H_
+
+#include <atomic>
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#include "utils.h"
+
+namespace tf_tracking {
+
+// A fixed set of threads that run the iterations of a loop in parallel.
+// The calling thread works on the loop too, so a pool of one thread runs
+// everything inline. Only one ParallelFor() may run at a time.
+class WorkerPool {
+ public:
+  explicit WorkerPool(const int num_threads)
+      : function_(NULL),
+        count_(0),
+        next_index_(0),
+        generation_(0),
+        num_pending_(0),
+        shutdown_(false) {
+    for (int i = 1; i < num_threads; ++i) {
+      threads_.push_back(std::thread(&WorkerPool::WorkerLoop, this));
+    }
+  }
+
+  ~WorkerPool() {
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      shutdown_ = true;
+    }
+    work_ready_.notify_all();
+    for (size_t i = 0; i < threads_.size(); ++i) {
+      threads_[i].join();
+    }
+  }
+
+  inline int GetNumThreads() const {
+    return threads_.size() + 1;
+  }
+
+  // Calls function(i) for every i in [0, count) and returns once all calls
+  // are done. Each index is handled exactly once by some thread, so as long
+  // as the calls only write state that belongs to their index, the results
+  // do not depend on scheduling.
+  void ParallelFor(const int count, const std::function<void(int)>& function) {
+    if (threads_.empty() || count <= 1) {
+      for (int i = 0; i < count; ++i) {
+        function(i);
+      }
+      return;
+    }
+
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      function_ = &function;
+      count_ = count;
+      next_index_ = 0;
+      num_pending_ = threads_.size();
+      ++generation_;
+    }
+    work_ready_.notify_all();
+
+    RunIndices();
+
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (num_pending_ > 0) {
+      work_done_.wait(lock);
+    }
+    function_ = NULL;
+  }
+
+ private:
+  void RunIndices() {
+    for (int i = next_index_++; i < count_; i = next_index_++) {
+      (*function_)(i);
+    }
+  }
+
+  void WorkerLoop() {
+    int64_t last_generation = 0;
+    while (true) {
+      {
+        std::unique_lock<std::mutex> lock(mutex_);
+        while (!shutdown_ && generation_ == last_generation) {
+          work_ready_.wait(lock);
+        }
+        if (shutdown_) {
+          return;
+        }
+        last_generation = generation_;
+      }
+
+      RunIndices();
+
+      std::lock_guard<std::mutex> lock(mutex_);
+      if (--num_pending_ == 0) {
+        work_done_.notify_one();
+      }
+    }
+  }
+
+  std::vector<std::thread> threads_;
+
+  std::mutex mutex_;
+  std::condition_variable work_ready_;
+  std::condition_variable work_done_;
+
+  // The loop being run. Written under mutex_ before the workers are woken.
+  const std::function<void(int)>* function_;
+  int count_;
+  std::atomic<int> next_index_;
+
+  int64_t generation_;
+  int num_pending_;
+  bool shutdown_;
+
+  TF_DISALLOW_COPY_AND_ASSIGN(WorkerPool);
+};
+
+}  // namespace tf_tracking
+
+#endif  // TENSORFLOW_EXAMPLES_ANDROID_JNI_OBJECT_TRACKING_WORKER_POOL_H_
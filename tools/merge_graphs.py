@@ -0,0 +1,90 @@
+"""Merges the MTCNN and FaceNet frozen graphs into a single detect -> crop -> embed graph.
+
+The merged graph takes the same BGR float image as mtcnn.pb on node 'input' and
+returns 'prob', 'landmarks', 'box' and 'embeddings' from one session run. Faces
+are cropped in-graph with crop_and_resize and prewhitened the same way
+FaceNet.getEmbeddings() does it in Java.
+
+Requires TensorFlow 1.x.
+
+Usage:
+    python tools/merge_graphs.py \
+        --mtcnn app/src/main/assets/mtcnn.pb \
+        --facenet app/src/main/assets/facenet.pb \
+        --output app/src/main/assets/merged.pb
+"""
+
+import argparse
+
+import numpy as np
+import tensorflow as tf
+
+
+def load_graph_def(path):
+    graph_def = tf.GraphDef()
+    with tf.gfile.GFile(path, 'rb') as f:
+        graph_def.ParseFromString(f.read())
+    return graph_def
+
+
+def build(mtcnn_def, facenet_def, face_size):
+    graph = tf.Graph()
+    with graph.as_default():
+        image = tf.placeholder(tf.float32, [None, None, 3], name='input')
+
+        prob, landmarks, box = tf.import_graph_def(
+            mtcnn_def,
+            input_map={'input:0': image},
+            return_elements=['prob:0', 'landmarks:0', 'box:0'],
+            name='mtcnn')
+
+        # Boxes come back as (top, left, bottom, right) in pixels, crop_and_resize wants
+        # (y1, x1, y2, x2) normalized to [0, 1].
+        shape = tf.cast(tf.shape(image), tf.float32)
+        scale = tf.stack([shape[0] - 1, shape[1] - 1, shape[0] - 1, shape[1] - 1])
+        normalized = box / scale
+
+        # MTCNN is fed BGR, FaceNet expects RGB.
+        rgb = tf.expand_dims(tf.reverse(image, axis=[-1]), 0)
+        crops = tf.image.crop_and_resize(
+            rgb, normalized, tf.zeros([tf.shape(box)[0]], tf.int32), [face_size, face_size])
+
+        # Per-image standardization, vectorized so an empty batch needs no special case.
+        mean, variance = tf.nn.moments(crops, axes=[1, 2, 3], keep_dims=True)
+        min_std = 1.0 / np.sqrt(face_size * face_size * 3)
+        whitened = (crops - mean) / tf.maximum(tf.sqrt(variance), min_std)
+
+        input_map = {'input:0': whitened}
+        if any(node.name == 'phase_train' for node in facenet_def.node):
+            input_map['phase_train:0'] = tf.constant(False)
+
+        embeddings, = tf.import_graph_def(
+            facenet_def,
+            input_map=input_map,
+            return_elements=['embeddings:0'],
+            name='facenet')
+
+        tf.identity(prob, name='prob')
+        tf.identity(landmarks, name='landmarks')
+        tf.identity(box, name='box')
+        tf.identity(embeddings, name='embeddings')
+
+    return graph.as_graph_def()
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.split('\n')[0])
+    parser.add_argument('--mtcnn', required=True, help='Path to mtcnn.pb')
+    parser.add_argument('--facenet', required=True, help='Path to facenet.pb')
+    parser.add_argument('--output', required=True, help='Where to write the merged graph')
+    parser.add_argument('--face_size', type=int, default=160, help='FaceNet input size')
+    args = parser.parse_args()
+
+    merged = build(load_graph_def(args.mtcnn), load_graph_def(args.facenet), args.face_size)
+    with tf.gfile.GFile(args.output, 'wb') as f:
+        f.write(merged.SerializeToString())
+    print('Wrote %d nodes to %s' % (len(merged.node), args.output))
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Produces the eight-bit model variants loaded by MTCNN.createQuantized() and FaceNet.createQuantized().
+#
+# Uses TensorFlow's graph_transforms tool, so the output still runs on the
+# tensorflow-android runtime. Run from a TensorFlow 1.x source checkout:
+#
+#   bazel build tensorflow/tools/graph_transforms:transform_graph
+#   /path/to/exxler/tools/quantize_graphs.sh /path/to/exxler/app/src/main/assets
+
+set -e
+
+ASSETS=${1:?usage: quantize_graphs.sh <assets dir>}
+TRANSFORM=${TRANSFORM:-bazel-bin/tensorflow/tools/graph_transforms/transform_graph}
+TRANSFORMS='strip_unused_nodes fold_constants(ignore_errors=true) fold_batch_norms
+            fold_old_batch_norms quantize_weights quantize_nodes strip_unused_nodes
+            sort_by_execution_order'
+
+quantize() {
+  local name=$1 outputs=$2
+  "$TRANSFORM" \
+    --in_graph="$ASSETS/$name.pb" \
+    --out_graph="$ASSETS/${name}_quant.pb" \
+    --inputs=input \
+    --outputs="$outputs" \
+    --transforms="$TRANSFORMS"
+  echo "Wrote $ASSETS/${name}_quant.pb"
+}
+
+quantize mtcnn prob,landmarks,box
+quantize facenet embeddings